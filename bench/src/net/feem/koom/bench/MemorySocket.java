@@ -0,0 +1,150 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import net.feem.koom.net.SocketConnection;
+
+/**
+ * An in-memory stand-in for a network socket, so benchmarks can drive a real
+ * {@link SocketConnection} without any actual I/O. Input is a fixed payload,
+ * repeated forever; output is counted, then discarded.
+ * 
+ * @author cu5
+ */
+class MemorySocket extends Socket {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] payload;
+    private int pos;
+
+    private long written;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() {
+            final int nextByte = payload[pos] & 0xFF;
+            pos = (pos + 1) % payload.length;
+            return nextByte;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) {
+            // Fill the whole request, like a busy connection would.
+            int ii = 0;
+            while (ii < len) {
+                final int chunk = Math.min(len - ii, payload.length - pos);
+                System.arraycopy(payload, pos, buf, off + ii, chunk);
+                pos = (pos + chunk) % payload.length;
+                ii += chunk;
+            }
+
+            return len;
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int nextByte) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            written += len;
+        }
+    };
+
+    /**
+     * Creates a socket with the given input.
+     * 
+     * @param payload
+     *            input, repeated forever; must not be empty
+     */
+    MemorySocket(byte[] payload) {
+        if (payload.length == 0) {
+            throw new IllegalArgumentException("Empty payload");
+        }
+
+        this.payload = payload;
+    }
+
+    /**
+     * Creates a connection over a socket with the given input.
+     * 
+     * @param payload
+     *            input, repeated forever
+     * 
+     * @return connection
+     * 
+     * @throws IOException
+     *             never, in practice
+     */
+    static SocketConnection connect(byte[] payload) throws IOException {
+        return new SocketConnection(new MemorySocket(payload));
+    }
+
+    long getWritten() {
+        return written;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public int getReceiveBufferSize() {
+        return BUFFER_SIZE;
+    }
+
+    @Override
+    public int getSendBufferSize() {
+        return BUFFER_SIZE;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+        // Nothing to configure.
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) {
+        // Nothing to configure.
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        // Never blocks anyway.
+    }
+
+    @Override
+    public synchronized void close() {
+        // Nothing to close.
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.feem.koom.net.ClientNVT;
+import net.feem.koom.net.TELNETProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of line assembly and line writing in the NVT, one line per
+ * operation.
+ * 
+ * @author cu5
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NVTBenchmark {
+    @Param( { "plain", "iac" })
+    public String payload;
+
+    private ClientNVT nvt;
+
+    private final char[] cbuf = new char[256];
+    private char[] line;
+
+    @Setup
+    public void setUp() throws IOException {
+        nvt = new ClientNVT(new TELNETProtocol(MemorySocket.connect(Payloads
+                .get(payload))));
+        line = Payloads.line().toCharArray();
+    }
+
+    @Benchmark
+    public int readLine() throws IOException {
+        int len = 0;
+        do {
+            len += nvt.read(cbuf, 0, cbuf.length);
+        } while (!nvt.readIsLine());
+        return len;
+    }
+
+    @Benchmark
+    public void writeLine() throws IOException {
+        nvt.writeLine(line, 0, line.length);
+        nvt.flush();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.bench;
+
+import java.io.ByteArrayOutputStream;
+
+import net.feem.koom.services.Utility;
+
+/**
+ * Synthetic server output for benchmarks, loosely modelled on a busy
+ * BattleTech MUX session.
+ * 
+ * @author cu5
+ */
+final class Payloads {
+    private static final int IAC = 255;
+    private static final int SB = 250;
+    private static final int SE = 240;
+    private static final int NOP = 241;
+
+    // Size each payload is built up to, before it repeats.
+    private static final int SIZE = 64 * 1024;
+
+    private static final String[] LINES = {
+            "#HUD:C0FFEE:GS:R# A,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16",
+            "#HUD:C0FFEE:CO:L# 1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17",
+            "Broadcast: [Ch 1] Alpha Lance: moving to grid 12,34 now.",
+            "The Atlas AS7-D lumbers north, its torso twisting to track you.",
+            "You hear the distant rumble of autocannon fire to the east.", };
+
+    private Payloads() {
+    }
+
+    /**
+     * Gets a named payload.
+     * 
+     * @param name
+     *            <code>plain</code> for text only, <code>iac</code> for
+     *            text with many escaped and command bytes, or
+     *            <code>subneg</code> for many sub-negotiations
+     * 
+     * @return payload bytes
+     */
+    static byte[] get(String name) {
+        if ("plain".equals(name)) {
+            return plain();
+        } else if ("iac".equals(name)) {
+            return iac();
+        } else if ("subneg".equals(name)) {
+            return subneg();
+        } else {
+            throw new IllegalArgumentException("Unknown payload: " + name);
+        }
+    }
+
+    /**
+     * Gets one line of text, without line termination.
+     */
+    static String line() {
+        return LINES[2];
+    }
+
+    static byte[] plain() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(SIZE);
+        for (int ii = 0; out.size() < SIZE; ii++) {
+            writeLine(out, LINES[ii % LINES.length]);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] iac() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(SIZE);
+        for (int ii = 0; out.size() < SIZE; ii++) {
+            final byte[] line = Utility.getASCII(LINES[ii % LINES.length]);
+            for (int jj = 0; jj < line.length; jj++) {
+                out.write(line[jj]);
+
+                // An escaped 0xFF or a NOP every few bytes.
+                if (jj % 8 == 0) {
+                    out.write(IAC);
+                    out.write((jj % 16 == 0) ? IAC : NOP);
+                }
+            }
+            out.write('\r');
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] subneg() {
+        final byte[] param = Utility.getASCII("Char.Vitals {\"hp\":100,"
+                + "\"maxhp\":100,\"heat\":12,\"speed\":43.5}");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(SIZE);
+        for (int ii = 0; out.size() < SIZE; ii++) {
+            out.write(IAC);
+            out.write(SB);
+            out.write(201);
+            out.write(param, 0, param.length);
+            out.write(IAC);
+            out.write(SE);
+
+            if (ii % 4 == 0) {
+                writeLine(out, LINES[ii % LINES.length]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Gets output escaping input: a block of binary data, a quarter of
+     * which is 0xFF.
+     */
+    static byte[] binary(int size) {
+        final byte[] data = new byte[size];
+        for (int ii = 0; ii < size; ii++) {
+            data[ii] = (byte) ((ii % 4 == 0) ? IAC : ii);
+        }
+        return data;
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, String line) {
+        final byte[] bytes = Utility.getASCII(line);
+        out.write(bytes, 0, bytes.length);
+        out.write('\r');
+        out.write('\n');
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import net.feem.koom.net.TELNETEventHandler;
+import net.feem.koom.net.TELNETProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the TELNET input filter, reading 8K of input per operation.
+ * 
+ * @author cu5
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TELNETInputBenchmark {
+    @Param( { "plain", "iac", "subneg" })
+    public String payload;
+
+    private InputStream in;
+    private final byte[] buf = new byte[8192];
+
+    /**
+     * Handles input events by ignoring them, so only the filter is measured.
+     */
+    private static final class NullHandler implements TELNETEventHandler {
+        @Override
+        public void processCommand(byte code) {
+        }
+
+        @Override
+        public void processWILL(int option) {
+        }
+
+        @Override
+        public void processWONT(int option) {
+        }
+
+        @Override
+        public void processDO(int option) {
+        }
+
+        @Override
+        public void processDONT(int option) {
+        }
+
+        @Override
+        public void beginParam(int option) {
+        }
+
+        @Override
+        public void endParam() {
+        }
+
+        @Override
+        public void appendParam(byte nextByte) {
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        final TELNETProtocol proto = new TELNETProtocol(MemorySocket
+                .connect(Payloads.get(payload)));
+        proto.setInputHandler(new NullHandler());
+        in = proto.getInputStream();
+    }
+
+    @Benchmark
+    public int read() throws IOException {
+        int len = 0;
+        while (len < buf.length) {
+            len += in.read(buf, len, buf.length - len);
+        }
+        return len;
+    }
+}
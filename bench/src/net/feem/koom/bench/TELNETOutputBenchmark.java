@@ -0,0 +1,82 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import net.feem.koom.net.TELNETProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the TELNET output filter, escaping and flushing a block of
+ * data per operation.
+ * 
+ * @author cu5
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TELNETOutputBenchmark {
+    @Param( { "plain", "binary" })
+    public String payload;
+
+    @Param( { "128", "8192" })
+    public int size;
+
+    private TELNETProtocol proto;
+    private OutputStream out;
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws IOException {
+        proto = new TELNETProtocol(MemorySocket.connect(Payloads.plain()));
+        out = proto.getOutputStream();
+
+        if ("binary".equals(payload)) {
+            data = Payloads.binary(size);
+        } else {
+            data = new byte[size];
+            System.arraycopy(Payloads.plain(), 0, data, 0, size);
+        }
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        synchronized (proto.getWriteLock()) {
+            out.write(data, 0, data.length);
+            proto.flush();
+        }
+    }
+}
@@ -0,0 +1,704 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.hudinfo;
+
+import java.util.Arrays;
+
+/**
+ * Table of the contacts reported by the HUDINFO contacts (C) command. Each
+ * contact has a slot, and the table keeps its fields in parallel primitive
+ * arrays indexed by slot, so a poll updates the table in place. Slots of
+ * contacts that drop out are reused for new ones.
+ * 
+ * <p>
+ * At the end of each poll, the listener is told which slots were added,
+ * changed, and removed, so it doesn't have to rescan the whole table. The
+ * fields of removed contacts remain readable until the listener returns.
+ * </p>
+ * 
+ * <p>
+ * Contact IDs are the usual one or two letters. Like the parser feeding it,
+ * the table is only used from the thread reading from the connection.
+ * </p>
+ * 
+ * @author cu5
+ */
+public class ContactTable extends HudInfoAdapter {
+    /**
+     * Receives the changes made by each poll.
+     */
+    public static interface Listener {
+        /**
+         * Called at the end of each poll that changed anything.
+         * 
+         * @param table
+         *            table that changed; query it for the changes
+         */
+        public void processContacts(ContactTable table);
+    }
+
+    // Bits of a change mask.
+    public static final int CHANGED_POSITION = 1;
+    public static final int CHANGED_HEADING = 2;
+    public static final int CHANGED_SPEED = 4;
+    public static final int CHANGED_FLAGS = 8;
+    public static final int CHANGED_MECH = 16;
+
+    private static final int COMMAND = HudInfoParser.command("C");
+
+    // Field positions in a contact list item.
+    private static final int FIELD_ID = 0;
+    private static final int FIELD_MECH = 4;
+    private static final int FIELD_X = 5;
+    private static final int FIELD_Y = 6;
+    private static final int FIELD_Z = 7;
+    private static final int FIELD_SPEED = 10;
+    private static final int FIELD_HEADING = 12;
+    private static final int FIELD_FLAGS = 18;
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    // No slot, or no mech.
+    private static final int NONE = -1;
+
+    private Listener listener;
+
+    // Slot for each packed ID.
+    private final int[] slotById = new int[1 << 16];
+
+    // Contact fields, by slot.
+    private int[] idCodes;
+    private String[] ids;
+    private int[] x;
+    private int[] y;
+    private int[] z;
+    private int[] heading;
+    private float[] speed;
+    private long[] flags;
+    private int[] mech;
+
+    // Poll each slot was last seen in, or 0 if free.
+    private int[] seen;
+    private int poll = 1;
+
+    // Free slots, as a stack.
+    private int[] free;
+    private int freeCount;
+    private int used;
+    private int size;
+
+    // Changes made by the current poll.
+    private int[] added;
+    private int addedCount;
+    private int[] changed;
+    private int[] changes;
+    private int changedCount;
+    private int[] removed;
+    private int removedCount;
+
+    // Mech references, interned so slots only need an index.
+    private final MechRefs mechRefs = new MechRefs();
+
+    // Whether a done response is being read.
+    private boolean inDone;
+
+    // List item being read.
+    private boolean inItem;
+    private boolean validItem;
+    private int itemId;
+    private int itemX, itemY, itemZ;
+    private int itemHeading;
+    private float itemSpeed;
+    private long itemFlags;
+    private int itemMech;
+
+    /**
+     * Interns mech references, looking them up without making strings.
+     */
+    private static final class MechRefs {
+        private String[] names = new String[64];
+        private int[] table = new int[128];
+        private int count;
+
+        private MechRefs() {
+            Arrays.fill(table, NONE);
+        }
+
+        private int intern(CharSequence name) {
+            final int hash = hash(name);
+            int pos = hash & (table.length - 1);
+
+            while (table[pos] != NONE) {
+                if (equal(names[table[pos]], name)) {
+                    return table[pos];
+                }
+                pos = (pos + 1) & (table.length - 1);
+            }
+
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+            }
+
+            names[count] = name.toString();
+            table[pos] = count;
+
+            if (++count * 2 > table.length) {
+                rehash();
+            }
+
+            return count - 1;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            Arrays.fill(table, NONE);
+
+            for (int ii = 0; ii < count; ii++) {
+                int pos = hash(names[ii]) & (table.length - 1);
+                while (table[pos] != NONE) {
+                    pos = (pos + 1) & (table.length - 1);
+                }
+                table[pos] = ii;
+            }
+        }
+
+        private static int hash(CharSequence name) {
+            int hash = 0;
+            for (int ii = 0; ii < name.length(); ii++) {
+                hash = 31 * hash + name.charAt(ii);
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean equal(String name, CharSequence other) {
+            if (name.length() != other.length()) {
+                return false;
+            }
+
+            for (int ii = 0; ii < name.length(); ii++) {
+                if (name.charAt(ii) != other.charAt(ii)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    public ContactTable() {
+        Arrays.fill(slotById, NONE);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Gets the number of contacts.
+     * 
+     * @return number of contacts
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of slots, used or not. Slots are numbered from 0.
+     * 
+     * @return number of slots
+     */
+    public int getSlotCount() {
+        return used;
+    }
+
+    /**
+     * Tests if a slot holds a contact.
+     * 
+     * @param slot
+     *            slot number
+     * 
+     * @return if the slot is in use
+     */
+    public boolean isLive(int slot) {
+        return seen[slot] != 0;
+    }
+
+    /**
+     * Finds the slot for a contact.
+     * 
+     * @param id
+     *            contact ID
+     * 
+     * @return slot number, or -1 if there's no such contact
+     */
+    public int getSlot(CharSequence id) {
+        final int code = pack(id);
+        return (code == NONE) ? NONE : slotById[code];
+    }
+
+    public String getId(int slot) {
+        return ids[slot];
+    }
+
+    public int getX(int slot) {
+        return x[slot];
+    }
+
+    public int getY(int slot) {
+        return y[slot];
+    }
+
+    public int getZ(int slot) {
+        return z[slot];
+    }
+
+    public int getHeading(int slot) {
+        return heading[slot];
+    }
+
+    public float getSpeed(int slot) {
+        return speed[slot];
+    }
+
+    /**
+     * Gets a contact's status flags, one bit per flag letter: 'A' through
+     * 'Z' are bits 0 through 25, and 'a' through 'z' are bits 26 through 51.
+     * 
+     * @param slot
+     *            slot number
+     * 
+     * @return flag bits
+     */
+    public long getFlags(int slot) {
+        return flags[slot];
+    }
+
+    /**
+     * Tests a contact's status flag.
+     * 
+     * @param slot
+     *            slot number
+     * @param flag
+     *            flag letter
+     * 
+     * @return if the flag is set
+     */
+    public boolean hasFlag(int slot, char flag) {
+        final int bit = flagBit(flag);
+        return bit != NONE && (flags[slot] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Gets the index of a contact's mech reference.
+     * 
+     * @param slot
+     *            slot number
+     * 
+     * @return mech reference index, or -1 if unknown
+     */
+    public int getMechIndex(int slot) {
+        return mech[slot];
+    }
+
+    /**
+     * Gets a mech reference by index. Indexes are never reused, so they can be
+     * used to key per-mech data, such as templates.
+     * 
+     * @param index
+     *            mech reference index
+     * 
+     * @return mech reference
+     */
+    public String getMechRef(int index) {
+        return mechRefs.names[index];
+    }
+
+    public int getAddedCount() {
+        return addedCount;
+    }
+
+    /**
+     * Gets a slot added by the last poll.
+     * 
+     * @param ii
+     *            index, from 0 to {@link #getAddedCount()}
+     * 
+     * @return slot number
+     */
+    public int getAdded(int ii) {
+        return added[ii];
+    }
+
+    public int getChangedCount() {
+        return changedCount;
+    }
+
+    /**
+     * Gets a slot changed by the last poll.
+     * 
+     * @param ii
+     *            index, from 0 to {@link #getChangedCount()}
+     * 
+     * @return slot number
+     */
+    public int getChanged(int ii) {
+        return changed[ii];
+    }
+
+    /**
+     * Gets what changed about a slot changed by the last poll.
+     * 
+     * @param ii
+     *            index, from 0 to {@link #getChangedCount()}
+     * 
+     * @return change mask, such as {@link #CHANGED_POSITION}
+     */
+    public int getChanges(int ii) {
+        return changes[ii];
+    }
+
+    public int getRemovedCount() {
+        return removedCount;
+    }
+
+    /**
+     * Gets a slot removed by the last poll. This is only valid until the
+     * listener returns.
+     * 
+     * @param ii
+     *            index, from 0 to {@link #getRemovedCount()}
+     * 
+     * @return slot number
+     */
+    public int getRemoved(int ii) {
+        return removed[ii];
+    }
+
+    @Override
+    public void beginResponse(int command, char type) {
+        inDone = (command == COMMAND && type == HudInfoParser.TYPE_DONE);
+        inItem = (command == COMMAND && type == HudInfoParser.TYPE_LIST);
+        if (!inItem) {
+            return;
+        }
+
+        validItem = false;
+        itemX = itemY = itemZ = 0;
+        itemHeading = 0;
+        itemSpeed = 0;
+        itemFlags = 0;
+        itemMech = NONE;
+    }
+
+    @Override
+    public void textField(int index, CharSequence value) {
+        if (!inItem) {
+            return;
+        }
+
+        switch (index) {
+        case FIELD_ID:
+            itemId = pack(value);
+            validItem = (itemId != NONE);
+            break;
+
+        case FIELD_MECH:
+            if (value.length() != 0 && !isUnknown(value)) {
+                itemMech = mechRefs.intern(value);
+            }
+            break;
+
+        case FIELD_FLAGS:
+            itemFlags = 0;
+            for (int ii = 0; ii < value.length(); ii++) {
+                final int bit = flagBit(value.charAt(ii));
+                if (bit != NONE) {
+                    itemFlags |= 1L << bit;
+                }
+            }
+            break;
+
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public void integerField(int index, long value, CharSequence text) {
+        if (!inItem) {
+            return;
+        }
+
+        switch (index) {
+        case FIELD_X:
+            itemX = (int) value;
+            break;
+
+        case FIELD_Y:
+            itemY = (int) value;
+            break;
+
+        case FIELD_Z:
+            itemZ = (int) value;
+            break;
+
+        case FIELD_HEADING:
+            itemHeading = (int) value;
+            break;
+
+        case FIELD_SPEED:
+            itemSpeed = value;
+            break;
+
+        default:
+            // IDs and mech references only look numeric sometimes.
+            textField(index, text);
+            break;
+        }
+    }
+
+    @Override
+    public void numberField(int index, double value, CharSequence text) {
+        if (!inItem) {
+            return;
+        }
+
+        switch (index) {
+        case FIELD_SPEED:
+            itemSpeed = (float) value;
+            break;
+
+        case FIELD_HEADING:
+            itemHeading = (int) value;
+            break;
+
+        default:
+            textField(index, text);
+            break;
+        }
+    }
+
+    @Override
+    public void endResponse(boolean valid) {
+        if (inDone) {
+            inDone = false;
+            endPoll();
+        } else if (inItem) {
+            inItem = false;
+            if (valid && validItem) {
+                update();
+            }
+        }
+    }
+
+    /**
+     * Ends a poll, once the whole list has been received. This is called by
+     * the parser's done response, but may also be called directly.
+     */
+    public void endPoll() {
+        // Contacts not seen in this poll have dropped out.
+        for (int slot = 0; slot < used; slot++) {
+            if (seen[slot] != 0 && seen[slot] != poll) {
+                removed[removedCount++] = slot;
+                slotById[idCodes[slot]] = NONE;
+                seen[slot] = 0;
+                size--;
+            }
+        }
+
+        try {
+            final Listener current = listener;
+            if (current != null
+                    && (addedCount | changedCount | removedCount) != 0) {
+                current.processContacts(this);
+            }
+        } finally {
+            // Only now can the removed slots be reused.
+            for (int ii = 0; ii < removedCount; ii++) {
+                final int slot = removed[ii];
+                ids[slot] = null;
+                free[freeCount++] = slot;
+            }
+
+            addedCount = 0;
+            changedCount = 0;
+            removedCount = 0;
+
+            poll++;
+            if (poll == 0) {
+                // Never mark a slot as free by wrapping around.
+                poll = 1;
+                for (int slot = 0; slot < used; slot++) {
+                    if (seen[slot] != 0) {
+                        seen[slot] = poll;
+                    }
+                }
+            }
+        }
+    }
+
+    private void update() {
+        int slot = slotById[itemId];
+        if (slot == NONE) {
+            slot = newSlot();
+            slotById[itemId] = slot;
+            idCodes[slot] = itemId;
+            ids[slot] = unpack(itemId);
+            store(slot);
+            added[addedCount++] = slot;
+        } else if (seen[slot] != poll) {
+            int mask = 0;
+            if (x[slot] != itemX || y[slot] != itemY || z[slot] != itemZ) {
+                mask |= CHANGED_POSITION;
+            }
+            if (heading[slot] != itemHeading) {
+                mask |= CHANGED_HEADING;
+            }
+            if (speed[slot] != itemSpeed) {
+                mask |= CHANGED_SPEED;
+            }
+            if (flags[slot] != itemFlags) {
+                mask |= CHANGED_FLAGS;
+            }
+            if (mech[slot] != itemMech) {
+                mask |= CHANGED_MECH;
+            }
+
+            store(slot);
+            if (mask != 0) {
+                changed[changedCount] = slot;
+                changes[changedCount++] = mask;
+            }
+        } else {
+            // Listed twice in one poll; just take the latest.
+            store(slot);
+        }
+
+        seen[slot] = poll;
+    }
+
+    private void store(int slot) {
+        x[slot] = itemX;
+        y[slot] = itemY;
+        z[slot] = itemZ;
+        heading[slot] = itemHeading;
+        speed[slot] = itemSpeed;
+        flags[slot] = itemFlags;
+        mech[slot] = itemMech;
+    }
+
+    private int newSlot() {
+        size++;
+        if (freeCount != 0) {
+            return free[--freeCount];
+        }
+
+        if (used == seen.length) {
+            allocate(used * 2);
+        }
+
+        return used++;
+    }
+
+    private void allocate(int capacity) {
+        if (seen == null) {
+            idCodes = new int[capacity];
+            ids = new String[capacity];
+            x = new int[capacity];
+            y = new int[capacity];
+            z = new int[capacity];
+            heading = new int[capacity];
+            speed = new float[capacity];
+            flags = new long[capacity];
+            mech = new int[capacity];
+            seen = new int[capacity];
+            free = new int[capacity];
+            added = new int[capacity];
+            changed = new int[capacity];
+            changes = new int[capacity];
+            removed = new int[capacity];
+            return;
+        }
+
+        idCodes = Arrays.copyOf(idCodes, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        heading = Arrays.copyOf(heading, capacity);
+        speed = Arrays.copyOf(speed, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        mech = Arrays.copyOf(mech, capacity);
+        seen = Arrays.copyOf(seen, capacity);
+        free = Arrays.copyOf(free, capacity);
+        added = Arrays.copyOf(added, capacity);
+        changed = Arrays.copyOf(changed, capacity);
+        changes = Arrays.copyOf(changes, capacity);
+        removed = Arrays.copyOf(removed, capacity);
+    }
+
+    /**
+     * Packs a contact ID of one or two characters into 16 bits.
+     * 
+     * @return packed ID, or -1 if it isn't a valid ID
+     */
+    private static int pack(CharSequence id) {
+        switch (id.length()) {
+        case 1:
+            return isIdChar(id.charAt(0)) ? id.charAt(0) : NONE;
+
+        case 2:
+            if (!isIdChar(id.charAt(0)) || !isIdChar(id.charAt(1))) {
+                return NONE;
+            }
+            return (id.charAt(0) << 8) | id.charAt(1);
+
+        default:
+            return NONE;
+        }
+    }
+
+    private static String unpack(int code) {
+        if (code < 0x100) {
+            return String.valueOf((char) code);
+        }
+
+        return new String(new char[] { (char) (code >> 8),
+                (char) (code & 0xFF) });
+    }
+
+    private static boolean isIdChar(char nextChar) {
+        return nextChar > ' ' && nextChar < 0x7F;
+    }
+
+    private static int flagBit(char flag) {
+        if (flag >= 'A' && flag <= 'Z') {
+            return flag - 'A';
+        } else if (flag >= 'a' && flag <= 'z') {
+            return 26 + flag - 'a';
+        }
+
+        return NONE;
+    }
+
+    private static boolean isUnknown(CharSequence value) {
+        return value.length() == 1 && value.charAt(0) == '-';
+    }
+}
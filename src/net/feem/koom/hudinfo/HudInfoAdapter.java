@@ -0,0 +1,47 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.hudinfo;
+
+/**
+ * A {@link HudInfoHandler} that ignores everything. Extend this to handle
+ * only the events of interest.
+ * 
+ * @author cu5
+ */
+public abstract class HudInfoAdapter implements HudInfoHandler {
+    @Override
+    public void beginResponse(int command, char type) {
+    }
+
+    @Override
+    public void textField(int index, CharSequence value) {
+    }
+
+    @Override
+    public void integerField(int index, long value, CharSequence text) {
+    }
+
+    @Override
+    public void numberField(int index, double value, CharSequence text) {
+    }
+
+    @Override
+    public void endResponse(boolean valid) {
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.hudinfo;
+
+import java.util.Arrays;
+
+/**
+ * Passes each HUDINFO response on to the handler registered for its command,
+ * so several handlers can share one parser. Responses to commands nobody
+ * handles are ignored.
+ * 
+ * @author cu5
+ */
+public class HudInfoDispatcher implements HudInfoHandler {
+    private int[] commands = new int[0];
+    private HudInfoHandler[] handlers = new HudInfoHandler[0];
+
+    // Handler for the current response, if any.
+    private HudInfoHandler current;
+
+    /**
+     * Registers the handler for a command, replacing any previous one.
+     * 
+     * @param command
+     *            command name, such as <code>C</code>
+     * @param handler
+     *            handler for responses, or <code>null</code> for none
+     */
+    public void setHandler(String command, HudInfoHandler handler) {
+        final int packed = HudInfoParser.command(command);
+
+        for (int ii = 0; ii < commands.length; ii++) {
+            if (commands[ii] == packed) {
+                if (handler == null) {
+                    remove(ii);
+                } else {
+                    handlers[ii] = handler;
+                }
+                return;
+            }
+        }
+
+        if (handler != null) {
+            commands = Arrays.copyOf(commands, commands.length + 1);
+            handlers = Arrays.copyOf(handlers, handlers.length + 1);
+            commands[commands.length - 1] = packed;
+            handlers[handlers.length - 1] = handler;
+        }
+    }
+
+    private void remove(int index) {
+        final int last = commands.length - 1;
+        commands[index] = commands[last];
+        handlers[index] = handlers[last];
+        commands = Arrays.copyOf(commands, last);
+        handlers = Arrays.copyOf(handlers, last);
+    }
+
+    @Override
+    public void beginResponse(int command, char type) {
+        current = null;
+        for (int ii = 0; ii < commands.length; ii++) {
+            if (commands[ii] == command) {
+                current = handlers[ii];
+                current.beginResponse(command, type);
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void textField(int index, CharSequence value) {
+        if (current != null) {
+            current.textField(index, value);
+        }
+    }
+
+    @Override
+    public void integerField(int index, long value, CharSequence text) {
+        if (current != null) {
+            current.integerField(index, value, text);
+        }
+    }
+
+    @Override
+    public void numberField(int index, double value, CharSequence text) {
+        if (current != null) {
+            current.numberField(index, value, text);
+        }
+    }
+
+    @Override
+    public void endResponse(boolean valid) {
+        if (current != null) {
+            final HudInfoHandler handler = current;
+            current = null;
+            handler.endResponse(valid);
+        }
+    }
+}
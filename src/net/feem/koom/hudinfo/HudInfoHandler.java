@@ -0,0 +1,90 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.hudinfo;
+
+/**
+ * Receives HUDINFO responses from a {@link HudInfoParser}. Each response is
+ * delivered as a {@link #beginResponse(int, char)} call, one call per field
+ * of its data, and an {@link #endResponse(boolean)} call. Fields are numbered
+ * from 0, and typed by what they contain: fields of only digits are passed as
+ * integers, decimal fractions as numbers, and anything else as text.
+ * 
+ * <p>
+ * Numeric fields are passed their text as well, for fields such as IDs or
+ * terrain that only happen to look like numbers. Text is passed as a
+ * {@link CharSequence} that is only valid for the duration of the call; it's
+ * reused for the next field, so call <code>toString()</code> on it to keep it.
+ * </p>
+ * 
+ * @author cu5
+ */
+public interface HudInfoHandler {
+    /**
+     * Called at the start of each response.
+     * 
+     * @param command
+     *            command responded to, packed as by
+     *            {@link HudInfoParser#command(CharSequence)}
+     * @param type
+     *            response type, such as {@link HudInfoParser#TYPE_LIST}
+     */
+    public void beginResponse(int command, char type);
+
+    /**
+     * @param index
+     *            field number
+     * @param value
+     *            field text, valid only during the call
+     */
+    public void textField(int index, CharSequence value);
+
+    /**
+     * Called for fields of only digits, with an optional sign, that fit in a
+     * long.
+     * 
+     * @param index
+     *            field number
+     * @param value
+     *            field value
+     * @param text
+     *            field text, valid only during the call
+     */
+    public void integerField(int index, long value, CharSequence text);
+
+    /**
+     * Called for fields with a decimal point.
+     * 
+     * @param index
+     *            field number
+     * @param value
+     *            field value
+     * @param text
+     *            field text, valid only during the call
+     */
+    public void numberField(int index, double value, CharSequence text);
+
+    /**
+     * Called at the end of each response.
+     * 
+     * @param valid
+     *            <code>false</code> if the response was too long, in which
+     *            case it was only delivered up to that point
+     */
+    public void endResponse(boolean valid);
+}
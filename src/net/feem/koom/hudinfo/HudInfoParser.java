@@ -18,14 +18,33 @@
  */
 package net.feem.koom.hudinfo;
 
+import java.nio.CharBuffer;
 import java.util.Random;
 
+import net.feem.koom.net.RawLineHandler;
+import net.feem.koom.services.Utility;
+
 /**
- * Parser for HUDINFO responses.
+ * Parser for HUDINFO responses, of the form
+ * <code>#HUD:&lt;key&gt;:&lt;command&gt;:&lt;type&gt;# &lt;data&gt;</code>,
+ * where the data is a list of comma separated fields. Lines are fed in as
+ * they arrive, in as many pieces as it takes, and parsed fields are passed to
+ * a {@link HudInfoHandler} as soon as they're complete. Once the field buffer
+ * has grown to fit the longest field seen, parsing allocates nothing.
+ * 
+ * <p>
+ * Only responses carrying our key are recognized, so other players can't
+ * forge them.
+ * </p>
+ * 
+ * <p>
+ * The parser can also take lines straight from an NVT, as a
+ * {@link RawLineHandler} for the prefix given by {@link #getLinePrefix()}.
+ * </p>
  * 
  * @author cu5
  */
-public class HudInfoParser {
+public class HudInfoParser implements RawLineHandler {
     public static enum ParseResult {
         // Not a HUDINFO response.
         UNPARSED,
@@ -37,13 +56,131 @@ public class HudInfoParser {
         PARSED;
     }
 
+    private static enum State {
+        // Matching "#HUD:", then our key and its ':'.
+        PREFIX, KEY,
+
+        // Reading the command, then the response type.
+        COMMAND, TYPE,
+
+        // Expecting '#' after the type, then an optional space.
+        TYPE_END, SPACE,
+
+        // Reading fields, or the whole of an error message.
+        FIELD, MESSAGE,
+
+        // Not a response; ignoring the rest of the line.
+        SKIP,
+
+        // Response too long; ignoring the rest of the line.
+        DISCARD;
+    }
+
+    /**
+     * A single response.
+     */
+    public static final char TYPE_RESPONSE = 'R';
+
+    /**
+     * One item of a list; the list ends with a {@link #TYPE_DONE} response.
+     */
+    public static final char TYPE_LIST = 'L';
+
+    /**
+     * The end of a list.
+     */
+    public static final char TYPE_DONE = 'D';
+
+    /**
+     * An error. The data is a single message field, commas and all.
+     */
+    public static final char TYPE_ERROR = 'E';
+
     private static final char[] KEY_CHARS = ("0123456789"
             + "abcdefghijklmnopqrstuvwxyz" + "ABCDEFGHIJKLMNOPQRSTUVWXYZ")
             .toCharArray();
 
+    private static final char[] PREFIX = { '#', 'H', 'U', 'D', ':' };
+
+    // Commands are packed into an int, 8 bits per character.
+    private static final int MAX_COMMAND = 4;
+
+    private static final int MAX_FIELD = 64 * 1024;
+
+    // Digits kept in a number; longer numbers are passed as text.
+    private static final int MAX_DIGITS = 18;
+
+    private static final double[] POW10 = new double[MAX_DIGITS + 1];
+
+    static {
+        POW10[0] = 1;
+        for (int ii = 1; ii < POW10.length; ii++) {
+            POW10[ii] = POW10[ii - 1] * 10;
+        }
+    }
+
     private static final Random rng = new Random();
 
-    private String key;
+    private volatile String key;
+
+    private HudInfoHandler handler;
+
+    private State state = State.PREFIX;
+    private int matched;
+
+    // Key matched against, fixed for the length of the line.
+    private String lineKey;
+
+    private int command;
+    private int commandLen;
+    private char type;
+
+    // Field being read, and a reusable view of it.
+    private char[] chars = new char[256];
+    private int len;
+    private CharBuffer text = CharBuffer.wrap(chars);
+    private int index;
+
+    // Field read as a number, as far as it still could be one.
+    private boolean numeric;
+    private boolean negative;
+    private long mantissa;
+    private int digits;
+    private int scale;
+    private boolean sawPoint;
+
+    /**
+     * Packs a command name, for comparing against the command passed to
+     * {@link HudInfoHandler#beginResponse(int, char)}.
+     * 
+     * @param name
+     *            command name, such as <code>GS</code>
+     * 
+     * @return packed command
+     */
+    public static int command(CharSequence name) {
+        if (name.length() < 1 || name.length() > MAX_COMMAND) {
+            throw new IllegalArgumentException("Invalid command: " + name);
+        }
+
+        int packed = 0;
+        for (int ii = 0; ii < name.length(); ii++) {
+            final char nextChar = name.charAt(ii);
+            if (!isCommandChar(nextChar)) {
+                throw new IllegalArgumentException("Invalid command: " + name);
+            }
+
+            packed = (packed << 8) | nextChar;
+        }
+
+        return packed;
+    }
+
+    private static boolean isCommandChar(char nextChar) {
+        return (nextChar >= 'A' && nextChar <= 'Z')
+                || (nextChar >= 'a' && nextChar <= 'z')
+                || (nextChar >= '0' && nextChar <= '9');
+    }
 
     public String getKey(int len) {
         if (key == null || key.length() != len) {
@@ -62,7 +199,332 @@ public class HudInfoParser {
         return key;
     }
 
+    /**
+     * Gets the prefix of responses carrying the current key, for diverting
+     * them from an NVT.
+     * 
+     * @return ASCII line prefix
+     */
+    public byte[] getLinePrefix() {
+        final String current = key;
+        if (current == null) {
+            throw new IllegalStateException("No key");
+        }
+
+        return Utility.getASCII(new String(PREFIX) + current + ':');
+    }
+
+    /**
+     * Sets the handler for parsed responses. Without one, responses are still
+     * recognized, but go nowhere.
+     * 
+     * @param handler
+     *            response handler, or <code>null</code> for none
+     */
+    public void setHandler(HudInfoHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Parses the next piece of the current line. A '\n' ends the line, and
+     * should be the last character of the piece; lines whose terminator has
+     * already been stripped are ended with {@link #endLine()} instead. Any
+     * '\r' is ignored.
+     * 
+     * @param input
+     *            next piece of the line
+     * 
+     * @return {@link ParseResult#UNPARSED} if the line isn't a response,
+     *         {@link ParseResult#PARSING} if it is, or may yet turn out to be,
+     *         and {@link ParseResult#PARSED} if it ended a response
+     */
     public ParseResult parse(CharSequence input) {
+        ParseResult result = getResult();
+
+        final int end = input.length();
+        for (int ii = 0; ii < end; ii++) {
+            result = feed(input.charAt(ii));
+        }
+
+        return result;
+    }
+
+    /**
+     * Parses the next piece of the current line, from ASCII bytes. This is
+     * otherwise the same as {@link #parse(CharSequence)}.
+     * 
+     * @param buf
+     *            byte array
+     * @param off
+     *            offset into byte array
+     * @param len
+     *            number of bytes to parse
+     * 
+     * @return result so far, as for {@link #parse(CharSequence)}
+     */
+    public ParseResult parse(byte[] buf, int off, int len) {
+        ParseResult result = getResult();
+
+        final int end = off + len;
+        for (int ii = off; ii < end; ii++) {
+            result = feed((char) (buf[ii] & 0xFF));
+        }
+
+        return result;
+    }
+
+    /**
+     * Ends the current line. The next piece parsed starts a new line.
+     * 
+     * @return {@link ParseResult#PARSED} if the line was a response, or
+     *         {@link ParseResult#UNPARSED} if it wasn't
+     */
+    public ParseResult endLine() {
+        ParseResult result = ParseResult.UNPARSED;
+
+        switch (state) {
+        case SPACE:
+        case FIELD:
+        case MESSAGE:
+            if (len != 0 || index != 0) {
+                endField();
+            }
+            endResponse(true);
+            result = ParseResult.PARSED;
+            break;
+
+        case DISCARD:
+            endResponse(false);
+            result = ParseResult.PARSED;
+            break;
+
+        default:
+            // Not a response, or not a whole one.
+            break;
+        }
+
+        state = State.PREFIX;
+        matched = 0;
+        return result;
+    }
+
+    @Override
+    public void processData(byte[] buf, int off, int len) {
+        parse(buf, off, len);
+    }
+
+    @Override
+    public void processEndOfLine() {
+        endLine();
+    }
+
+    /**
+     * Gets the result for the line so far.
+     */
+    private ParseResult getResult() {
+        return (state == State.SKIP) ? ParseResult.UNPARSED
+                : ParseResult.PARSING;
+    }
+
+    private ParseResult feed(char nextChar) {
+        switch (state) {
+        case FIELD:
+            // The common case first.
+            if (nextChar == ',') {
+                endField();
+            } else if (nextChar == '\n') {
+                return endLine();
+            } else if (nextChar != '\r') {
+                append(nextChar);
+            }
+            return ParseResult.PARSING;
+
+        case MESSAGE:
+            if (nextChar == '\n') {
+                return endLine();
+            } else if (nextChar != '\r') {
+                append(nextChar);
+            }
+            return ParseResult.PARSING;
+
+        case SKIP:
+        case DISCARD:
+            if (nextChar == '\n') {
+                return endLine();
+            }
+            return getResult();
+
+        default:
+            break;
+        }
+
+        if (nextChar == '\r') {
+            return getResult();
+        } else if (nextChar == '\n') {
+            return endLine();
+        }
+
+        switch (state) {
+        case PREFIX:
+            if (nextChar != PREFIX[matched]) {
+                return skip();
+            }
+
+            if (++matched == PREFIX.length) {
+                lineKey = key;
+                if (lineKey == null) {
+                    // We haven't asked for anything.
+                    return skip();
+                }
+
+                state = State.KEY;
+                matched = 0;
+            }
+            break;
+
+        case KEY:
+            if (matched == lineKey.length()) {
+                if (nextChar != ':') {
+                    return skip();
+                }
+
+                state = State.COMMAND;
+                command = 0;
+                commandLen = 0;
+            } else if (nextChar != lineKey.charAt(matched++)) {
+                return skip();
+            }
+            break;
+
+        case COMMAND:
+            if (nextChar == ':' && commandLen != 0) {
+                state = State.TYPE;
+            } else if (isCommandChar(nextChar) && commandLen < MAX_COMMAND) {
+                command = (command << 8) | nextChar;
+                commandLen++;
+            } else {
+                return skip();
+            }
+            break;
+
+        case TYPE:
+            if (nextChar < 'A' || nextChar > 'Z') {
+                return skip();
+            }
+
+            type = nextChar;
+            state = State.TYPE_END;
+            break;
+
+        case TYPE_END:
+            if (nextChar != '#') {
+                return skip();
+            }
+
+            // From here on, this is definitely a response.
+            if (handler != null) {
+                handler.beginResponse(command, type);
+            }
+
+            index = 0;
+            resetField();
+            state = State.SPACE;
+            break;
+
+        case SPACE:
+            state = (type == TYPE_ERROR) ? State.MESSAGE : State.FIELD;
+            if (nextChar != ' ') {
+                return feed(nextChar);
+            }
+            break;
+
+        default:
+            throw new AssertionError(state);
+        }
+
+        return ParseResult.PARSING;
+    }
+
+    private ParseResult skip() {
+        state = State.SKIP;
         return ParseResult.UNPARSED;
     }
+
+    private void append(char nextChar) {
+        if (len == chars.length) {
+            if (len == MAX_FIELD) {
+                // Give up on the rest of the response.
+                state = State.DISCARD;
+                return;
+            }
+
+            final char[] grown = new char[Math.min(len * 2, MAX_FIELD)];
+            System.arraycopy(chars, 0, grown, 0, len);
+            chars = grown;
+            text = CharBuffer.wrap(chars);
+        }
+
+        chars[len++] = nextChar;
+
+        if (!numeric) {
+            return;
+        }
+
+        // Keep track of the field's value, in case it's a number.
+        if (nextChar >= '0' && nextChar <= '9') {
+            if (digits == MAX_DIGITS) {
+                numeric = false;
+                return;
+            }
+
+            mantissa = mantissa * 10 + (nextChar - '0');
+            digits++;
+            if (sawPoint) {
+                scale++;
+            }
+        } else if (nextChar == '.' && !sawPoint) {
+            sawPoint = true;
+        } else if (nextChar == '-' && len == 1) {
+            negative = true;
+        } else {
+            numeric = false;
+        }
+    }
+
+    private void endField() {
+        if (handler != null) {
+            text.clear();
+            text.limit(len);
+
+            if (numeric && digits != 0 && state != State.MESSAGE) {
+                final long value = negative ? -mantissa : mantissa;
+                if (sawPoint) {
+                    handler.numberField(index, value / POW10[scale], text);
+                } else {
+                    handler.integerField(index, value, text);
+                }
+            } else {
+                handler.textField(index, text);
+            }
+        }
+
+        index++;
+        resetField();
+    }
+
+    private void resetField() {
+        len = 0;
+        numeric = true;
+        negative = false;
+        mantissa = 0;
+        digits = 0;
+        scale = 0;
+        sawPoint = false;
+    }
+
+    private void endResponse(boolean valid) {
+        if (handler != null) {
+            handler.endResponse(valid);
+        }
+    }
 }
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.hudinfo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.feem.koom.net.ClientNVT;
+import net.feem.koom.net.RTTStats;
+
+/**
+ * Polls the server with HUDINFO queries, at rates that adapt to how often the
+ * answers change. A query whose answer changed is asked again twice as soon;
+ * one whose answer stayed the same waits half as long again, up to its
+ * maximum interval. In combat, every query is asked as often as it's allowed.
+ * 
+ * <p>
+ * A query is never asked again while it's still waiting for an answer, and
+ * no query is asked more often than twice the measured round trip time.
+ * Queries that are due at about the same time are sent together, in a single
+ * write.
+ * </p>
+ * 
+ * <p>
+ * The scheduler sits between the parser and the real response handler,
+ * passing everything on, so it can see when queries have been answered.
+ * </p>
+ * 
+ * @author cu5
+ */
+public class HudInfoScheduler implements HudInfoHandler, Runnable {
+    // HUDINFO keys may be 10 to 20 characters.
+    private static final int KEY_LENGTH = 16;
+
+    // Queries due within this fraction of their interval are sent early, to
+    // go along with others.
+    private static final int COALESCE_DIVISOR = 4;
+
+    // Minimum time to wait for an answer before presuming it lost.
+    private static final long MIN_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    // Intervals are kept at least this many round trips.
+    private static final int RTT_MULTIPLE = 2;
+
+    private final ClientNVT nvt;
+    private final HudInfoParser parser;
+    private final HudInfoHandler handler;
+
+    // Guarded by this.
+    private Query[] queries = new Query[0];
+    private boolean combat;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> wakeup;
+    private long wakeupTime;
+
+    // Query being answered, used only by the reader.
+    private Query current;
+    private char currentType;
+
+    private static final class Query {
+        private final int command;
+        private final char[] line;
+        private final long minInterval;
+        private final long maxInterval;
+
+        private long interval;
+        private long due;
+
+        private boolean outstanding;
+        private long sent;
+
+        // Hash of the answer being received, and the last one.
+        private boolean answering;
+        private int hash;
+        private int lastHash;
+        private boolean answered;
+
+        private long answers;
+        private long changes;
+
+        private Query(int command, char[] line, long minInterval,
+                long maxInterval) {
+            this.command = command;
+            this.line = line;
+            this.minInterval = minInterval;
+            this.maxInterval = maxInterval;
+            this.interval = minInterval;
+        }
+    }
+
+    /**
+     * Creates a scheduler.
+     * 
+     * @param nvt
+     *            connection to the server
+     * @param parser
+     *            parser for the server's responses
+     * @param handler
+     *            handler to pass responses on to
+     */
+    public HudInfoScheduler(ClientNVT nvt, HudInfoParser parser,
+            HudInfoHandler handler) {
+        this.nvt = nvt;
+        this.parser = parser;
+        this.handler = handler;
+    }
+
+    /**
+     * Adds a query to poll. Queries start out at their minimum interval.
+     * 
+     * @param command
+     *            command, such as <code>GS</code>
+     * @param arguments
+     *            arguments for the command, or <code>null</code> for none
+     * @param minInterval
+     *            shortest time between queries
+     * @param maxInterval
+     *            longest time between queries
+     * @param unit
+     *            unit of the intervals
+     */
+    public synchronized void addQuery(String command, String arguments,
+            long minInterval, long maxInterval, TimeUnit unit) {
+        if (minInterval <= 0 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Invalid intervals");
+        }
+
+        final int packed = HudInfoParser.command(command);
+        if (find(packed) != null) {
+            throw new IllegalArgumentException("Already polling " + command);
+        }
+
+        String line = "hudinfo " + command.toLowerCase();
+        if (arguments != null) {
+            line += " " + arguments;
+        }
+
+        final Query query = new Query(packed, line.toCharArray(), unit
+                .toNanos(minInterval), unit.toNanos(maxInterval));
+        query.due = System.nanoTime();
+
+        queries = Arrays.copyOf(queries, queries.length + 1);
+        queries[queries.length - 1] = query;
+
+        reschedule(query.due);
+    }
+
+    /**
+     * Gets the current polling interval of a query.
+     * 
+     * @param command
+     *            command polled
+     * @param unit
+     *            unit of the result
+     * 
+     * @return polling interval, not counting combat or round trip limits
+     */
+    public synchronized long getInterval(String command, TimeUnit unit) {
+        final Query query = find(HudInfoParser.command(command));
+        if (query == null) {
+            throw new IllegalArgumentException("Not polling " + command);
+        }
+
+        return unit.convert(query.interval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets whether we're in combat, and need every query as often as it can
+     * be had.
+     * 
+     * @param combat
+     *            if in combat
+     */
+    public synchronized void setCombat(boolean combat) {
+        if (this.combat == combat) {
+            return;
+        }
+
+        this.combat = combat;
+
+        // Pull in the next query times, or let them out again.
+        for (Query query : queries) {
+            if (!query.outstanding && query.answered) {
+                query.due = query.sent + getInterval(query);
+            }
+        }
+
+        reschedule(System.nanoTime());
+    }
+
+    /**
+     * Starts polling. The parser is given a fresh key, which is sent to the
+     * server first, and this scheduler is made the parser's handler.
+     * 
+     * @param executor
+     *            executor to send queries from
+     * 
+     * @throws IOException
+     *             if there was an underlying I/O error
+     */
+    public void start(ScheduledExecutorService executor) throws IOException {
+        final String key = parser.getKey(KEY_LENGTH);
+        parser.setHandler(this);
+
+        final char[] line = ("hudinfo key=" + key).toCharArray();
+        synchronized (nvt.getWriteLock()) {
+            nvt.writeLine(line, 0, line.length);
+            nvt.flush();
+        }
+
+        synchronized (this) {
+            this.executor = executor;
+            reschedule(System.nanoTime());
+        }
+    }
+
+    /**
+     * Stops polling.
+     */
+    public synchronized void stop() {
+        executor = null;
+        if (wakeup != null) {
+            wakeup.cancel(false);
+            wakeup = null;
+        }
+    }
+
+    /**
+     * Sends whichever queries are due.
+     */
+    @Override
+    public void run() {
+        // Lines to send are copied out, since queries may be added while
+        // they're written.
+        final char[][] lines;
+        int count = 0;
+        synchronized (this) {
+            wakeup = null;
+            if (executor == null) {
+                return;
+            }
+
+            lines = new char[queries.length][];
+
+            final long now = System.nanoTime();
+            final long timeout = getTimeout();
+
+            for (Query query : queries) {
+                if (query.outstanding) {
+                    if (now - query.sent < timeout) {
+                        continue;
+                    }
+
+                    // Presumed lost; ask again.
+                    query.outstanding = false;
+                    query.answering = false;
+                }
+
+                final long slack = getInterval(query) / COALESCE_DIVISOR;
+                if (now - (query.due - slack) >= 0) {
+                    query.outstanding = true;
+                    query.sent = now;
+                    lines[count++] = query.line;
+                }
+            }
+        }
+
+        try {
+            if (count != 0) {
+                synchronized (nvt.getWriteLock()) {
+                    for (int ii = 0; ii < count; ii++) {
+                        nvt.writeLine(lines[ii], 0, lines[ii].length);
+                    }
+                    nvt.flush();
+                }
+            }
+        } catch (IOException ex) {
+            // Connection closed; the reader will find out.
+            stop();
+            return;
+        }
+
+        synchronized (this) {
+            reschedule(nextWakeup());
+        }
+    }
+
+    @Override
+    public void beginResponse(int command, char type) {
+        synchronized (this) {
+            current = find(command);
+            currentType = type;
+
+            if (current != null && !current.answering) {
+                current.answering = true;
+                current.hash = 1;
+            }
+
+            fold(type);
+        }
+
+        handler.beginResponse(command, type);
+    }
+
+    @Override
+    public void textField(int index, CharSequence value) {
+        if (current != null) {
+            fold(index);
+            for (int ii = 0; ii < value.length(); ii++) {
+                fold(value.charAt(ii));
+            }
+        }
+
+        handler.textField(index, value);
+    }
+
+    @Override
+    public void integerField(int index, long value, CharSequence text) {
+        if (current != null) {
+            fold(index);
+            fold((int) (value ^ (value >>> 32)));
+        }
+
+        handler.integerField(index, value, text);
+    }
+
+    @Override
+    public void numberField(int index, double value, CharSequence text) {
+        if (current != null) {
+            final long bits = Double.doubleToLongBits(value);
+            fold(index);
+            fold((int) (bits ^ (bits >>> 32)));
+        }
+
+        handler.numberField(index, value, text);
+    }
+
+    @Override
+    public void endResponse(boolean valid) {
+        try {
+            handler.endResponse(valid);
+        } finally {
+            synchronized (this) {
+                if (current != null && isComplete(currentType)) {
+                    answer(current, valid);
+                }
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Tests if a response of the given type completes an answer. Anything
+     * else, such as a list item, is only part of one.
+     */
+    private static boolean isComplete(char type) {
+        switch (type) {
+        case HudInfoParser.TYPE_RESPONSE:
+        case HudInfoParser.TYPE_ERROR:
+        case HudInfoParser.TYPE_DONE:
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
+    private void fold(int value) {
+        if (current != null) {
+            current.hash = 31 * current.hash + value;
+        }
+    }
+
+    /**
+     * Adapts a query's interval to its answer.
+     */
+    private void answer(Query query, boolean valid) {
+        assert Thread.holdsLock(this);
+
+        query.answering = false;
+        query.answers++;
+
+        if (valid) {
+            final boolean changed = !query.answered
+                    || query.hash != query.lastHash;
+            query.lastHash = query.hash;
+            query.answered = true;
+
+            if (changed) {
+                query.changes++;
+                query.interval = Math.max(query.minInterval,
+                        query.interval / 2);
+            } else {
+                query.interval = Math.min(query.maxInterval, query.interval
+                        + query.interval / 2);
+            }
+        }
+
+        if (query.outstanding) {
+            // Answers we didn't ask for don't count against the next query.
+            query.outstanding = false;
+            query.due = query.sent + getInterval(query);
+            reschedule(query.due);
+        }
+    }
+
+    /**
+     * Gets the interval to use for a query right now.
+     */
+    private long getInterval(Query query) {
+        long interval = combat ? query.minInterval : query.interval;
+
+        final long rtt = getRTT();
+        if (interval < RTT_MULTIPLE * rtt) {
+            interval = RTT_MULTIPLE * rtt;
+        }
+
+        return interval;
+    }
+
+    private long getTimeout() {
+        return Math.max(MIN_TIMEOUT, 4 * getRTT());
+    }
+
+    private long getRTT() {
+        final RTTStats stats = nvt.getRTTStats();
+        return (stats.getCount() == 0) ? 0 : stats.getPercentileNanos(90);
+    }
+
+    /**
+     * Finds the time the next query needs attention.
+     */
+    private long nextWakeup() {
+        final long now = System.nanoTime();
+        long next = now + getTimeout();
+
+        for (Query query : queries) {
+            final long time = query.outstanding ? query.sent + getTimeout()
+                    : query.due;
+            if (time - next < 0) {
+                next = time;
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Makes sure the scheduler wakes up by the given time.
+     */
+    private void reschedule(long time) {
+        assert Thread.holdsLock(this);
+
+        if (executor == null) {
+            return;
+        }
+
+        if (wakeup != null) {
+            if (wakeupTime - time <= 0) {
+                // Already waking up soon enough.
+                return;
+            }
+            wakeup.cancel(false);
+        }
+
+        wakeupTime = time;
+        wakeup = executor.schedule(this, Math.max(0, time - System.nanoTime()),
+                TimeUnit.NANOSECONDS);
+    }
+
+    private Query find(int command) {
+        for (Query query : queries) {
+            if (query.command == command) {
+                return query;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.hudinfo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Terrain and elevation of a tactical map, one byte of each per hex, packed
+ * into a grid. The grid grows to fit whatever part of the map has been seen,
+ * and tracks a dirty rectangle around the hexes that have changed.
+ * 
+ * <p>
+ * A map may be kept in a memory-mapped file, so what's known of it survives
+ * from one session to the next. The file is a 16 byte header (the magic
+ * number, then the width and height), the terrain grid, and the elevation
+ * grid, each row by row.
+ * </p>
+ * 
+ * @author cu5
+ */
+public class TacticalMap implements Closeable {
+    static final long MAGIC = 0x4B4F4F4D4D415031L; // "KOOMMAP1"
+
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Terrain of a hex that hasn't been seen.
+     */
+    public static final char UNKNOWN = '\0';
+
+    // Grid dimensions are rounded up to this.
+    private static final int GRANULE = 32;
+
+    private final String id;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    // Header and grids, either mapped or on the heap.
+    private ByteBuffer grid;
+    private int width;
+    private int height;
+
+    // Dirty rectangle, inclusive, or empty if left > right.
+    private int left = Integer.MAX_VALUE;
+    private int top = Integer.MAX_VALUE;
+    private int right = Integer.MIN_VALUE;
+    private int bottom = Integer.MIN_VALUE;
+
+    /**
+     * Creates a map kept in memory only.
+     * 
+     * @param id
+     *            map ID
+     */
+    public TacticalMap(String id) {
+        this.id = id;
+        this.file = null;
+        this.channel = null;
+
+        grid = ByteBuffer.allocate(HEADER_SIZE);
+        writeHeader();
+    }
+
+    /**
+     * Opens a map kept in a file, creating the file if need be. An existing
+     * file starts the map off with everything previously seen, none of it
+     * dirty.
+     * 
+     * @param id
+     *            map ID
+     * @param path
+     *            map file
+     * 
+     * @throws IOException
+     *             if the file can't be opened, or isn't a map
+     */
+    public TacticalMap(String id, File path) throws IOException {
+        this.id = id;
+
+        file = new RandomAccessFile(path, "rw");
+
+        boolean success = false;
+        try {
+            channel = file.getChannel();
+
+            if (file.length() == 0) {
+                map(0, 0);
+                writeHeader();
+            } else {
+                readHeader();
+            }
+
+            success = true;
+        } finally {
+            if (!success) {
+                file.close();
+            }
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the width of the grid. Hexes at or beyond this are unknown.
+     * 
+     * @return grid width, in hexes
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the grid. Hexes at or beyond this are unknown.
+     * 
+     * @return grid height, in hexes
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the terrain of a hex.
+     * 
+     * @param x
+     *            hex column
+     * @param y
+     *            hex row
+     * 
+     * @return terrain character, or {@link #UNKNOWN}
+     */
+    public char getTerrain(int x, int y) {
+        if (!contains(x, y)) {
+            return UNKNOWN;
+        }
+
+        return (char) (grid.get(HEADER_SIZE + y * width + x) & 0xFF);
+    }
+
+    /**
+     * Gets the elevation of a hex.
+     * 
+     * @param x
+     *            hex column
+     * @param y
+     *            hex row
+     * 
+     * @return elevation, or 0 if unknown
+     */
+    public int getElevation(int x, int y) {
+        if (!contains(x, y)) {
+            return 0;
+        }
+
+        return grid.get(HEADER_SIZE + (height + y) * width + x);
+    }
+
+    /**
+     * Tests if the terrain of every hex in a rectangle is known.
+     * 
+     * @param x0
+     *            left column
+     * @param y0
+     *            top row
+     * @param x1
+     *            right column, inclusive
+     * @param y1
+     *            bottom row, inclusive
+     * 
+     * @return if the whole rectangle is known
+     */
+    public boolean isKnown(int x0, int y0, int x1, int y1) {
+        if (x0 < 0 || y0 < 0 || x1 >= width || y1 >= height) {
+            return false;
+        }
+
+        for (int y = y0; y <= y1; y++) {
+            final int row = HEADER_SIZE + y * width;
+            for (int x = x0; x <= x1; x++) {
+                if (grid.get(row + x) == UNKNOWN) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Merges one hex into the map, growing the grid if need be.
+     * 
+     * @param x
+     *            hex column
+     * @param y
+     *            hex row
+     * @param terrain
+     *            terrain character; must be ASCII
+     * @param elevation
+     *            elevation
+     * 
+     * @throws IOException
+     *             if the map file couldn't be grown, or the map would be too
+     *             large
+     */
+    public void set(int x, int y, char terrain, int elevation)
+            throws IOException {
+        if (x < 0 || y < 0) {
+            throw new IllegalArgumentException("Invalid hex");
+        }
+
+        if (x >= width || y >= height) {
+            grow(Math.max(x + 1L, width), Math.max(y + 1L, height));
+        }
+
+        final int pos = HEADER_SIZE + y * width + x;
+        final int elevPos = pos + height * width;
+        if (grid.get(pos) == (byte) terrain
+                && grid.get(elevPos) == (byte) elevation) {
+            return;
+        }
+
+        grid.put(pos, (byte) terrain);
+        grid.put(elevPos, (byte) elevation);
+
+        if (x < left) {
+            left = x;
+        }
+        if (x > right) {
+            right = x;
+        }
+        if (y < top) {
+            top = y;
+        }
+        if (y > bottom) {
+            bottom = y;
+        }
+    }
+
+    /**
+     * Tests if any hexes have changed since the dirty rectangle was last
+     * cleared.
+     * 
+     * @return if anything has changed
+     */
+    public boolean isDirty() {
+        return left <= right;
+    }
+
+    public int getDirtyLeft() {
+        return left;
+    }
+
+    public int getDirtyTop() {
+        return top;
+    }
+
+    /**
+     * @return right column of the dirty rectangle, inclusive
+     */
+    public int getDirtyRight() {
+        return right;
+    }
+
+    /**
+     * @return bottom row of the dirty rectangle, inclusive
+     */
+    public int getDirtyBottom() {
+        return bottom;
+    }
+
+    public void clearDirty() {
+        left = Integer.MAX_VALUE;
+        top = Integer.MAX_VALUE;
+        right = Integer.MIN_VALUE;
+        bottom = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Writes changes out to the map file, if there is one.
+     */
+    public void flush() {
+        if (grid instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) grid).force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            flush();
+            grid = null;
+        } finally {
+            file.close();
+        }
+    }
+
+    private boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    /**
+     * Grows the grid to at least the given size, moving the existing rows to
+     * their new places.
+     */
+    private void grow(long minWidth, long minHeight) throws IOException {
+        final int newSize = (int) getSize(roundUp(minWidth),
+                roundUp(minHeight));
+        final int newWidth = (int) roundUp(minWidth);
+        final int newHeight = (int) roundUp(minHeight);
+
+        // Save the old grids; growth is rare enough not to matter.
+        final byte[] old = new byte[2 * width * height];
+        grid.position(HEADER_SIZE);
+        grid.get(old);
+        grid.clear();
+
+        final int oldWidth = width;
+        final int oldHeight = height;
+
+        if (channel == null) {
+            grid = ByteBuffer.allocate(newSize);
+        } else {
+            map(newWidth, newHeight);
+            zero();
+        }
+
+        width = newWidth;
+        height = newHeight;
+        writeHeader();
+
+        for (int plane = 0; plane < 2; plane++) {
+            final int base = HEADER_SIZE + plane * width * height;
+            for (int y = 0; y < oldHeight; y++) {
+                grid.position(base + y * width);
+                grid.put(old, (plane * oldHeight + y) * oldWidth, oldWidth);
+            }
+        }
+        grid.clear();
+    }
+
+    private static long roundUp(long size) {
+        return (size + GRANULE - 1) / GRANULE * GRANULE;
+    }
+
+    /**
+     * Gets the size of the header and grids, which must fit in a buffer
+     * whether mapped or on the heap.
+     */
+    private static long getSize(long newWidth, long newHeight)
+            throws IOException {
+        // Neither dimension is much over 2^31, so the product can't overflow.
+        if (newWidth * newHeight > (Integer.MAX_VALUE - HEADER_SIZE) / 2) {
+            throw new IOException("Map too large");
+        }
+
+        return HEADER_SIZE + 2 * newWidth * newHeight;
+    }
+
+    private void map(int newWidth, int newHeight) throws IOException {
+        final long size = getSize(newWidth, newHeight);
+
+        // Only ever grown, since some platforms can't truncate a file that's
+        // still mapped.
+        if (file.length() < size) {
+            file.setLength(size);
+        }
+        grid = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Marks every hex of a newly mapped grid unknown.
+     */
+    private void zero() {
+        final byte[] zeros = new byte[4096];
+
+        grid.position(HEADER_SIZE);
+        while (grid.hasRemaining()) {
+            grid.put(zeros, 0, Math.min(zeros.length, grid.remaining()));
+        }
+        grid.clear();
+    }
+
+    private void writeHeader() {
+        grid.putLong(0, MAGIC);
+        grid.putInt(8, width);
+        grid.putInt(12, height);
+    }
+
+    private void readHeader() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+
+        if (header.remaining() != HEADER_SIZE || header.getLong() != MAGIC) {
+            throw new IOException("Not a map file");
+        }
+
+        final int fileWidth = header.getInt();
+        final int fileHeight = header.getInt();
+        final long size = HEADER_SIZE + 2L * fileWidth * fileHeight;
+        if (fileWidth < 0 || fileHeight < 0 || size > file.length()
+                || size > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt map file");
+        }
+
+        grid = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        width = fileWidth;
+        height = fileHeight;
+    }
+}
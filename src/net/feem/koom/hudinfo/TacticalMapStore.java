@@ -0,0 +1,289 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.hudinfo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Merges the terrain reported by the HUDINFO tactical (T) command into a
+ * {@link TacticalMap}. Each response covers a rectangle of the map, given in
+ * its first line, followed by a list item per row of hexes: the row number,
+ * then a terrain character and an elevation digit for each hex.
+ * 
+ * <p>
+ * Given a directory, maps are kept there in files named after the map ID, so
+ * a reconnect starts out knowing whatever was seen before. Once the map
+ * around us is known, there's no need to ask for more than what's nearby.
+ * </p>
+ * 
+ * @author cu5
+ */
+public class TacticalMapStore extends HudInfoAdapter implements Closeable {
+    /**
+     * Receives map changes.
+     */
+    public static interface Listener {
+        /**
+         * Called at the end of each response that changed the map. The map's
+         * dirty rectangle covers the changes, and is cleared once this
+         * returns.
+         * 
+         * @param map
+         *            map that changed
+         */
+        public void processMap(TacticalMap map);
+    }
+
+    private static final int COMMAND = HudInfoParser.command("T");
+
+    // Field positions in the first line, and in each list item.
+    private static final int FIELD_LEFT = 0;
+    private static final int FIELD_MAP_ID = 4;
+    private static final int FIELD_ROW = 0;
+    private static final int FIELD_TERRAIN = 1;
+
+    private final File directory;
+
+    private Listener listener;
+    private TacticalMap map;
+    private IOException error;
+
+    // Response being read.
+    private boolean inHeader;
+    private boolean inRow;
+    private boolean inDone;
+    private final StringBuilder mapId = new StringBuilder();
+    private int left;
+    private int row;
+
+    /**
+     * Creates a store.
+     * 
+     * @param directory
+     *            directory for map files, or <code>null</code> to keep maps in
+     *            memory only
+     */
+    public TacticalMapStore(File directory) {
+        this.directory = directory;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Gets the map last reported on.
+     * 
+     * @return current map, or <code>null</code> if none yet
+     */
+    public TacticalMap getMap() {
+        return map;
+    }
+
+    /**
+     * Gets the last error opening or growing a map file. Maps are kept in
+     * memory only after an error opening their file.
+     * 
+     * @return last error, or <code>null</code> if none
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (map != null) {
+            final TacticalMap old = map;
+            map = null;
+            old.close();
+        }
+    }
+
+    @Override
+    public void beginResponse(int command, char type) {
+        inHeader = false;
+        inRow = false;
+        inDone = false;
+
+        if (command != COMMAND) {
+            return;
+        }
+
+        switch (type) {
+        case HudInfoParser.TYPE_LIST:
+            inRow = (map != null);
+            row = -1;
+            break;
+
+        case HudInfoParser.TYPE_DONE:
+            inDone = true;
+            break;
+
+        case HudInfoParser.TYPE_ERROR:
+            break;
+
+        default:
+            inHeader = true;
+            mapId.setLength(0);
+            left = 0;
+            break;
+        }
+    }
+
+    @Override
+    public void textField(int index, CharSequence value) {
+        if (inHeader && index == FIELD_MAP_ID) {
+            mapId.append(value);
+        } else if (inRow && index == FIELD_TERRAIN) {
+            mergeRow(value);
+        }
+    }
+
+    @Override
+    public void integerField(int index, long value, CharSequence text) {
+        if (inHeader && index == FIELD_LEFT) {
+            left = (int) value;
+        } else if (inRow && index == FIELD_ROW) {
+            row = (int) value;
+        } else {
+            // Map IDs and terrain only look numeric sometimes.
+            textField(index, text);
+        }
+    }
+
+    @Override
+    public void numberField(int index, double value, CharSequence text) {
+        textField(index, text);
+    }
+
+    @Override
+    public void endResponse(boolean valid) {
+        if (inHeader) {
+            inHeader = false;
+            if (valid && mapId.length() != 0) {
+                select();
+            }
+        } else if (inDone) {
+            inDone = false;
+            endPoll();
+        }
+
+        inRow = false;
+    }
+
+    /**
+     * Ends a response, telling the listener about any changes.
+     */
+    private void endPoll() {
+        if (map == null || !map.isDirty()) {
+            return;
+        }
+
+        try {
+            final Listener current = listener;
+            if (current != null) {
+                current.processMap(map);
+            }
+        } finally {
+            map.clearDirty();
+        }
+    }
+
+    /**
+     * Switches to the map named in the current response, if it isn't the
+     * current one already.
+     */
+    private void select() {
+        if (map != null && map.getId().contentEquals(mapId)) {
+            return;
+        }
+
+        if (map != null) {
+            try {
+                map.close();
+            } catch (IOException ex) {
+                error = ex;
+            }
+            map = null;
+        }
+
+        final String id = mapId.toString();
+        if (directory != null) {
+            try {
+                map = new TacticalMap(id, new File(directory, getFileName(id)));
+                return;
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+
+        map = new TacticalMap(id);
+    }
+
+    private void mergeRow(CharSequence terrain) {
+        if (row < 0) {
+            return;
+        }
+
+        // Merging stops early if the map can't take the row.
+        final int end = terrain.length() - 1;
+        for (int ii = 0; ii < end && inRow; ii += 2) {
+            final char elevation = terrain.charAt(ii + 1);
+            merge(left + ii / 2, terrain.charAt(ii),
+                    (elevation >= '0' && elevation <= '9') ? elevation - '0'
+                            : 0);
+        }
+    }
+
+    private void merge(int x, char terrain, int elevation) {
+        if (row < 0 || x < 0 || terrain == TacticalMap.UNKNOWN
+                || terrain > 0x7F) {
+            return;
+        }
+
+        try {
+            map.set(x, row, terrain, elevation);
+        } catch (IOException ex) {
+            // Stop merging into a map we can't grow.
+            error = ex;
+            inRow = false;
+        }
+    }
+
+    /**
+     * Makes a safe file name from a map ID.
+     */
+    private static String getFileName(String id) {
+        final StringBuilder sb = new StringBuilder(id.length() + 4);
+        for (int ii = 0; ii < id.length(); ii++) {
+            final char nextChar = id.charAt(ii);
+            if ((nextChar >= 'A' && nextChar <= 'Z')
+                    || (nextChar >= 'a' && nextChar <= 'z')
+                    || (nextChar >= '0' && nextChar <= '9')
+                    || nextChar == '-') {
+                sb.append(nextChar);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.append(".map").toString();
+    }
+}
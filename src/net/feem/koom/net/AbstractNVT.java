@@ -19,11 +19,14 @@
 package net.feem.koom.net;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * Base class for other network VT implementations. A network VT provides a high
@@ -45,32 +48,88 @@ public abstract class AbstractNVT {
         STOP, STOP_UNTERMINATED, STOP_EOF;
     }
 
+    private static final int DECODE_BUFFER_SIZE = 8192;
+
+    // Timing Mark option (RFC 860).
+    protected static final int OPTION_TIMING_MARK = 6;
+
+    // Suppress Go Ahead (RFC 858) and End of Record (RFC 885) options.
+    protected static final int OPTION_SGA = 3;
+    protected static final int OPTION_EOR = 25;
+
     private final TELNETProtocol proto;
 
-    private final Reader reader;
+    // Bytes waiting to be decoded, left in fill mode between reads. Input
+    // passes through the demultiplexer first, which may divert some lines.
+    private final LineDemultiplexer demux;
+    private final InputStream input;
+    private final ByteBuffer inBytes = ByteBuffer.allocate(DECODE_BUFFER_SIZE);
+    private final CharsetDecoder decoder;
+    private boolean inputEOF;
+
+    // Characters waiting to be normalized, left in drain mode between reads.
+    private final CharBuffer inChars = CharBuffer.allocate(DECODE_BUFFER_SIZE);
+
     private InputState inputState = InputState.START;
     private boolean sawCR;
-    private int savedChar = -1;
 
-    private final Writer writer;
+    // Line encoding buffer, reused (and grown as needed) under the write lock.
+    private final OutputStream output;
+    private final CharsetEncoder encoder;
+    private ByteBuffer outBytes = ByteBuffer.allocate(DECODE_BUFFER_SIZE);
+
     private final TELNETEventHandler outputHandler;
 
-    private boolean sawGA;
+    // Command marking the end of an output record, or 0 for none. Guarded by
+    // the write lock.
+    private byte recordMark = TELNETProtocol.CODE_GA;
 
     protected AbstractNVT(TELNETProtocol proto) {
         this.proto = proto;
 
-        try {
-            reader = new InputStreamReader(proto.getInputStream(), "UTF-8");
-            writer = new OutputStreamWriter(proto.getOutputStream(), "UTF-8");
-        } catch (UnsupportedEncodingException ex) {
-            // Every JVM should support UTF-8.
-            throw new AssertionError(ex);
-        }
+        final Charset charset = Charset.forName("UTF-8");
+
+        input = demux = new LineDemultiplexer(proto);
+        decoder = charset.newDecoder();
+        decoder.onMalformedInput(CodingErrorAction.REPLACE);
+        decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+        inChars.flip();
+
+        output = proto.getOutputStream();
+        encoder = charset.newEncoder();
+        encoder.onMalformedInput(CodingErrorAction.REPLACE);
+        encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
 
         outputHandler = proto.getOutputEventHandler();
     }
 
+    /**
+     * Gets the underlying TELNET protocol.
+     * 
+     * @return TELNET protocol
+     */
+    protected TELNETProtocol getProtocol() {
+        return proto;
+    }
+
+    /**
+     * Diverts lines starting with a prefix to a handler, as raw bytes, before
+     * they're decoded. Diverted lines are never returned by
+     * {@link #read(char[], int, int)}. This is meant for machine-readable
+     * lines, such as HUDINFO responses, that would only be a waste of effort
+     * to decode. Lines are diverted from relayed input too, though relaying
+     * then copies through a buffer, rather than straight to the target.
+     * 
+     * @param prefix
+     *            ASCII prefix of lines to divert
+     * @param handler
+     *            handler for diverted lines, or <code>null</code> to stop
+     *            diverting
+     */
+    public void divertLines(byte[] prefix, RawLineHandler handler) {
+        demux.setRoute(prefix, handler);
+    }
+
     /**
      * Gets the object used for synchronizing writes. Note that this includes
      * synchronizing modifications to state that affects writes.
@@ -78,7 +137,29 @@ public abstract class AbstractNVT {
      * @return lock object
      */
     public Object getWriteLock() {
-        return this;
+        return proto.getWriteLock();
+    }
+
+    /**
+     * Corks output for the calling thread, so that everything it flushes until
+     * the matching {@link #uncork()} goes out in a single write. This is
+     * useful around an event loop turn, or a burst of commands. Corks nest,
+     * and flushes are never deferred for longer than the protocol's maximum
+     * cork delay.
+     */
+    public void cork() {
+        proto.cork();
+    }
+
+    /**
+     * Uncorks output, performing any deferred flush once the last cork is
+     * removed.
+     * 
+     * @throws IOException
+     *             if there was an underlying I/O error
+     */
+    public void uncork() throws IOException {
+        proto.uncork();
     }
 
     /**
@@ -115,94 +196,39 @@ public abstract class AbstractNVT {
 
         inputState = InputState.START;
 
-        // Clean up any unfinished business.
-        if (savedChar != -1) {
-            if (len > 0) {
-                cbuf[off++] = (char) savedChar;
-                ii = 1;
-                savedChar = -1;
-            } else {
-                return 0;
-            }
-        }
-
         // Read characters up until the next boundary.
         try {
             while (ii < len) {
-                if (!reader.ready() && ii != 0) {
-                    // Would block, and we already have data.
-                    break;
-                }
-
-                final int nextChar = reader.read();
-                if (nextChar == -1) {
-                    // End of stream.
-                    if (ii == 0) {
-                        return -1;
-                    }
-
-                    inputState = InputState.STOP_EOF;
-                    return ii;
-                }
+                if (!inChars.hasRemaining()) {
+                    if (!decodeInput(ii == 0)) {
+                        // End of stream.
+                        if (ii == 0) {
+                            return -1;
+                        }
 
-                switch (nextChar) {
-                case '\0':
-                    if (sawCR) {
-                        sawCR = false;
-                        cbuf[off++] = '\r';
-                        ii++;
-                    } else {
-                        cbuf[off++] = '\0';
-                        ii++;
+                        inputState = InputState.STOP_EOF;
+                        return ii;
                     }
-                    break;
-
-                case '\r':
-                    if (sawCR) {
-                        // Not in compliance with RFC, but we'll be generous.
-                        cbuf[off++] = '\r';
-                        ii++;
-                    } else {
-                        sawCR = true;
-                    }
-                    break;
-
-                case '\n':
-                    // Not in compliance with RFC, but a fairly common mistake.
-                    // Our behavior is more useful to a MU* client.
-                    sawCR = false;
-                    inputState = InputState.STOP;
-                    return ii;
-
-                default:
-                    if (sawCR) {
-                        // Not in compliance with RFC, but we'll be generous.
-                        sawCR = false;
-                        cbuf[off++] = '\r';
-                        ii++;
 
-                        if (ii == len) {
-                            savedChar = nextChar;
+                    if (!inChars.hasRemaining()) {
+                        // Would block, or reached a boundary.
+                        if (endBoundary()) {
                             return ii;
                         }
+                        break;
                     }
+                }
 
-                    cbuf[off++] = (char) nextChar;
-                    ii++;
-                    break;
+                ii += normalize(cbuf, off + ii, len - ii);
+
+                if (inputState == InputState.STOP) {
+                    // End of line.
+                    return ii;
                 }
             }
         } catch (StreamStateException ex) {
-            if (sawGA) {
-                // Go Ahead.
-                proto.clear();
-                sawGA = false;
-
-                inputState = InputState.STOP_UNTERMINATED;
-                return ii;
-            }
-
-            // Stream reconfigured.
+            // Stream reconfigured the old way, by an event handler throwing.
+            proto.clear();
             inputState = InputState.CONFIG;
         } catch (IOException ex) {
             // I/O error.
@@ -219,6 +245,179 @@ public abstract class AbstractNVT {
         return ii;
     }
 
+    /**
+     * Handles an input boundary, once all the input before it has been read.
+     * 
+     * @return if the boundary ended a record
+     */
+    private boolean endBoundary() {
+        switch (proto.getInputBoundary()) {
+        case RECORD:
+            // Go Ahead or End of Record.
+            proto.clear();
+            inputState = InputState.STOP_UNTERMINATED;
+            return true;
+
+        case RECONFIG:
+            // Stream reconfigured.
+            proto.clear();
+            inputState = InputState.CONFIG;
+            return false;
+
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the next block of input characters. Partial multi-byte sequences
+     * are kept until the rest of their bytes arrive.
+     * 
+     * @param block
+     *            if we may block waiting for more input
+     * 
+     * @return <code>false</code> if the end of stream has been reached
+     * 
+     * @throws IOException
+     *             if there was an underlying I/O error
+     */
+    private boolean decodeInput(boolean block) throws IOException {
+        inChars.clear();
+
+        try {
+            while (true) {
+                inBytes.flip();
+                decoder.decode(inBytes, inChars, inputEOF);
+                inBytes.compact();
+
+                if (inputEOF) {
+                    // Reset, so the decoder may be used again next time.
+                    decoder.flush(inChars);
+                    decoder.reset();
+                    return inChars.position() != 0;
+                }
+
+                if (inChars.position() != 0) {
+                    return true;
+                }
+
+                if (proto.getInputBoundary() != TELNETProtocol.Boundary.NONE) {
+                    // Everything up to the boundary has been decoded.
+                    return true;
+                }
+
+                if (!block) {
+                    return true;
+                }
+
+                // Need more bytes.
+                final int pos = inBytes.arrayOffset() + inBytes.position();
+                final int len = input.read(inBytes.array(), pos, inBytes
+                        .remaining());
+                if (len == -1) {
+                    inputEOF = true;
+                } else {
+                    inBytes.position(inBytes.position() + len);
+                }
+            }
+        } finally {
+            inChars.flip();
+        }
+    }
+
+    /**
+     * Transforms decoded characters from the standard CR NUL and CR LF
+     * sequences, stopping early at the end of a line.
+     * 
+     * @param cbuf
+     *            character array
+     * @param off
+     *            offset into character array
+     * @param len
+     *            maximum number of characters to write
+     * 
+     * @return the number of characters written
+     */
+    private int normalize(char[] cbuf, int off, int len) {
+        final char[] chars = inChars.array();
+        final int base = inChars.arrayOffset();
+        final int limit = base + inChars.limit();
+
+        int pos = base + inChars.position();
+        int ii = 0;
+
+        while (ii < len && pos < limit) {
+            if (!sawCR) {
+                // Copy ordinary characters in bulk.
+                final int end = pos + Math.min(len - ii, limit - pos);
+
+                int run = pos;
+                while (run < end) {
+                    final char nextChar = chars[run];
+                    if (nextChar == '\0' || nextChar == '\r'
+                            || nextChar == '\n') {
+                        break;
+                    }
+                    run++;
+                }
+
+                if (run != pos) {
+                    System.arraycopy(chars, pos, cbuf, off, run - pos);
+                    off += run - pos;
+                    ii += run - pos;
+                    pos = run;
+                    continue;
+                }
+            }
+
+            final char nextChar = chars[pos];
+
+            switch (nextChar) {
+            case '\0':
+                if (sawCR) {
+                    sawCR = false;
+                    cbuf[off++] = '\r';
+                    ii++;
+                } else {
+                    cbuf[off++] = '\0';
+                    ii++;
+                }
+                pos++;
+                break;
+
+            case '\r':
+                if (sawCR) {
+                    // Not in compliance with RFC, but we'll be generous.
+                    cbuf[off++] = '\r';
+                    ii++;
+                } else {
+                    sawCR = true;
+                }
+                pos++;
+                break;
+
+            case '\n':
+                // Not in compliance with RFC, but a fairly common mistake.
+                // Our behavior is more useful to a MU* client.
+                sawCR = false;
+                inputState = InputState.STOP;
+                inChars.position(pos + 1 - base);
+                return ii;
+
+            default:
+                // Not in compliance with RFC, but we'll be generous. The
+                // current character is left for the next pass.
+                sawCR = false;
+                cbuf[off++] = '\r';
+                ii++;
+                break;
+            }
+        }
+
+        inChars.position(pos - base);
+        return ii;
+    }
+
     /**
      * Tests if the most recent read ended because of a reconfiguration event.
      * 
@@ -281,17 +480,84 @@ public abstract class AbstractNVT {
      */
     public void writeLine(char[] cbuf, int off, int len) throws IOException {
         synchronized (getWriteLock()) {
-            for (int ii = 0; ii < len; ii++) {
-                final char nextChar = cbuf[off++];
-                writer.write(nextChar);
+            // Bare CRs each need a NUL added.
+            int bareCRs = 0;
+            for (int ii = off; ii < off + len; ii++) {
+                if (cbuf[ii] == '\r') {
+                    bareCRs++;
+                }
+            }
+
+            final int maxLen = (int) Math.ceil(len * encoder.maxBytesPerChar())
+                    + bareCRs + 2;
+            if (outBytes.capacity() < maxLen) {
+                outBytes = ByteBuffer.allocate(maxLen);
+            }
 
-                if (nextChar == '\r') {
-                    // Bare CR.
-                    writer.write('\0');
+            // Encode the whole line at once.
+            outBytes.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(cbuf, off, len), outBytes, true);
+            encoder.flush(outBytes);
+
+            final byte[] bytes = outBytes.array();
+            int end = outBytes.position();
+
+            if (bareCRs != 0) {
+                // Insert NULs, working backwards so each byte moves only once.
+                // A CR byte in UTF-8 can only ever be an actual CR.
+                int dst = end + bareCRs;
+                for (int src = end - 1; src != dst - 1; src--) {
+                    if (bytes[src] == '\r') {
+                        bytes[--dst] = '\0';
+                    }
+                    bytes[--dst] = bytes[src];
                 }
+
+                end += bareCRs;
             }
 
-            writer.write("\r\n");
+            bytes[end++] = '\r';
+            bytes[end++] = '\n';
+
+            output.write(bytes, 0, end);
+        }
+    }
+
+    /**
+     * Marks the end of a record, such as a prompt, to the remote end. This is
+     * an End of Record if that's been negotiated, or otherwise a Go Ahead,
+     * unless Go Aheads have been suppressed.
+     * 
+     * @throws IOException
+     *             if there was an underlying I/O error
+     */
+    public void writeRecordMark() throws IOException {
+        synchronized (getWriteLock()) {
+            if (recordMark != 0) {
+                flushInput();
+                outputHandler.processCommand(recordMark);
+            }
+        }
+    }
+
+    /**
+     * Sets how output records are marked, as options are negotiated.
+     * 
+     * @param eor
+     *            if End of Record is enabled
+     * @param sga
+     *            if Go Aheads are suppressed
+     */
+    protected void setRecordMark(boolean eor, boolean sga) {
+        synchronized (getWriteLock()) {
+            if (eor) {
+                recordMark = TELNETProtocol.CODE_EOR;
+            } else if (sga) {
+                recordMark = 0;
+            } else {
+                recordMark = TELNETProtocol.CODE_GA;
+            }
         }
     }
 
@@ -308,25 +574,226 @@ public abstract class AbstractNVT {
         }
     }
 
+    /**
+     * Relays input from the remote end to the remote end of another NVT,
+     * without decoding it. Data passes through as raw bytes, and only commands
+     * such as option negotiation are handled by this NVT. A Go Ahead or End of
+     * Record is passed on to the target, as whichever record mark the target
+     * has negotiated.
+     * 
+     * <p>
+     * Input that has been read in, but not yet returned by
+     * {@link #read(char[], int, int)}, is relayed first. So it's safe to
+     * switch from reading to relaying at any point, such as after a login.
+     * Lines are still diverted, as set by
+     * {@link #divertLines(byte[], RawLineHandler)}.
+     * </p>
+     * 
+     * @param target
+     *            NVT to relay to
+     * 
+     * @return the number of bytes relayed, or -1 if end of stream
+     * 
+     * @throws IOException
+     *             if there was an underlying I/O error
+     */
+    public int relay(AbstractNVT target) throws IOException {
+        if (hasDecodedInput()) {
+            synchronized (target.getWriteLock()) {
+                final int len = relayBuffered(target.output);
+                target.flushProtocol();
+                return len;
+            }
+        }
+
+        if (inputEOF) {
+            return -1;
+        }
+
+        int len = 0;
+        try {
+            if (demux.isFiltering()) {
+                // Read first, so the target isn't locked while we wait.
+                len = readFiltered();
+                if (len > 0) {
+                    synchronized (target.getWriteLock()) {
+                        target.output.write(inBytes.array(), 0, len);
+                        target.flushProtocol();
+                    }
+                }
+            } else {
+                len = proto.transferTo(target.proto);
+            }
+        } catch (StreamStateException ex) {
+            // Stream reconfigured the old way, by an event handler throwing.
+            proto.clear();
+        }
+
+        if (endRelay()) {
+            synchronized (target.getWriteLock()) {
+                target.writeRecordMark();
+                target.flushProtocol();
+            }
+        }
+
+        return len;
+    }
+
+    /**
+     * Relays input from the remote end to an output queue, without decoding
+     * it. Otherwise, this is the same as {@link #relay(AbstractNVT)}.
+     * 
+     * @param queue
+     *            queue to relay to
+     * 
+     * @return the number of bytes relayed, or -1 if end of stream
+     * 
+     * @throws IOException
+     *             if there was an underlying I/O error
+     */
+    public int relay(OutputQueue queue) throws IOException {
+        if (hasDecodedInput()) {
+            final int len = relayBuffered(queue);
+            queue.flush();
+            return len;
+        }
+
+        if (inputEOF) {
+            return -1;
+        }
+
+        int len = 0;
+        try {
+            if (demux.isFiltering()) {
+                len = readFiltered();
+                if (len > 0) {
+                    queue.write(inBytes.array(), 0, len);
+                    queue.flush();
+                }
+            } else {
+                len = proto.transferTo(queue);
+            }
+        } catch (StreamStateException ex) {
+            // Stream reconfigured the old way, by an event handler throwing.
+            proto.clear();
+        }
+
+        if (endRelay()) {
+            queue.writeRecordMark();
+        }
+
+        return len;
+    }
+
+    private boolean hasDecodedInput() {
+        return sawCR || inChars.hasRemaining() || inBytes.position() != 0;
+    }
+
+    /**
+     * Reads raw input through the demultiplexer, for relaying while lines are
+     * diverted. Nothing is left to decode while relaying, so the decode
+     * buffer is borrowed to hold it.
+     * 
+     * @return number of bytes read, which may be 0 if they were all diverted
+     *         or held back, or -1 if end of stream
+     */
+    private int readFiltered() throws IOException {
+        assert inBytes.position() == 0;
+        return demux.read(inBytes.array(), 0, inBytes.capacity());
+    }
+
+    /**
+     * Relays input left over from reading, encoding any characters that were
+     * already decoded back to bytes.
+     */
+    private int relayBuffered(OutputStream dest) throws IOException {
+        int len = 0;
+
+        if (sawCR) {
+            // The CR was held back, waiting for the next character.
+            sawCR = false;
+            dest.write('\r');
+            len++;
+        }
+
+        if (inChars.hasRemaining()) {
+            final ByteBuffer bytes = decoder.charset().encode(inChars);
+            dest.write(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                    bytes.remaining());
+            len += bytes.remaining();
+        }
+
+        if (inBytes.position() != 0) {
+            // Partial multi-byte sequences go as they are.
+            dest.write(inBytes.array(), inBytes.arrayOffset(), inBytes
+                    .position());
+            len += inBytes.position();
+
+            inBytes.clear();
+            decoder.reset();
+        }
+
+        return len;
+    }
+
+    /**
+     * Handles an input boundary after relaying.
+     * 
+     * @return if the boundary ended a record
+     */
+    private boolean endRelay() {
+        boolean record = false;
+
+        switch (proto.getInputBoundary()) {
+        case RECORD:
+            // Go Ahead or End of Record.
+            proto.clear();
+            record = true;
+            break;
+
+        case RECONFIG:
+            // Stream reconfigured.
+            proto.clear();
+            break;
+
+        default:
+            break;
+        }
+
+        doReconfig();
+        return record;
+    }
+
     protected class InputEventHandler implements TELNETEventHandler {
         private TELNETOption subOption;
 
         @Override
         public void processCommand(byte code) throws IOException {
-            if (code == TELNETProtocol.CODE_GA) {
-                sawGA = true;
-                throw new StreamStateException();
-            } else {
+            switch (code) {
+            case TELNETProtocol.CODE_GA:
+            case TELNETProtocol.CODE_EOR:
+                proto.setInputBoundary(TELNETProtocol.Boundary.RECORD);
+                break;
+
+            default:
                 // Treat the other commands as no-ops.
+                break;
             }
         }
 
         @Override
         public void processDO(int option) throws IOException {
             synchronized (getWriteLock()) {
-                // Unsupported option.
                 flushInput();
-                outputHandler.processWONT(option);
+                if (option == OPTION_TIMING_MARK) {
+                    // Everything before the mark has been handled, since we
+                    // process input in order. Answer right away, so the
+                    // other end measures only the network.
+                    outputHandler.processWILL(option);
+                } else {
+                    // Unsupported option.
+                    outputHandler.processWONT(option);
+                }
                 flushProtocol();
             }
         }
@@ -395,7 +862,8 @@ public abstract class AbstractNVT {
      *             if there's an I/O error
      */
     protected void flushInput() throws IOException {
-        writer.flush();
+        // Lines are encoded straight into the protocol, so there's nothing
+        // buffered here at the moment.
     }
 
     /**
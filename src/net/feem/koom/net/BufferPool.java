@@ -0,0 +1,179 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+/**
+ * A pool of I/O buffers shared between connections. Buffers come in power of
+ * two size classes, and connections lease them only while a read or write is
+ * actually in progress, so idle connections hold no buffers at all.
+ * 
+ * @author cu5
+ */
+public class BufferPool {
+    // Size classes run from 8 KiB to 64 KiB.
+    private static final int MIN_SHIFT = 13;
+    private static final int MAX_SHIFT = 16;
+
+    // Buffers kept per size class; the rest are left to the GC.
+    private static final int DEFAULT_MAX_FREE = 64;
+
+    private static final BufferPool shared = new BufferPool(DEFAULT_MAX_FREE);
+
+    private final byte[][][] free = new byte[MAX_SHIFT - MIN_SHIFT + 1][][];
+    private final int[] freeCount = new int[free.length];
+
+    private long hits;
+    private long misses;
+    private long discards;
+    private long leased;
+
+    /**
+     * Gets the pool shared by all connections.
+     * 
+     * @return shared pool
+     */
+    public static BufferPool getShared() {
+        return shared;
+    }
+
+    /**
+     * Creates a buffer pool.
+     * 
+     * @param maxFree
+     *            maximum number of free buffers kept per size class
+     */
+    public BufferPool(int maxFree) {
+        for (int ii = 0; ii < free.length; ii++) {
+            free[ii] = new byte[maxFree][];
+        }
+    }
+
+    /**
+     * Gets the size of the buffer that would be leased for a requested size.
+     * 
+     * @param size
+     *            requested size
+     * 
+     * @return actual size
+     */
+    public int getLeaseSize(int size) {
+        return 1 << (getSizeClass(size) + MIN_SHIFT);
+    }
+
+    /**
+     * Leases a buffer.
+     * 
+     * @param size
+     *            requested size; the buffer may be larger, or capped at the
+     *            largest size class
+     * 
+     * @return buffer
+     */
+    public byte[] lease(int size) {
+        final int sizeClass = getSizeClass(size);
+
+        synchronized (this) {
+            leased++;
+
+            final int count = freeCount[sizeClass];
+            if (count != 0) {
+                hits++;
+                freeCount[sizeClass] = count - 1;
+
+                final byte[] buf = free[sizeClass][count - 1];
+                free[sizeClass][count - 1] = null;
+                return buf;
+            }
+
+            misses++;
+        }
+
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Returns a leased buffer to the pool. The caller must not use it again.
+     * 
+     * @param buf
+     *            buffer from {@link #lease(int)}
+     */
+    public void release(byte[] buf) {
+        final int sizeClass = getSizeClass(buf.length);
+        if (buf.length != 1 << (sizeClass + MIN_SHIFT)) {
+            throw new IllegalArgumentException("Not a pooled buffer");
+        }
+
+        synchronized (this) {
+            leased--;
+
+            final int count = freeCount[sizeClass];
+            if (count == free[sizeClass].length) {
+                // Enough of these already.
+                discards++;
+                return;
+            }
+
+            free[sizeClass][count] = buf;
+            freeCount[sizeClass] = count + 1;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of released buffers that weren't kept, because their
+     * size class was already full.
+     * 
+     * @return number of discarded buffers
+     */
+    public synchronized long getDiscards() {
+        return discards;
+    }
+
+    /**
+     * Gets the number of buffers currently leased out.
+     * 
+     * @return number of outstanding leases
+     */
+    public synchronized long getLeased() {
+        return leased;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d hits, %d misses, %d discards, %d leased",
+                Long.valueOf(hits), Long.valueOf(misses), Long
+                        .valueOf(discards), Long.valueOf(leased));
+    }
+
+    private static int getSizeClass(int size) {
+        int shift = MIN_SHIFT;
+        while (shift < MAX_SHIFT && (1 << shift) < size) {
+            shift++;
+        }
+
+        return shift - MIN_SHIFT;
+    }
+}
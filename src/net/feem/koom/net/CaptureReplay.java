@@ -0,0 +1,262 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back the input side of a {@link SessionCapture}, as if it were coming
+ * from the original server. The capture is served over a loopback
+ * connection, so the whole input path is exercised, from the socket up
+ * through {@link TELNETProtocol} and {@link ClientNVT}.
+ * 
+ * <p>
+ * Input is replayed with its original timing, scaled by a speed factor, or
+ * as fast as it can be read. Output from the client is discarded.
+ * </p>
+ * 
+ * @author cu5
+ */
+public class CaptureReplay implements Closeable, Runnable {
+    /**
+     * Speed factor for replaying without any delays.
+     */
+    public static final double UNTHROTTLED = 0;
+
+    private final MappedByteBuffer data;
+    private final double speed;
+
+    private Socket peer;
+
+    private long records;
+    private long bytes;
+    private long maxLateNanos;
+
+    /**
+     * Opens a capture for replay.
+     * 
+     * @param path
+     *            capture file
+     * @param speed
+     *            speed factor, where 1 is the original speed and 2 is twice
+     *            as fast, or {@link #UNTHROTTLED}
+     * 
+     * @throws IOException
+     *             if the file isn't a capture, or can't be read
+     */
+    public CaptureReplay(File path, double speed) throws IOException {
+        if (speed < 0 || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("Invalid speed");
+        }
+
+        this.speed = speed;
+
+        final RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Capture too large");
+            }
+
+            // The mapping stays valid after the file is closed.
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+                    .size());
+        } finally {
+            file.close();
+        }
+
+        if (data.remaining() < SessionCapture.FILE_HEADER_SIZE
+                || data.getLong() != SessionCapture.MAGIC) {
+            throw new IOException("Not a capture file");
+        }
+
+        // Skip the start time.
+        data.getLong();
+    }
+
+    /**
+     * Creates the connection the capture will be replayed to. Must be called
+     * before {@link #run()}.
+     * 
+     * @return client end of the connection
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
+    public SocketConnection connect() throws IOException {
+        final InetAddress loopback = InetAddress.getByName(null);
+
+        final ServerSocket server = new ServerSocket(0, 1, loopback);
+        final Socket client;
+        try {
+            client = new Socket(loopback, server.getLocalPort());
+            peer = server.accept();
+        } finally {
+            server.close();
+        }
+
+        // Discard the client's output, so it never blocks.
+        final InputStream discard = peer.getInputStream();
+        final Thread thread = new Thread("Capture Discard") {
+            @Override
+            public void run() {
+                final byte[] buf = new byte[8192];
+                try {
+                    while (discard.read(buf) != -1) {
+                        // Keep going.
+                    }
+                } catch (IOException ex) {
+                    // Replay closed.
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+
+        return new SocketConnection(client);
+    }
+
+    /**
+     * Replays the captured input, then ends the stream.
+     */
+    @Override
+    public void run() {
+        if (peer == null) {
+            throw new IllegalStateException("Not connected");
+        }
+
+        final byte[] buf = new byte[8192];
+        final long start = System.nanoTime();
+
+        try {
+            final OutputStream out = peer.getOutputStream();
+
+            while (data.remaining() >= SessionCapture.RECORD_HEADER_SIZE) {
+                final long nanos = data.getLong();
+                final byte direction = data.get();
+                final int len = data.getInt();
+                if (len < 0 || len > data.remaining()) {
+                    // Cut off mid-record, like a short header.
+                    throw new BufferUnderflowException();
+                }
+
+                if (direction != SessionCapture.INPUT) {
+                    if (direction != SessionCapture.OUTPUT) {
+                        // Trailing zeros from an unclosed capture.
+                        break;
+                    }
+
+                    data.position(data.position() + len);
+                    continue;
+                }
+
+                if (speed != UNTHROTTLED) {
+                    final long due = start + (long) (nanos / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+
+                    record(-wait);
+                }
+
+                // Copy in chunks, so large records don't need a large buffer.
+                int remaining = len;
+                while (remaining > 0) {
+                    final int chunk = Math.min(remaining, buf.length);
+                    data.get(buf, 0, chunk);
+                    out.write(buf, 0, chunk);
+                    remaining -= chunk;
+                }
+
+                synchronized (this) {
+                    records++;
+                    bytes += len;
+                }
+            }
+
+            peer.shutdownOutput();
+        } catch (BufferUnderflowException ex) {
+            // Truncated capture; end the stream there.
+            close();
+        } catch (IOException ex) {
+            // Client went away.
+            close();
+        }
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets how far behind schedule the replay has fallen at worst. This only
+     * includes delays in replaying; a client that can't keep up shows as a
+     * growing backlog instead.
+     * 
+     * @return maximum lateness, in nanoseconds
+     */
+    public synchronized long getMaxLateNanos() {
+        return maxLateNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d records, %d bytes, max %d us late", Long
+                .valueOf(getRecords()), Long.valueOf(getBytes()), Long
+                .valueOf(getMaxLateNanos() / 1000));
+    }
+
+    /**
+     * Closes the server end of the connection.
+     */
+    @Override
+    public void close() {
+        if (peer != null) {
+            try {
+                peer.close();
+            } catch (IOException ex) {
+                // Closing anyway.
+            }
+        }
+    }
+
+    private synchronized void record(long late) {
+        if (late > maxLateNanos) {
+            maxLateNanos = late;
+        }
+    }
+}
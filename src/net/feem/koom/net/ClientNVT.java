@@ -19,6 +19,11 @@
 package net.feem.koom.net;
 
 import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import net.feem.koom.services.Utility;
 
@@ -33,10 +38,21 @@ public class ClientNVT extends AbstractNVT {
     private static final int TERMINAL_TYPE_LEN = Math.min(40,
             TERMINAL_TYPE.length);
 
+    // Client identification for GMCP.
+    private static final String CLIENT_NAME = "Koom";
+    private static final String VERSION = getVersion();
+
     private final TELNETEventHandler outputHandler;
 
     private final TTYPEOption optionTTYPE = new TTYPEOption();
     private final NAWSOption optionNAWS = new NAWSOption();
+    private final MCCPOption optionMCCP = new MCCPOption();
+    private final GMCPOption optionGMCP = new GMCPOption();
+    private final EOROption optionEOR = new EOROption();
+    private final SGAOption optionSGA = new SGAOption();
+    private final TimingMark timingMark = new TimingMark();
+
+    private final GMCPRegistry gmcp = new GMCPRegistry();
 
     public ClientNVT(TELNETProtocol proto) throws IOException {
         super(proto);
@@ -48,7 +64,240 @@ public class ClientNVT extends AbstractNVT {
         optionNAWS.setWindowSize(rows, columns);
     }
 
+    /**
+     * Gets statistics for compressed input from the server.
+     * 
+     * @return input compression statistics
+     */
+    public CompressionStats getCompressionStats() {
+        return getProtocol().getInputCompressionStats();
+    }
+
+    /**
+     * Gets the registry that incoming GMCP messages are dispatched through.
+     * Packages registered here directly are dispatched, but not announced to
+     * the server.
+     * 
+     * @return GMCP registry
+     */
+    public GMCPRegistry getGMCPRegistry() {
+        return gmcp;
+    }
+
+    /**
+     * Registers a handler for a GMCP package, and tells the server we support
+     * it. Packages may be added before or after GMCP is negotiated.
+     * 
+     * @param name
+     *            package name, such as <code>Char.Vitals</code>
+     * @param version
+     *            package version
+     * @param handler
+     *            handler for the package's messages
+     * 
+     * @throws IOException
+     *             if there was an underlying I/O error
+     */
+    public void supportGMCP(String name, int version, GMCPHandler handler)
+            throws IOException {
+        synchronized (getWriteLock()) {
+            gmcp.register(name, version, handler);
+
+            if (optionGMCP.isEnabled()) {
+                optionGMCP.send("Core.Supports.Add", "["
+                        + quote(name + " " + version) + "]");
+            }
+        }
+    }
+
+    /**
+     * Sends a GMCP message to the server, if it supports GMCP.
+     * 
+     * @param name
+     *            message name
+     * @param json
+     *            JSON body, or <code>null</code> for none
+     * 
+     * @return if the message was sent
+     * 
+     * @throws IOException
+     *             if there was an underlying I/O error
+     */
+    public boolean sendGMCP(String name, String json) throws IOException {
+        synchronized (getWriteLock()) {
+            if (!optionGMCP.isEnabled()) {
+                return false;
+            }
+
+            optionGMCP.send(name, json);
+            return true;
+        }
+    }
+
+    private static String getVersion() {
+        final Package koom = ClientNVT.class.getPackage();
+        final String version = (koom == null) ? null : koom
+                .getImplementationVersion();
+        return (version == null) ? "???" : version;
+    }
+
+    /**
+     * Quotes a string for JSON.
+     */
+    private static String quote(String text) {
+        final StringBuilder sb = new StringBuilder(text.length() + 2);
+        sb.append('"');
+        for (int ii = 0; ii < text.length(); ii++) {
+            final char nextChar = text.charAt(ii);
+            if (nextChar == '"' || nextChar == '\\') {
+                sb.append('\\').append(nextChar);
+            } else if (nextChar < 0x20) {
+                sb.append(String.format("\\u%04x", Integer
+                        .valueOf(nextChar)));
+            } else {
+                sb.append(nextChar);
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+    /**
+     * Gets round trip times measured by Timing Mark probes.
+     * 
+     * @return round trip statistics
+     */
+    public RTTStats getRTTStats() {
+        return timingMark.stats;
+    }
+
+    /**
+     * Starts sending a Timing Mark probe to the server at a fixed interval,
+     * to measure the round trip time. The probes double as a keepalive: if
+     * a server that has answered probes before leaves several in a row
+     * unanswered, the connection is closed as dead. A server that never
+     * answers is assumed not to support Timing Mark, and is left alone.
+     * 
+     * @param scheduler
+     *            scheduler to send probes from
+     * @param interval
+     *            time between probes
+     * @param unit
+     *            unit of the interval
+     * 
+     * @return future to cancel to stop probing
+     */
+    public ScheduledFuture<?> startProbing(ScheduledExecutorService scheduler,
+            long interval, TimeUnit unit) {
+        return startProbing(scheduler, interval, unit, null);
+    }
+
+    /**
+     * Starts probing, as {@link #startProbing(ScheduledExecutorService, long,
+     * TimeUnit)}, and runs a task once the server first answers. From then
+     * on, the probes can replace TCP keepalive. The task runs on the thread
+     * reading from the server, so it should be quick.
+     * 
+     * @param scheduler
+     *            scheduler to send probes from
+     * @param interval
+     *            time between probes
+     * @param unit
+     *            unit of the interval
+     * @param answered
+     *            task to run on the first answer, or <code>null</code>
+     * 
+     * @return future to cancel to stop probing
+     */
+    public ScheduledFuture<?> startProbing(ScheduledExecutorService scheduler,
+            long interval, TimeUnit unit, Runnable answered) {
+        timingMark.answerTask = answered;
+        return scheduler.scheduleWithFixedDelay(timingMark, interval,
+                interval, unit);
+    }
+
+    /**
+     * Sends a Timing Mark probe to the server, unless too many are already
+     * waiting for an answer.
+     * 
+     * @return if a probe was sent
+     * 
+     * @throws IOException
+     *             if there was an underlying I/O error
+     */
+    public boolean probe() throws IOException {
+        return timingMark.send();
+    }
+
     private class InputEventHandler extends AbstractNVT.InputEventHandler {
+        @Override
+        public void processWILL(int option) throws IOException {
+            switch (option) {
+            case MCCPOption.OPTION_CODE:
+                optionMCCP.enable();
+                break;
+
+            case GMCPOption.OPTION_CODE:
+                optionGMCP.enable();
+                break;
+
+            case OPTION_EOR:
+                optionEOR.enable();
+                break;
+
+            case OPTION_SGA:
+                if (optionEOR.isEnabled() || optionEOR.isTrying()) {
+                    optionSGA.enable();
+                } else {
+                    // Without EOR, GA is all that marks a prompt.
+                    super.processWILL(option);
+                }
+                break;
+
+            case OPTION_TIMING_MARK:
+                if (!timingMark.processReply()) {
+                    // Not an answer to any probe of ours.
+                    super.processWILL(option);
+                }
+                break;
+
+            default:
+                super.processWILL(option);
+                break;
+            }
+        }
+
+        @Override
+        public void processWONT(int option) throws IOException {
+            switch (option) {
+            case MCCPOption.OPTION_CODE:
+                optionMCCP.disable();
+                break;
+
+            case GMCPOption.OPTION_CODE:
+                optionGMCP.disable();
+                break;
+
+            case OPTION_EOR:
+                optionEOR.disable();
+                break;
+
+            case OPTION_SGA:
+                optionSGA.disable();
+                break;
+
+            case OPTION_TIMING_MARK:
+                // Either answer marks the probe; WONT just means the server
+                // won't mark its own output.
+                timingMark.processReply();
+                break;
+
+            default:
+                super.processWONT(option);
+                break;
+            }
+        }
+
         @Override
         public void processDO(int option) throws IOException {
             switch (option) {
@@ -90,6 +339,14 @@ public class ClientNVT extends AbstractNVT {
                 setSubOption(optionTTYPE);
                 break;
 
+            case MCCPOption.OPTION_CODE:
+                setSubOption(optionMCCP);
+                break;
+
+            case GMCPOption.OPTION_CODE:
+                setSubOption(optionGMCP);
+                break;
+
             default:
                 setSubOption(null);
                 return;
@@ -247,4 +504,359 @@ public class ClientNVT extends AbstractNVT {
             }
         }
     }
+
+    /**
+     * Mud Client Compression Protocol option, version 2 (COMPRESS2).
+     */
+    private final class MCCPOption extends TELNETOption {
+        private static final int OPTION_CODE = 86;
+
+        private boolean valid;
+
+        private MCCPOption() {
+            super(OPTION_CODE);
+        }
+
+        @Override
+        public void beginParam() {
+            valid = true;
+        }
+
+        @Override
+        public void endParam() {
+            // IAC SB COMPRESS2 IAC SE: everything after this is compressed.
+            if (valid && isEnabled()) {
+                getProtocol().startInputDecompression();
+            }
+        }
+
+        @Override
+        public void appendParam(byte nextByte) {
+            // The sub-negotiation has no parameters.
+            valid = false;
+        }
+
+        @Override
+        protected void requestEnable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processDO(OPTION_CODE);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void requestDisable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processDONT(OPTION_CODE);
+                flushProtocol();
+            }
+        }
+    }
+
+    /**
+     * End of Record option (RFC 885), from the server. With this enabled,
+     * the server ends prompts with IAC EOR, so they can be told apart from
+     * partial lines without waiting.
+     */
+    private final class EOROption extends TELNETOption {
+        private EOROption() {
+            super(OPTION_EOR);
+        }
+
+        @Override
+        protected void requestEnable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processDO(OPTION_EOR);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void requestDisable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processDONT(OPTION_EOR);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void doEnable() throws IOException {
+            // Records are marked with EOR now, so a GA would only end an
+            // empty record.
+            optionSGA.tryEnable();
+        }
+
+        @Override
+        protected void doDisable() throws IOException {
+            // Prompts need GA again.
+            optionSGA.disable();
+        }
+    }
+
+    /**
+     * Suppress Go Ahead option (RFC 858), from the server. It's only
+     * accepted along with EOR, since otherwise prompts would go unmarked.
+     */
+    private final class SGAOption extends TELNETOption {
+        private SGAOption() {
+            super(OPTION_SGA);
+        }
+
+        @Override
+        protected void requestEnable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processDO(OPTION_SGA);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void requestDisable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processDONT(OPTION_SGA);
+                flushProtocol();
+            }
+        }
+    }
+
+    /**
+     * Generic MUD Communication Protocol option. Each sub-negotiation is a
+     * message name, optionally followed by a space and a JSON body. The body
+     * is tokenized as it arrives, straight to the handler registered for the
+     * message's package.
+     */
+    private final class GMCPOption extends TELNETOption {
+        private static final int OPTION_CODE = 201;
+
+        // Longest message name accepted.
+        private static final int MAX_NAME = 128;
+
+        private final char[] name = new char[MAX_NAME];
+        private final CharBuffer nameView = CharBuffer.wrap(name);
+        private int nameLen;
+
+        private final JSONTokenizer tokenizer = new JSONTokenizer();
+
+        // Whether we're still reading the name; or the message's handler.
+        private boolean inName;
+        private GMCPHandler handler;
+
+        private GMCPOption() {
+            super(OPTION_CODE);
+        }
+
+        @Override
+        public void beginParam() {
+            nameLen = 0;
+            inName = isEnabled();
+            handler = null;
+        }
+
+        @Override
+        public void appendParam(byte nextByte) {
+            if (inName) {
+                if (nextByte == ' ') {
+                    beginMessage();
+                } else if (nameLen < MAX_NAME && nextByte > ' ') {
+                    name[nameLen++] = (char) nextByte;
+                } else {
+                    // Not a name we could ever handle.
+                    inName = false;
+                }
+            } else if (handler != null) {
+                tokenizer.feed(nextByte);
+            }
+        }
+
+        @Override
+        public void endParam() {
+            if (inName) {
+                // No body.
+                beginMessage();
+                if (handler != null) {
+                    handler.endMessage(true);
+                }
+            } else if (handler != null) {
+                handler.endMessage(tokenizer.finish());
+            }
+
+            handler = null;
+        }
+
+        private void beginMessage() {
+            inName = false;
+
+            handler = gmcp.lookup(name, nameLen);
+            if (handler != null) {
+                nameView.limit(nameLen);
+                nameView.position(0);
+                handler.beginMessage(nameView);
+
+                tokenizer.reset(handler);
+            }
+        }
+
+        private void send(String message, String json) throws IOException {
+            final byte[] bytes = Utility.getUTF8((json == null) ? message
+                    : message + " " + json);
+
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.beginParam(OPTION_CODE);
+                for (int ii = 0; ii < bytes.length; ii++) {
+                    outputHandler.appendParam(bytes[ii]);
+                }
+                outputHandler.endParam();
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void requestEnable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processDO(OPTION_CODE);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void requestDisable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processDONT(OPTION_CODE);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void doEnable() throws IOException {
+            final StringBuilder supports = new StringBuilder("[");
+            final List<String> packages = gmcp.getSupported();
+            for (int ii = 0; ii < packages.size(); ii++) {
+                if (ii != 0) {
+                    supports.append(',');
+                }
+                supports.append(quote(packages.get(ii)));
+            }
+            supports.append(']');
+
+            synchronized (getWriteLock()) {
+                // One write for the whole greeting.
+                cork();
+                try {
+                    send("Core.Hello", "{\"client\":" + quote(CLIENT_NAME)
+                            + ",\"version\":" + quote(VERSION) + "}");
+                    send("Core.Supports.Set", supports.toString());
+                } finally {
+                    uncork();
+                }
+            }
+        }
+    }
+
+    /**
+     * Timing Mark option (RFC 860), used for round trip probes. Each probe is
+     * a DO TIMING-MARK, which the server answers with WILL or WONT once it has
+     * processed everything sent before it. Answers come back in order, so
+     * each one goes with the oldest probe still waiting.
+     */
+    private final class TimingMark implements Runnable {
+        // Probes waiting before a server that answers is presumed dead.
+        private static final int MAX_PENDING = 3;
+
+        private final RTTStats stats = new RTTStats();
+
+        // Send times of waiting probes, guarded by the write lock.
+        private final long[] sent = new long[MAX_PENDING];
+        private int head;
+        private int pending;
+
+        // Whether the server has answered a probe, guarded by the write lock.
+        private boolean answered;
+
+        // Run on the first answer, if set.
+        private volatile Runnable answerTask;
+
+        private boolean send() throws IOException {
+            synchronized (getWriteLock()) {
+                if (pending == MAX_PENDING) {
+                    return false;
+                }
+
+                // Timed before writing, since the answer can come back
+                // before the write returns.
+                sent[(head + pending++) % MAX_PENDING] = System.nanoTime();
+
+                boolean success = false;
+                try {
+                    flushInput();
+                    outputHandler.processDO(OPTION_TIMING_MARK);
+                    flushProtocol();
+                    success = true;
+                } finally {
+                    if (!success) {
+                        pending--;
+                    }
+                }
+
+                return true;
+            }
+        }
+
+        private boolean processReply() {
+            final long now = System.nanoTime();
+
+            final long elapsed;
+            final boolean first;
+            synchronized (getWriteLock()) {
+                if (pending == 0) {
+                    return false;
+                }
+
+                elapsed = now - sent[head];
+                head = (head + 1) % MAX_PENDING;
+                pending--;
+
+                first = !answered;
+                answered = true;
+            }
+
+            stats.add(elapsed);
+
+            final Runnable task = answerTask;
+            if (first && task != null) {
+                task.run();
+            }
+
+            return true;
+        }
+
+        @Override
+        public void run() {
+            final boolean dead;
+            synchronized (getWriteLock()) {
+                // A server that has never answered doesn't support Timing
+                // Mark, and is left alone once the first probes are used up.
+                dead = (pending == MAX_PENDING && answered);
+            }
+
+            try {
+                if (dead) {
+                    // Server stopped answering. Closing wakes up the reader.
+                    getProtocol().close();
+                } else {
+                    send();
+                }
+            } catch (IOException ex) {
+                // Connection closed; the reader will find out.
+            }
+        }
+    }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+/**
+ * Running statistics for one direction of a compressed TELNET stream. Updated
+ * by the thread doing the I/O; safe to query from any thread.
+ * 
+ * @author cu5
+ */
+public class CompressionStats {
+    private long compressedBytes;
+    private long uncompressedBytes;
+    private long calls;
+    private long nanos;
+
+    /**
+     * Records one call to the compressor or decompressor.
+     * 
+     * @param compressed
+     *            number of compressed bytes consumed or produced
+     * @param uncompressed
+     *            number of uncompressed bytes consumed or produced
+     * @param elapsed
+     *            time spent, in nanoseconds
+     */
+    synchronized void add(long compressed, long uncompressed, long elapsed) {
+        compressedBytes += compressed;
+        uncompressedBytes += uncompressed;
+        calls++;
+        nanos += elapsed;
+    }
+
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    public synchronized long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * Gets the ratio of uncompressed to compressed bytes.
+     * 
+     * @return compression ratio, or 0 if nothing has been compressed yet
+     */
+    public synchronized double getRatio() {
+        if (compressedBytes == 0) {
+            return 0;
+        }
+
+        return (double) uncompressedBytes / compressedBytes;
+    }
+
+    /**
+     * Gets the total time spent compressing or decompressing.
+     * 
+     * @return CPU time, in nanoseconds
+     */
+    public synchronized long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Gets the average time per call to the compressor or decompressor. For
+     * input, this is the latency added to each read.
+     * 
+     * @return average time, in nanoseconds
+     */
+    public synchronized long getAverageNanos() {
+        return (calls == 0) ? 0 : nanos / calls;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d -> %d bytes (%.2f:1), %d us", Long
+                .valueOf(uncompressedBytes), Long.valueOf(compressedBytes),
+                Double.valueOf(getRatio()), Long.valueOf(nanos / 1000));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+/**
+ * A {@link GMCPHandler} that ignores everything. Extend this to handle only
+ * the events of interest.
+ * 
+ * @author cu5
+ */
+public abstract class GMCPAdapter implements GMCPHandler {
+    @Override
+    public void beginMessage(CharSequence name) {
+    }
+
+    @Override
+    public void endMessage(boolean valid) {
+    }
+
+    @Override
+    public void beginObject() {
+    }
+
+    @Override
+    public void endObject() {
+    }
+
+    @Override
+    public void beginArray() {
+    }
+
+    @Override
+    public void endArray() {
+    }
+
+    @Override
+    public void key(CharSequence name) {
+    }
+
+    @Override
+    public void stringValue(CharSequence value) {
+    }
+
+    @Override
+    public void integerValue(long value) {
+    }
+
+    @Override
+    public void numberValue(double value) {
+    }
+
+    @Override
+    public void booleanValue(boolean value) {
+    }
+
+    @Override
+    public void nullValue() {
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+/**
+ * Receives GMCP messages for one or more packages. Each message is delivered
+ * as a {@link #beginMessage(CharSequence)} call, the tokens of its JSON
+ * body, if it has one, and an {@link #endMessage(boolean)} call. Messages
+ * are delivered on the thread reading from the connection.
+ * 
+ * @author cu5
+ */
+public interface GMCPHandler extends JSONHandler {
+    /**
+     * Called at the start of each message.
+     * 
+     * @param name
+     *            full message name, such as <code>Char.Vitals</code>, valid
+     *            only during the call
+     */
+    public void beginMessage(CharSequence name);
+
+    /**
+     * Called at the end of each message.
+     * 
+     * @param valid
+     *            <code>false</code> if the body wasn't valid JSON, in which
+     *            case it was only delivered up to the error
+     */
+    public void endMessage(boolean valid);
+}
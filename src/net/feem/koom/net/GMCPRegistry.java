@@ -0,0 +1,163 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Routes GMCP messages to handlers by package. A message goes to the handler
+ * for the longest registered package that its name falls under, so a handler
+ * for <code>Char</code> gets <code>Char.Vitals</code>, unless there's one for
+ * <code>Char.Vitals</code> itself. Names are matched ignoring case, as the
+ * protocol requires.
+ * 
+ * <p>
+ * Handlers may be registered and unregistered from any thread. Lookups don't
+ * lock or allocate.
+ * </p>
+ * 
+ * @author cu5
+ */
+public class GMCPRegistry {
+    private static final class Entry {
+        private final String name;
+        private final int version;
+        private final GMCPHandler handler;
+
+        private Entry(String name, int version, GMCPHandler handler) {
+            this.name = name;
+            this.version = version;
+            this.handler = handler;
+        }
+    }
+
+    // Replaced wholesale on each change, guarded by this registry.
+    private volatile Entry[] entries = new Entry[0];
+
+    /**
+     * Registers a handler for a package, replacing any existing one.
+     * 
+     * @param name
+     *            package name, such as <code>Char.Vitals</code>
+     * @param version
+     *            package version, announced to the server
+     * @param handler
+     *            handler for the package's messages
+     */
+    public synchronized void register(String name, int version,
+            GMCPHandler handler) {
+        if (name.length() == 0 || name.indexOf(' ') != -1) {
+            throw new IllegalArgumentException("Invalid package name");
+        }
+
+        final List<Entry> list = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (!entry.name.equalsIgnoreCase(name)) {
+                list.add(entry);
+            }
+        }
+
+        list.add(new Entry(name, version, handler));
+        entries = list.toArray(new Entry[list.size()]);
+    }
+
+    /**
+     * Unregisters the handler for a package.
+     * 
+     * @param name
+     *            package name
+     * 
+     * @return if a handler was registered
+     */
+    public synchronized boolean unregister(String name) {
+        final List<Entry> list = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (!entry.name.equalsIgnoreCase(name)) {
+                list.add(entry);
+            }
+        }
+
+        if (list.size() == entries.length) {
+            return false;
+        }
+
+        entries = list.toArray(new Entry[list.size()]);
+        return true;
+    }
+
+    /**
+     * Gets the registered packages, in the form used by
+     * <code>Core.Supports.Set</code>.
+     * 
+     * @return list of "<i>name</i> <i>version</i>" strings
+     */
+    public List<String> getSupported() {
+        final List<String> result = new ArrayList<String>();
+        for (Entry entry : entries) {
+            result.add(entry.name + " " + entry.version);
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the handler for a message.
+     * 
+     * @param name
+     *            message name
+     * @param len
+     *            length of the message name
+     * 
+     * @return handler, or <code>null</code> if none
+     */
+    public GMCPHandler lookup(char[] name, int len) {
+        Entry best = null;
+
+        for (Entry entry : entries) {
+            final int plen = entry.name.length();
+            if (plen > len || (plen < len && name[plen] != '.')) {
+                continue;
+            }
+
+            if (best != null && best.name.length() >= plen) {
+                continue;
+            }
+
+            if (matches(entry.name, name)) {
+                best = entry;
+            }
+        }
+
+        return (best == null) ? null : best.handler;
+    }
+
+    private static boolean matches(String prefix, char[] name) {
+        for (int ii = 0; ii < prefix.length(); ii++) {
+            final char a = prefix.charAt(ii);
+            final char b = name[ii];
+            if (a != b
+                    && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+/**
+ * Receives the tokens of a JSON value from a {@link JSONTokenizer}, in
+ * document order.
+ * 
+ * <p>
+ * Text is passed as a {@link CharSequence} that is only valid for the
+ * duration of the call; it's reused for the next token, so call
+ * <code>toString()</code> on it to keep it.
+ * </p>
+ * 
+ * @author cu5
+ */
+public interface JSONHandler {
+    public void beginObject();
+
+    public void endObject();
+
+    public void beginArray();
+
+    public void endArray();
+
+    /**
+     * Called with the name of each member of an object, before its value.
+     * 
+     * @param name
+     *            member name, valid only during the call
+     */
+    public void key(CharSequence name);
+
+    /**
+     * @param value
+     *            string value, valid only during the call
+     */
+    public void stringValue(CharSequence value);
+
+    /**
+     * Called for numbers with no fraction or exponent, and no more than 18
+     * significant digits, so they always fit in a long.
+     * 
+     * @param value
+     *            number value
+     */
+    public void integerValue(long value);
+
+    /**
+     * Called for all other numbers.
+     * 
+     * @param value
+     *            number value
+     */
+    public void numberValue(double value);
+
+    public void booleanValue(boolean value);
+
+    public void nullValue();
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.nio.CharBuffer;
+
+/**
+ * An incremental JSON tokenizer, fed one UTF-8 byte at a time. Tokens are
+ * passed to a {@link JSONHandler} as soon as they're complete, so a document
+ * never needs to be collected into a string first. Once the buffers have
+ * grown to fit the longest string seen, tokenizing allocates nothing.
+ * 
+ * <p>
+ * A tokenizer handles one value at a time; call {@link #reset(JSONHandler)}
+ * before each. After a syntax error, the rest of the value is ignored.
+ * </p>
+ * 
+ * @author cu5
+ */
+public final class JSONTokenizer {
+    private static enum State {
+        // Expecting a value.
+        VALUE,
+
+        // After '[', expecting a value or ']'.
+        ARRAY_FIRST,
+
+        // After '{', expecting a key or '}'; after ',', expecting a key.
+        OBJECT_FIRST, KEY,
+
+        // After a key, expecting ':'.
+        COLON,
+
+        // After a value, expecting ',' or the end of the container.
+        AFTER_VALUE,
+
+        // Inside a string, an escape, or a \\u escape.
+        STRING, ESCAPE, UNICODE,
+
+        // Inside a number, or true, false, or null.
+        NUMBER, LITERAL,
+
+        // Complete value seen, or syntax error.
+        DONE, ERROR;
+    }
+
+    private static final int MAX_DEPTH = 32;
+    private static final int MAX_STRING = 64 * 1024;
+
+    // Digits kept in a number's mantissa; the rest only scale it.
+    private static final int MAX_DIGITS = 18;
+
+    // Stands in for invalid UTF-8.
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private static final char[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final char[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    private static final char[] NULL = { 'n', 'u', 'l', 'l' };
+
+    private JSONHandler handler;
+    private State state;
+    private boolean started;
+
+    // Open containers, true for objects.
+    private final boolean[] objects = new boolean[MAX_DEPTH];
+    private int depth;
+
+    // String being decoded, and a reusable view of it.
+    private char[] chars = new char[256];
+    private int len;
+    private CharBuffer text = CharBuffer.wrap(chars);
+    private boolean isKey;
+
+    // Partial UTF-8 sequence, or \\u escape.
+    private int code;
+    private int pending;
+
+    // Number being parsed.
+    private boolean negative;
+    private long mantissa;
+    private int digits;
+    private int scale;
+    private boolean integral;
+    private boolean inExponent;
+    private boolean negativeExponent;
+    private int exponent;
+    private boolean sawDigit;
+
+    // Literal being matched.
+    private char[] literal;
+    private int literalPos;
+
+    /**
+     * Prepares to tokenize a new value.
+     * 
+     * @param handler
+     *            handler for the value's tokens
+     */
+    public void reset(JSONHandler handler) {
+        this.handler = handler;
+        state = State.VALUE;
+        started = false;
+        depth = 0;
+        len = 0;
+    }
+
+    /**
+     * Tokenizes the next byte of input.
+     * 
+     * @param nextByte
+     *            next byte
+     */
+    public void feed(byte nextByte) {
+        switch (state) {
+        case STRING:
+            // The common case first.
+            string(nextByte);
+            break;
+
+        case ESCAPE:
+            escape(nextByte);
+            break;
+
+        case UNICODE:
+            unicode(nextByte);
+            break;
+
+        case NUMBER:
+            if (!number(nextByte)) {
+                // Not part of the number; end it, and look again.
+                endNumber();
+                structure(nextByte);
+            }
+            break;
+
+        case LITERAL:
+            literal(nextByte);
+            break;
+
+        case ERROR:
+            // Ignore the rest.
+            break;
+
+        default:
+            structure(nextByte);
+            break;
+        }
+    }
+
+    /**
+     * Ends the input.
+     * 
+     * @return if the input was one complete value, or nothing but white space
+     */
+    public boolean finish() {
+        if (state == State.NUMBER) {
+            endNumber();
+        }
+
+        return state == State.DONE || (state == State.VALUE && !started);
+    }
+
+    private void structure(byte nextByte) {
+        switch (nextByte) {
+        case ' ':
+        case '\t':
+        case '\r':
+        case '\n':
+            return;
+
+        default:
+            break;
+        }
+
+        switch (state) {
+        case VALUE:
+            value(nextByte);
+            break;
+
+        case ARRAY_FIRST:
+            if (nextByte == ']') {
+                endContainer(false);
+            } else {
+                value(nextByte);
+            }
+            break;
+
+        case OBJECT_FIRST:
+            if (nextByte == '}') {
+                endContainer(true);
+            } else if (nextByte == '"') {
+                beginString(true);
+            } else {
+                error();
+            }
+            break;
+
+        case KEY:
+            if (nextByte == '"') {
+                beginString(true);
+            } else {
+                error();
+            }
+            break;
+
+        case COLON:
+            if (nextByte == ':') {
+                state = State.VALUE;
+            } else {
+                error();
+            }
+            break;
+
+        case AFTER_VALUE:
+            if (nextByte == ',') {
+                state = objects[depth - 1] ? State.KEY : State.VALUE;
+            } else if (nextByte == '}' || nextByte == ']') {
+                endContainer(nextByte == '}');
+            } else {
+                error();
+            }
+            break;
+
+        default:
+            // Anything after a complete value.
+            error();
+            break;
+        }
+    }
+
+    private void value(byte nextByte) {
+        started = true;
+
+        switch (nextByte) {
+        case '{':
+            beginContainer(true);
+            break;
+
+        case '[':
+            beginContainer(false);
+            break;
+
+        case '"':
+            beginString(false);
+            break;
+
+        case 't':
+            beginLiteral(TRUE);
+            break;
+
+        case 'f':
+            beginLiteral(FALSE);
+            break;
+
+        case 'n':
+            beginLiteral(NULL);
+            break;
+
+        case '-':
+            beginNumber();
+            negative = true;
+            break;
+
+        default:
+            if (nextByte >= '0' && nextByte <= '9') {
+                beginNumber();
+                number(nextByte);
+            } else {
+                error();
+            }
+            break;
+        }
+    }
+
+    private void endValue() {
+        state = (depth == 0) ? State.DONE : State.AFTER_VALUE;
+    }
+
+    private void error() {
+        state = State.ERROR;
+    }
+
+    private void beginContainer(boolean object) {
+        if (depth == MAX_DEPTH) {
+            error();
+            return;
+        }
+
+        objects[depth++] = object;
+
+        if (object) {
+            handler.beginObject();
+            state = State.OBJECT_FIRST;
+        } else {
+            handler.beginArray();
+            state = State.ARRAY_FIRST;
+        }
+    }
+
+    private void endContainer(boolean object) {
+        if (objects[depth - 1] != object) {
+            error();
+            return;
+        }
+
+        depth--;
+
+        if (object) {
+            handler.endObject();
+        } else {
+            handler.endArray();
+        }
+
+        endValue();
+    }
+
+    private void beginString(boolean key) {
+        isKey = key;
+        len = 0;
+        pending = 0;
+        state = State.STRING;
+    }
+
+    private void string(byte nextByte) {
+        if (pending != 0) {
+            // Continuation of a multi-byte sequence.
+            if ((nextByte & 0xC0) != 0x80) {
+                pending = 0;
+                append(REPLACEMENT);
+                string(nextByte);
+                return;
+            }
+
+            code = (code << 6) | (nextByte & 0x3F);
+            if (--pending == 0) {
+                appendCodePoint(code);
+            }
+            return;
+        }
+
+        if (nextByte >= 0) {
+            switch (nextByte) {
+            case '"':
+                endString();
+                break;
+
+            case '\\':
+                state = State.ESCAPE;
+                break;
+
+            default:
+                if (nextByte < 0x20) {
+                    // Control characters must be escaped.
+                    error();
+                } else {
+                    append((char) nextByte);
+                }
+                break;
+            }
+        } else if ((nextByte & 0xE0) == 0xC0) {
+            code = nextByte & 0x1F;
+            pending = 1;
+        } else if ((nextByte & 0xF0) == 0xE0) {
+            code = nextByte & 0x0F;
+            pending = 2;
+        } else if ((nextByte & 0xF8) == 0xF0) {
+            code = nextByte & 0x07;
+            pending = 3;
+        } else {
+            append(REPLACEMENT);
+        }
+    }
+
+    private void escape(byte nextByte) {
+        state = State.STRING;
+
+        switch (nextByte) {
+        case '"':
+        case '\\':
+        case '/':
+            append((char) nextByte);
+            break;
+
+        case 'b':
+            append('\b');
+            break;
+
+        case 'f':
+            append('\f');
+            break;
+
+        case 'n':
+            append('\n');
+            break;
+
+        case 'r':
+            append('\r');
+            break;
+
+        case 't':
+            append('\t');
+            break;
+
+        case 'u':
+            code = 0;
+            pending = 4;
+            state = State.UNICODE;
+            break;
+
+        default:
+            error();
+            break;
+        }
+    }
+
+    private void unicode(byte nextByte) {
+        final int digit = Character.digit(nextByte, 16);
+        if (digit == -1) {
+            error();
+            return;
+        }
+
+        code = (code << 4) | digit;
+        if (--pending == 0) {
+            // Surrogate pairs come as two escapes, and just work out.
+            append((char) code);
+            state = State.STRING;
+        }
+    }
+
+    private void endString() {
+        text.limit(len);
+        text.position(0);
+
+        if (isKey) {
+            handler.key(text);
+            state = State.COLON;
+        } else {
+            handler.stringValue(text);
+            endValue();
+        }
+    }
+
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x10000) {
+            append((char) codePoint);
+        } else if (codePoint <= Character.MAX_CODE_POINT) {
+            append(Character.highSurrogate(codePoint));
+            append(Character.lowSurrogate(codePoint));
+        } else {
+            append(REPLACEMENT);
+        }
+    }
+
+    private void append(char nextChar) {
+        if (len == chars.length) {
+            if (len == MAX_STRING) {
+                error();
+                return;
+            }
+
+            final char[] grown = new char[Math.min(len * 2, MAX_STRING)];
+            System.arraycopy(chars, 0, grown, 0, len);
+            chars = grown;
+            text = CharBuffer.wrap(chars);
+        }
+
+        chars[len++] = nextChar;
+    }
+
+    private void beginLiteral(char[] expected) {
+        literal = expected;
+        literalPos = 1;
+        state = State.LITERAL;
+    }
+
+    private void literal(byte nextByte) {
+        if (nextByte != literal[literalPos]) {
+            error();
+            return;
+        }
+
+        if (++literalPos == literal.length) {
+            if (literal == NULL) {
+                handler.nullValue();
+            } else {
+                handler.booleanValue(literal == TRUE);
+            }
+
+            endValue();
+        }
+    }
+
+    private void beginNumber() {
+        negative = false;
+        mantissa = 0;
+        digits = 0;
+        scale = 0;
+        integral = true;
+        inExponent = false;
+        negativeExponent = false;
+        exponent = 0;
+        sawDigit = false;
+        state = State.NUMBER;
+    }
+
+    /**
+     * Adds a byte to the number being parsed.
+     * 
+     * @return <code>false</code> if the byte isn't part of the number
+     */
+    private boolean number(byte nextByte) {
+        if (nextByte >= '0' && nextByte <= '9') {
+            final int digit = nextByte - '0';
+            sawDigit = true;
+
+            if (inExponent) {
+                // Anything this large is out of range anyway.
+                if (exponent < 10000) {
+                    exponent = exponent * 10 + digit;
+                }
+            } else if (digits < MAX_DIGITS) {
+                if (mantissa != 0 || digit != 0) {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + digit;
+                if (!integral) {
+                    scale--;
+                }
+            } else if (integral) {
+                // Dropped digit before the point.
+                scale++;
+            }
+            return true;
+        }
+
+        switch (nextByte) {
+        case '.':
+            if (!integral || inExponent || !sawDigit) {
+                error();
+                return true;
+            }
+            integral = false;
+            sawDigit = false;
+            return true;
+
+        case 'e':
+        case 'E':
+            if (inExponent || !sawDigit) {
+                error();
+                return true;
+            }
+            integral = false;
+            inExponent = true;
+            sawDigit = false;
+            return true;
+
+        case '+':
+        case '-':
+            if (!inExponent || sawDigit || exponent != 0) {
+                error();
+                return true;
+            }
+            negativeExponent = (nextByte == '-');
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
+    private void endNumber() {
+        if (!sawDigit) {
+            error();
+            return;
+        }
+
+        if (integral && scale == 0) {
+            handler.integerValue(negative ? -mantissa : mantissa);
+        } else {
+            final int power = scale
+                    + (negativeExponent ? -exponent : exponent);
+            double value = mantissa;
+            if (power < 0) {
+                value /= Math.pow(10, -power);
+            } else if (power > 0) {
+                value *= Math.pow(10, power);
+            }
+            handler.numberValue(negative ? -value : value);
+        }
+
+        endValue();
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits lines starting with a given prefix out of a TELNET input stream,
+ * ahead of character decoding. Matching is done on the raw bytes, so the
+ * prefix should be ASCII. Diverted lines are passed to a
+ * {@link RawLineHandler}; everything else is read as usual, with the
+ * diverted lines cut out in place.
+ * 
+ * <p>
+ * A line whose start matches the prefix so far is held back until enough of
+ * it has arrived to tell, or a record boundary or the end of stream ends it.
+ * </p>
+ * 
+ * @author cu5
+ */
+final class LineDemultiplexer extends InputStream {
+    private static enum State {
+        // Inside an ordinary line.
+        TEXT,
+
+        // At the start of a line, possibly part way through the prefix.
+        MATCH,
+
+        // Inside a diverted line.
+        DIVERT;
+    }
+
+    private static final class Route {
+        private final byte[] prefix;
+        private final RawLineHandler handler;
+
+        private Route(byte[] prefix, RawLineHandler handler) {
+            this.prefix = prefix;
+            this.handler = handler;
+        }
+    }
+
+    private final TELNETProtocol proto;
+    private final InputStream input;
+
+    private volatile Route route;
+
+    // Route for the current line, fixed once the line starts.
+    private Route current;
+
+    private State state = State.MATCH;
+    private int matched;
+
+    // Start of a possible match, held back from the previous read.
+    private byte[] held = new byte[0];
+    private int heldLen;
+
+    LineDemultiplexer(TELNETProtocol proto) {
+        this.proto = proto;
+        this.input = proto.getInputStream();
+    }
+
+    /**
+     * Sets where lines are diverted to. The change takes effect from the
+     * start of the next line.
+     * 
+     * @param prefix
+     *            prefix of lines to divert
+     * @param handler
+     *            handler for diverted lines, or <code>null</code> to stop
+     *            diverting
+     */
+    void setRoute(byte[] prefix, RawLineHandler handler) {
+        if (handler == null) {
+            route = null;
+            return;
+        }
+
+        if (prefix.length == 0) {
+            throw new IllegalArgumentException("Empty prefix");
+        }
+
+        for (byte nextByte : prefix) {
+            if (nextByte == '\n') {
+                throw new IllegalArgumentException("Prefix spans lines");
+            }
+        }
+
+        route = new Route(prefix.clone(), handler);
+    }
+
+    /**
+     * Tests if input has to be read through here, rather than straight from
+     * the protocol: lines are being diverted, or a line is still part way
+     * through being diverted or matched.
+     */
+    boolean isFiltering() {
+        return route != null || state == State.DIVERT || heldLen != 0;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return input.available();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] one = new byte[1];
+
+        int got;
+        do {
+            got = read(one, 0, 1);
+        } while (got == 0);
+
+        return (got == -1) ? -1 : one[0] & 0xFF;
+    }
+
+    /**
+     * Reads the next piece of input, less any diverted lines. This may return
+     * 0, if everything read was diverted or held back.
+     */
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (state == State.TEXT && route == null) {
+            // Nothing to divert; just track the line starts.
+            final int got = input.read(buf, off, len);
+            if (got > 0 && buf[off + got - 1] == '\n') {
+                state = State.MATCH;
+            }
+            return got;
+        }
+
+        if (len <= heldLen) {
+            // No room to match any further, so give up on it.
+            return release(buf, off);
+        }
+
+        // Put back what was held, to be matched again along with the rest.
+        final int start = heldLen;
+        System.arraycopy(held, 0, buf, off, start);
+        heldLen = 0;
+
+        int end;
+        try {
+            final int got = input.read(buf, off + start, len - start);
+            if (got == -1) {
+                return endOfStream(start);
+            }
+            end = off + start + got;
+        } catch (IOException ex) {
+            // Keep holding on; only a record boundary or the end of the
+            // stream decides what the held bytes are.
+            heldLen = start;
+            throw ex;
+        }
+
+        // Held bytes were matched already, so start over on them.
+        if (start != 0) {
+            matched = 0;
+        }
+
+        final int write = filter(buf, off, end);
+
+        if (proto.getInputBoundary() == TELNETProtocol.Boundary.RECORD) {
+            // A Go Ahead or End of Record ends the line, such as it is.
+            return endRecord(buf, off, write);
+        }
+
+        return write - off;
+    }
+
+    /**
+     * Cuts diverted lines out of the given range, and holds back any partial
+     * match at the end.
+     * 
+     * @return new end of the range
+     */
+    private int filter(byte[] buf, int off, int end) {
+        int write = off;
+        int pos = off;
+
+        while (pos < end) {
+            switch (state) {
+            case TEXT:
+                int run = pos;
+                while (run < end && buf[run] != '\n') {
+                    run++;
+                }
+
+                if (run != end) {
+                    run++;
+                    state = State.MATCH;
+                    matched = 0;
+                }
+
+                System.arraycopy(buf, pos, buf, write, run - pos);
+                write += run - pos;
+                pos = run;
+                break;
+
+            case MATCH:
+                if (matched == 0) {
+                    current = route;
+                    if (current == null) {
+                        state = State.TEXT;
+                        break;
+                    }
+                }
+
+                final byte[] prefix = current.prefix;
+                if (buf[pos] != prefix[matched]) {
+                    // Not ours after all; the bytes matched so far are text.
+                    System.arraycopy(buf, pos - matched, buf, write, matched);
+                    write += matched;
+                    matched = 0;
+                    state = State.TEXT;
+                    break;
+                }
+
+                pos++;
+                if (++matched == prefix.length) {
+                    current.handler.processData(prefix, 0, prefix.length);
+                    state = State.DIVERT;
+                }
+                break;
+
+            case DIVERT:
+                int stop = pos;
+                while (stop < end && buf[stop] != '\n') {
+                    stop++;
+                }
+
+                if (stop != pos) {
+                    current.handler.processData(buf, pos, stop - pos);
+                }
+
+                if (stop != end) {
+                    current.handler.processEndOfLine();
+                    state = State.MATCH;
+                    matched = 0;
+                    stop++;
+                }
+                pos = stop;
+                break;
+            }
+        }
+
+        if (state == State.MATCH && matched != 0) {
+            // Hold back the partial match until there's more to go on.
+            if (held.length < matched) {
+                held = new byte[current.prefix.length];
+            }
+            System.arraycopy(buf, end - matched, held, 0, matched);
+            heldLen = matched;
+        }
+
+        return write;
+    }
+
+    /**
+     * Ends the current line at a record boundary.
+     */
+    private int endRecord(byte[] buf, int off, int write) {
+        switch (state) {
+        case MATCH:
+            if (heldLen != 0) {
+                // A prompt that looked like the start of a diverted line.
+                System.arraycopy(held, 0, buf, write, heldLen);
+                write += heldLen;
+                heldLen = 0;
+            }
+            break;
+
+        case DIVERT:
+            current.handler.processEndOfLine();
+            break;
+
+        default:
+            break;
+        }
+
+        state = State.MATCH;
+        matched = 0;
+        return write - off;
+    }
+
+    private int endOfStream(int start) {
+        if (state == State.DIVERT) {
+            current.handler.processEndOfLine();
+        }
+
+        state = State.TEXT;
+        matched = 0;
+
+        // Whatever was held back is text after all.
+        return (start == 0) ? -1 : start;
+    }
+
+    private int release(byte[] buf, int off) {
+        final int len = heldLen;
+        System.arraycopy(held, 0, buf, off, len);
+        heldLen = 0;
+        matched = 0;
+        state = State.TEXT;
+        return len;
+    }
+}
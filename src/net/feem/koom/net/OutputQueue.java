@@ -0,0 +1,531 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A bounded queue of relayed output for one client. Data written to the queue
+ * is split into lines, which are written out to the client's NVT by whichever
+ * thread calls {@link #run()}. This way, the thread relaying from the world
+ * never blocks on a slow client, unless the {@link Policy#BLOCK} policy says
+ * it should.
+ * 
+ * <p>
+ * HUD lines (starting with <code>#HUD:</code>) and commands are never dropped.
+ * </p>
+ * 
+ * @author cu5
+ */
+public class OutputQueue extends OutputStream implements Runnable {
+    /**
+     * What to do when the queue is full.
+     */
+    public static enum Policy {
+        // Wait for the client to catch up.
+        BLOCK,
+
+        // Drop the oldest complete lines, other than HUD lines.
+        DROP_OLDEST,
+
+        // Give up on the client.
+        DISCONNECT;
+    }
+
+    /**
+     * Receives notifications when the queue depth crosses its watermarks.
+     * Notifications are delivered on whichever thread caused the crossing, but
+     * never while holding the queue's lock.
+     */
+    public static interface Listener {
+        /**
+         * Called when the queue depth rises to the high watermark.
+         * 
+         * @param queue
+         *            queue that filled up
+         */
+        public void processHighWater(OutputQueue queue);
+
+        /**
+         * Called when the queue depth falls back to the low watermark.
+         * 
+         * @param queue
+         *            queue that drained
+         */
+        public void processLowWater(OutputQueue queue);
+    }
+
+    private static final byte[] HUD_PREFIX = { '#', 'H', 'U', 'D', ':' };
+
+    // Spare records kept for reuse.
+    private static final int MAX_SPARE = 16;
+
+    private final AbstractNVT target;
+    private final TELNETProtocol proto;
+    private final int capacity;
+    private final Policy policy;
+
+    private final ArrayDeque<Record> records = new ArrayDeque<Record>();
+    private final ArrayDeque<Record> spare = new ArrayDeque<Record>();
+
+    // Whether the next byte starts a new line.
+    private boolean lineStart = true;
+
+    // Bytes waiting to be written, and bytes being written. Only waiting bytes
+    // count against capacity, so a slow write doesn't force out more lines.
+    private int depth;
+    private int inFlight;
+    private boolean closed;
+    private boolean disconnected;
+
+    private int highWater;
+    private int lowWater;
+    private boolean aboveHigh;
+    private volatile Listener listener;
+
+    private long droppedLines;
+    private long droppedBytes;
+    private int maxDepth;
+
+    private static final class Record {
+        // Record mark, rather than data.
+        private boolean mark;
+
+        // Line data, possibly just part of a line.
+        private byte[] data = new byte[128];
+        private int len;
+
+        // Whether this record starts a line, and whether it ends one.
+        private boolean head;
+        private boolean tail;
+
+        private boolean isDroppable() {
+            if (mark || !head || !tail) {
+                return false;
+            }
+
+            if (len < HUD_PREFIX.length) {
+                return true;
+            }
+
+            for (int ii = 0; ii < HUD_PREFIX.length; ii++) {
+                if (data[ii] != HUD_PREFIX[ii]) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Creates an output queue, with watermarks at 3/4 and 1/4 of capacity.
+     * 
+     * @param target
+     *            client NVT to write to
+     * @param capacity
+     *            maximum number of bytes queued
+     * @param policy
+     *            what to do when the queue is full
+     */
+    public OutputQueue(AbstractNVT target, int capacity, Policy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity");
+        }
+
+        this.target = target;
+        this.proto = target.getProtocol();
+        this.capacity = capacity;
+        this.policy = policy;
+
+        this.highWater = capacity - capacity / 4;
+        this.lowWater = capacity / 4;
+    }
+
+    /**
+     * Sets the queue depths at which the listener is notified.
+     * 
+     * @param high
+     *            high watermark, in bytes
+     * @param low
+     *            low watermark, in bytes
+     */
+    public synchronized void setWatermarks(int high, int low) {
+        if (low < 0 || low > high) {
+            throw new IllegalArgumentException("Invalid watermarks");
+        }
+
+        highWater = high;
+        lowWater = low;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of bytes queued, including any being written out.
+     * 
+     * @return queue depth, in bytes
+     */
+    public synchronized int getDepth() {
+        return depth + inFlight;
+    }
+
+    /**
+     * Gets the deepest the queue has been.
+     * 
+     * @return maximum queue depth, in bytes
+     */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getDroppedLines() {
+        return droppedLines;
+    }
+
+    public synchronized long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Tests if the client was disconnected for falling too far behind.
+     * 
+     * @return if the client was disconnected
+     */
+    public synchronized boolean isDisconnected() {
+        return disconnected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d/%d bytes queued (max %d), %d being written, "
+                + "%d lines (%d bytes) dropped", Integer.valueOf(depth),
+                Integer.valueOf(capacity), Integer.valueOf(maxDepth), Integer
+                        .valueOf(inFlight), Long.valueOf(droppedLines), Long
+                        .valueOf(droppedBytes));
+    }
+
+    @Override
+    public void write(int nextByte) throws IOException {
+        // Not under the lock, so the listener isn't called holding it.
+        write(new byte[] { (byte) nextByte }, 0, 1);
+    }
+
+    /**
+     * Queues data bytes, which are escaped when written out.
+     */
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        final boolean high;
+
+        synchronized (this) {
+            final int end = off + len;
+
+            while (off < end) {
+                // Queue up to the end of the next line.
+                int run = off;
+                while (run < end && buf[run] != '\n') {
+                    run++;
+                }
+
+                final boolean tail = (run != end);
+                if (tail) {
+                    run++;
+                }
+
+                makeRoom(run - off);
+                append(buf, off, run - off, tail);
+                off = run;
+            }
+
+            high = checkHighWater();
+            notifyAll();
+        }
+
+        if (high) {
+            fireHighWater();
+        }
+    }
+
+    /**
+     * Queues the end of a record, such as a prompt. This is written out as
+     * whichever record mark the client has negotiated.
+     * 
+     * @throws IOException
+     *             if the client has gone away
+     */
+    public void writeRecordMark() throws IOException {
+        synchronized (this) {
+            checkOpen();
+
+            final Record rec = newRecord();
+            rec.mark = true;
+            records.addLast(rec);
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes the queue to new data. Whatever is already queued is still
+     * written out.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Writes out queued data until the queue has been closed and emptied, or
+     * writing fails. The target is flushed whenever the queue runs dry.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Record rec;
+                final boolean more;
+                synchronized (this) {
+                    while (records.isEmpty() && !closed) {
+                        wait();
+                    }
+
+                    if (records.isEmpty() || disconnected) {
+                        break;
+                    }
+
+                    // Take the whole record, so nothing more is added to it.
+                    rec = records.removeFirst();
+                    more = !records.isEmpty();
+
+                    // Make room for more while this one is written.
+                    depth -= rec.len;
+                    inFlight = rec.len;
+                    notifyAll();
+                }
+
+                synchronized (target.getWriteLock()) {
+                    if (rec.mark) {
+                        target.writeRecordMark();
+                    } else {
+                        proto.getOutputStream().write(rec.data, 0, rec.len);
+                    }
+
+                    if (!more) {
+                        proto.flush();
+                    }
+                }
+
+                final boolean low;
+                synchronized (this) {
+                    inFlight = 0;
+                    low = checkLowWater();
+                    recycle(rec);
+                    notifyAll();
+                }
+
+                if (low) {
+                    fireLowWater();
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Stop writing.
+        } catch (IOException ex) {
+            // Client went away.
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        assert Thread.holdsLock(this);
+
+        if (disconnected) {
+            throw new IOException("Client disconnected for falling behind");
+        } else if (closed) {
+            throw new IOException("Output queue closed");
+        }
+    }
+
+    /**
+     * Applies the overflow policy until there's room for the given number of
+     * bytes. A single line larger than the whole queue is let in once the
+     * queue is empty. A record already being written doesn't count, since
+     * it can't be dropped anyway.
+     */
+    private void makeRoom(int len) throws IOException {
+        assert Thread.holdsLock(this);
+
+        while (true) {
+            checkOpen();
+
+            if (depth == 0 || depth + len <= capacity) {
+                return;
+            }
+
+            switch (policy) {
+            case BLOCK:
+                try {
+                    // The writer may not have heard about this write's lines.
+                    notifyAll();
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                break;
+
+            case DROP_OLDEST:
+                if (!dropOldest()) {
+                    // Only lines we can't drop, so no hope of catching up.
+                    disconnect();
+                }
+                break;
+
+            case DISCONNECT:
+                disconnect();
+                break;
+            }
+        }
+    }
+
+    private boolean dropOldest() {
+        final Iterator<Record> iter = records.iterator();
+        while (iter.hasNext()) {
+            final Record rec = iter.next();
+            if (rec.isDroppable()) {
+                iter.remove();
+
+                depth -= rec.len;
+                droppedLines++;
+                droppedBytes += rec.len;
+
+                recycle(rec);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void disconnect() {
+        disconnected = true;
+        closed = true;
+        notifyAll();
+
+        // Also wakes the writer, if it's stuck writing to the client.
+        try {
+            proto.close();
+        } catch (IOException ex) {
+            // Closing anyway.
+        }
+    }
+
+    private void append(byte[] buf, int off, int len, boolean tail) {
+        Record rec = records.peekLast();
+        if (rec == null || rec.mark || rec.tail) {
+            // Start a new record.
+            rec = newRecord();
+            rec.head = lineStart;
+            records.addLast(rec);
+        }
+
+        if (rec.len + len > rec.data.length) {
+            final byte[] grown = new byte[Math.max(rec.len + len,
+                    rec.data.length * 2)];
+            System.arraycopy(rec.data, 0, grown, 0, rec.len);
+            rec.data = grown;
+        }
+
+        System.arraycopy(buf, off, rec.data, rec.len, len);
+        rec.len += len;
+        rec.tail = tail;
+
+        lineStart = tail;
+
+        depth += len;
+        if (depth + inFlight > maxDepth) {
+            maxDepth = depth + inFlight;
+        }
+    }
+
+    private Record newRecord() {
+        final Record rec = spare.pollLast();
+        return (rec == null) ? new Record() : rec;
+    }
+
+    private void recycle(Record rec) {
+        if (spare.size() < MAX_SPARE) {
+            rec.mark = false;
+            rec.len = 0;
+            rec.head = false;
+            rec.tail = false;
+            spare.addLast(rec);
+        }
+    }
+
+    private boolean checkHighWater() {
+        if (!aboveHigh && depth + inFlight >= highWater) {
+            aboveHigh = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    private boolean checkLowWater() {
+        if (aboveHigh && depth + inFlight <= lowWater) {
+            aboveHigh = false;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void fireHighWater() {
+        final Listener current = listener;
+        if (current != null) {
+            current.processHighWater(this);
+        }
+    }
+
+    private void fireLowWater() {
+        final Listener current = listener;
+        if (current != null) {
+            current.processLowWater(this);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+/**
+ * Running round trip time statistics for a connection, kept as a histogram
+ * with power of two buckets. Updated by the thread doing the I/O; safe to
+ * query from any thread.
+ * 
+ * @author cu5
+ */
+public class RTTStats {
+    // Bucket N holds times below 2^N microseconds; the last takes the rest.
+    private static final int BUCKETS = 24;
+
+    private final long[] buckets = new long[BUCKETS];
+
+    private long count;
+    private long totalNanos;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos;
+    private long lastNanos;
+
+    /**
+     * Records one round trip.
+     * 
+     * @param elapsed
+     *            round trip time, in nanoseconds
+     */
+    synchronized void add(long elapsed) {
+        final long micros = elapsed / 1000;
+        final int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        buckets[Math.min(bucket, BUCKETS - 1)]++;
+
+        count++;
+        totalNanos += elapsed;
+        if (elapsed < minNanos) {
+            minNanos = elapsed;
+        }
+        if (elapsed > maxNanos) {
+            maxNanos = elapsed;
+        }
+        lastNanos = elapsed;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the most recent round trip time.
+     * 
+     * @return last round trip time, in nanoseconds, or 0 if none yet
+     */
+    public synchronized long getLastNanos() {
+        return lastNanos;
+    }
+
+    public synchronized long getMinNanos() {
+        return (count == 0) ? 0 : minNanos;
+    }
+
+    public synchronized long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public synchronized long getAverageNanos() {
+        return (count == 0) ? 0 : totalNanos / count;
+    }
+
+    /**
+     * Estimates a percentile of the round trip time, to within a factor of 2.
+     * 
+     * @param percent
+     *            percentile to estimate, from 0 to 100
+     * 
+     * @return upper bound of the bucket holding the percentile, in
+     *         nanoseconds, or 0 if none yet
+     */
+    public synchronized long getPercentileNanos(double percent) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("Invalid percentile");
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(count * percent / 100);
+        long seen = 0;
+        for (int ii = 0; ii < BUCKETS - 1; ii++) {
+            seen += buckets[ii];
+            if (seen >= rank) {
+                return Math.min((1L << ii) * 1000, maxNanos);
+            }
+        }
+
+        return maxNanos;
+    }
+
+    /**
+     * Gets a copy of the histogram. Bucket N counts round trips of less than
+     * 2<sup>N</sup> microseconds, but no less than 2<sup>N-1</sup>; the last
+     * bucket counts everything longer.
+     * 
+     * @return bucket counts
+     */
+    public synchronized long[] getHistogram() {
+        return buckets.clone();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d samples, last %d us, min %d us, "
+                + "avg %d us, p99 <= %d us, max %d us", Long.valueOf(count),
+                Long.valueOf(lastNanos / 1000), Long
+                        .valueOf(getMinNanos() / 1000), Long
+                        .valueOf(getAverageNanos() / 1000), Long
+                        .valueOf(getPercentileNanos(99) / 1000), Long
+                        .valueOf(maxNanos / 1000));
+    }
+}
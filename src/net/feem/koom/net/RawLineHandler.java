@@ -0,0 +1,48 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+/**
+ * Receives lines diverted from an NVT's input by
+ * {@link AbstractNVT#divertLines(byte[], RawLineHandler)}, as raw bytes.
+ * Lines are delivered on the thread reading from the NVT.
+ * 
+ * @author cu5
+ */
+public interface RawLineHandler {
+    /**
+     * Called with the next piece of the current line, starting with the
+     * prefix that caused it to be diverted. The bytes are only valid for the
+     * duration of the call.
+     * 
+     * @param buf
+     *            byte array
+     * @param off
+     *            offset into byte array
+     * @param len
+     *            number of bytes
+     */
+    public void processData(byte[] buf, int off, int len);
+
+    /**
+     * Called at the end of each line. The line terminator isn't passed on,
+     * but a CR before it may have been.
+     */
+    public void processEndOfLine();
+}
@@ -19,6 +19,7 @@
 package net.feem.koom.net;
 
 import java.io.IOException;
+import java.util.zip.Deflater;
 
 /**
  * A high level interface to the TELNET protocol. You should generally interface
@@ -35,6 +36,11 @@ public class ServerNVT extends AbstractNVT {
     private boolean telnetOK;
     private final TTYPEOption optionTTYPE = new TTYPEOption();
     private final NAWSOption optionNAWS = new NAWSOption();
+    private final MCCPOption optionMCCP = new MCCPOption();
+    private final EOROption optionEOR = new EOROption();
+    private final SGAOption optionSGA = new SGAOption();
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
     public ServerNVT(TELNETProtocol proto) {
         super(proto);
@@ -47,6 +53,40 @@ public class ServerNVT extends AbstractNVT {
         // Experimentally try to enable TTYPE, to see if the client is using the
         // TELNET protocol.
         optionTTYPE.tryEnable();
+
+        // Offer to mark prompts with EOR, rather than GA.
+        optionEOR.tryEnable();
+
+        if (compressionLevel != Deflater.NO_COMPRESSION) {
+            // Offer compression.
+            optionMCCP.tryEnable();
+        }
+    }
+
+    /**
+     * Sets the compression level used if the client agrees to MCCP. Must be
+     * called before {@link #begin()} to have any effect.
+     * 
+     * @param level
+     *            {@link Deflater} compression level, or
+     *            {@link Deflater#NO_COMPRESSION} to not offer compression
+     */
+    public void setCompressionLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION
+                || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level");
+        }
+
+        compressionLevel = level;
+    }
+
+    /**
+     * Gets statistics for compressed output to the client.
+     * 
+     * @return output compression statistics
+     */
+    public CompressionStats getCompressionStats() {
+        return getProtocol().getOutputCompressionStats();
     }
 
     @Override
@@ -55,12 +95,63 @@ public class ServerNVT extends AbstractNVT {
         return false;
     }
 
+    private void updateRecordMark() {
+        setRecordMark(optionEOR.isEnabled(), optionSGA.isEnabled());
+    }
+
     private void setTelnetOK() {
         // FIXME
         telnetOK = true;
     }
 
     private class InputEventHandler extends AbstractNVT.InputEventHandler {
+        @Override
+        public void processDO(int option) throws IOException {
+            switch (option) {
+            case MCCPOption.OPTION_CODE:
+                if (compressionLevel == Deflater.NO_COMPRESSION) {
+                    // Compression disabled.
+                    super.processDO(option);
+                } else {
+                    optionMCCP.enable();
+                }
+                break;
+
+            case OPTION_EOR:
+                optionEOR.enable();
+                break;
+
+            case OPTION_SGA:
+                optionSGA.enable();
+                break;
+
+            default:
+                super.processDO(option);
+                break;
+            }
+        }
+
+        @Override
+        public void processDONT(int option) throws IOException {
+            switch (option) {
+            case MCCPOption.OPTION_CODE:
+                optionMCCP.disable();
+                break;
+
+            case OPTION_EOR:
+                optionEOR.disable();
+                break;
+
+            case OPTION_SGA:
+                optionSGA.disable();
+                break;
+
+            default:
+                super.processDONT(option);
+                break;
+            }
+        }
+
         @Override
         public void processWILL(int option) throws IOException {
             switch (option) {
@@ -142,7 +233,7 @@ public class ServerNVT extends AbstractNVT {
         }
 
         @Override
-        public void endParam() throws StreamStateException {
+        public void endParam() {
             if (paramCount >= 0) {
                 System.err.print("NEW TERMINAL TYPE: ");
                 for (int ii = 0; ii < paramCount; ii++) {
@@ -152,7 +243,8 @@ public class ServerNVT extends AbstractNVT {
 
                 // Notify of terminal type change.
                 TERMINAL_TYPE_len = paramCount;
-                throw new StreamStateException();
+                getProtocol().setInputBoundary(
+                        TELNETProtocol.Boundary.RECONFIG);
             }
         }
 
@@ -277,4 +369,132 @@ public class ServerNVT extends AbstractNVT {
             }
         }
     }
+
+    /**
+     * End of Record option (RFC 885), to the client. With this enabled,
+     * records relayed to the client end with IAC EOR instead of IAC GA.
+     */
+    private final class EOROption extends TELNETOption {
+        private EOROption() {
+            super(OPTION_EOR);
+        }
+
+        @Override
+        protected void requestEnable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processWILL(OPTION_EOR);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void requestDisable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processWONT(OPTION_EOR);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void doEnable() throws IOException {
+            updateRecordMark();
+
+            // No need for GA on top of EOR.
+            optionSGA.tryEnable();
+        }
+
+        @Override
+        protected void doDisable() {
+            updateRecordMark();
+        }
+    }
+
+    /**
+     * Suppress Go Ahead option (RFC 858), to the client.
+     */
+    private final class SGAOption extends TELNETOption {
+        private SGAOption() {
+            super(OPTION_SGA);
+        }
+
+        @Override
+        protected void requestEnable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processWILL(OPTION_SGA);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void requestDisable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processWONT(OPTION_SGA);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void doEnable() {
+            updateRecordMark();
+        }
+
+        @Override
+        protected void doDisable() {
+            updateRecordMark();
+        }
+    }
+
+    /**
+     * Mud Client Compression Protocol option, version 2 (COMPRESS2).
+     */
+    private final class MCCPOption extends TELNETOption {
+        private static final int OPTION_CODE = 86;
+
+        private MCCPOption() {
+            super(OPTION_CODE);
+        }
+
+        @Override
+        protected void requestEnable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processWILL(OPTION_CODE);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void requestDisable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.processWONT(OPTION_CODE);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void doEnable() throws IOException {
+            // IAC SB COMPRESS2 IAC SE, then everything after is compressed.
+            synchronized (getWriteLock()) {
+                flushInput();
+                outputHandler.beginParam(OPTION_CODE);
+                outputHandler.endParam();
+                getProtocol().startOutputCompression(compressionLevel);
+                flushProtocol();
+            }
+        }
+
+        @Override
+        protected void doDisable() throws IOException {
+            synchronized (getWriteLock()) {
+                flushInput();
+                getProtocol().stopOutputCompression();
+                flushProtocol();
+            }
+        }
+    }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only capture of the raw bytes passing through one or more
+ * connections, written to a memory-mapped file. Appending is just a copy
+ * into the mapping, so capturing adds almost nothing to the I/O path. See
+ * {@link CaptureReplay} for playing a capture back.
+ * 
+ * <p>
+ * The file starts with an 8 byte magic number, and the wall clock time the
+ * capture started, in milliseconds. Each record after that is:
+ * </p>
+ * 
+ * <pre>
+ * long nanos     time since the capture started
+ * byte direction {@link #INPUT} or {@link #OUTPUT}
+ * int length     number of data bytes
+ * byte[] data
+ * </pre>
+ * 
+ * <p>
+ * The file is grown a region at a time, and trimmed on close. A file that
+ * wasn't closed properly ends with zeros, which read as the end of capture.
+ * </p>
+ * 
+ * @author cu5
+ */
+public class SessionCapture implements Closeable {
+    static final long MAGIC = 0x4B4F4F4D43415031L; // "KOOMCAP1"
+
+    static final int FILE_HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 13;
+
+    /**
+     * Direction of bytes read from the connection.
+     */
+    public static final byte INPUT = 1;
+
+    /**
+     * Direction of bytes written to the connection.
+     */
+    public static final byte OUTPUT = 2;
+
+    // Size of each mapped region.
+    private static final int REGION_SIZE = 4 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long startNanos;
+
+    // Current mapped region, and its offset in the file.
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    private long records;
+    private boolean closed;
+    private IOException error;
+
+    /**
+     * Creates a capture file, replacing any existing file.
+     * 
+     * @param path
+     *            file to write
+     * 
+     * @throws IOException
+     *             if the file can't be created
+     */
+    public SessionCapture(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+
+        boolean success = false;
+        try {
+            file.setLength(0);
+            channel = file.getChannel();
+
+            startNanos = System.nanoTime();
+
+            map(0, REGION_SIZE);
+            region.putLong(MAGIC);
+            region.putLong(System.currentTimeMillis());
+
+            success = true;
+        } finally {
+            if (!success) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Appends bytes read from a connection.
+     * 
+     * @param buf
+     *            byte array
+     * @param off
+     *            offset into byte array
+     * @param len
+     *            number of bytes
+     */
+    public void recordInput(byte[] buf, int off, int len) {
+        append(INPUT, buf, off, len);
+    }
+
+    /**
+     * Appends bytes written to a connection.
+     * 
+     * @param buf
+     *            byte array
+     * @param off
+     *            offset into byte array
+     * @param len
+     *            number of bytes
+     */
+    public void recordOutput(byte[] buf, int off, int len) {
+        append(OUTPUT, buf, off, len);
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Gets the error that stopped the capture, if any. Capturing never fails
+     * the connection being captured, so errors are only reported here.
+     * 
+     * @return error, or <code>null</code> if none
+     */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    /**
+     * Stops capturing, and trims the file to the data actually written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            final long end = regionStart + region.position();
+            region.force();
+            region = null;
+
+            // May fail on platforms that can't truncate a mapped file, which
+            // just leaves the trailing zeros.
+            channel.truncate(end);
+        } catch (IOException ex) {
+            // Closing anyway.
+        } finally {
+            file.close();
+        }
+    }
+
+    private synchronized void append(byte direction, byte[] buf, int off,
+            int len) {
+        if (closed || error != null) {
+            return;
+        }
+
+        final long nanos = System.nanoTime() - startNanos;
+
+        try {
+            final int size = RECORD_HEADER_SIZE + len;
+            if (region.remaining() < size) {
+                map(regionStart + region.position(), Math.max(size,
+                        REGION_SIZE));
+            }
+
+            region.putLong(nanos);
+            region.put(direction);
+            region.putInt(len);
+            region.put(buf, off, len);
+
+            records++;
+        } catch (IOException ex) {
+            error = ex;
+        }
+    }
+
+    private void map(long position, int size) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        regionStart = position;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.io.IOException;
+
+/**
+ * Sets up connections accepted by a {@link SocketServer} that's listening
+ * through a {@link SocketReactor}.
+ * 
+ * @author cu5
+ */
+public interface SocketAcceptor {
+    /**
+     * Called on the reactor thread for each newly accepted connection.
+     * 
+     * @param socket
+     *            newly accepted non-blocking connection
+     * 
+     * @return event handler for the connection
+     * 
+     * @throws IOException
+     *             if there was an I/O error; the connection will be closed
+     */
+    public SocketEventHandler processAccept(SocketConnection socket)
+            throws IOException;
+}
@@ -22,21 +22,60 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import net.feem.koom.services.Utility;
 
 /**
+ * A buffered network connection. A connection is either backed by a blocking
+ * {@link Socket}, or by a non-blocking {@link SocketChannel} driven by a
+ * {@link SocketReactor}. Either way, the connection may be secured with TLS.
+ * The buffer contract is the same in all cases.
+ * 
  * @author cu5
  */
 public class SocketConnection implements Closeable {
     private final Socket socket;
+    private final SocketChannel channel;
+
+    // TLS record layer, if secure.
+    private final TLSTransport tls;
+
+    // Buffers are leased from the pool only while there's data in them.
+    private final BufferPool pool = BufferPool.getShared();
 
     private final InputStream in;
-    private final byte[] rbuf;
+    private final int rsize;
+    private byte[] rbuf;
+    private ByteBuffer rview;
+
+    // First byte of a blocking read, taken while waiting for input.
+    private final byte[] probe = new byte[1];
 
     private final OutputStream out;
-    private final byte[] wbuf;
+    private final int wsize;
+    private byte[] wbuf;
+    private ByteBuffer wview;
+
+    // Non-blocking output waiting for the reactor, guarded by pendingLock.
+    // Also guards all TLS output.
+    private final Object pendingLock = new Object();
+    private ByteBuffer pending;
+    private boolean pendingShutdown;
+
+    // Capture of the bytes passing through, if any.
+    private volatile SessionCapture capture;
+
+    private volatile SocketReactor reactor;
+    private SocketEventHandler handler;
 
     /**
      * Establishes a buffer size, subject to a minimum value.
@@ -52,9 +91,16 @@ public class SocketConnection implements Closeable {
 
     /**
      * Gets a connected socket from a socket address and proxy configuration.
+     * Direct connections race the host's addresses; connections through a
+     * proxy leave that to the proxy.
      */
     private static Socket getSocket(SocketAddress address, Proxy proxy)
             throws IOException {
+        final SocketConnector connector = SocketConnector.getShared();
+        if (proxy == null && address instanceof InetSocketAddress) {
+            return connector.connectSocket((InetSocketAddress) address, null);
+        }
+
         Socket socket;
         if (proxy == null) {
             socket = new Socket();
@@ -62,7 +108,12 @@ public class SocketConnection implements Closeable {
             socket = new Socket(proxy);
         }
 
-        socket.connect(address);
+        try {
+            socket.connect(address, connector.getTimeout());
+        } catch (IOException ex) {
+            Utility.close(socket);
+            throw ex;
+        }
         return socket;
     }
 
@@ -76,18 +127,39 @@ public class SocketConnection implements Closeable {
      *             if there's an I/O error
      */
     public SocketConnection(Socket socket) throws IOException {
+        this(socket, null);
+    }
+
+    /**
+     * Creates a <code>SocketConnection</code> from an existing socket, secured
+     * with TLS.
+     * 
+     * @param socket
+     *            an existing socket
+     * @param engine
+     *            TLS engine, or <code>null</code> for a plain connection
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
+    public SocketConnection(Socket socket, SSLEngine engine)
+            throws IOException {
         this.socket = socket;
+        this.channel = null;
 
         boolean success = false;
         try {
             socket.setTcpNoDelay(true); // make configurable?
-            socket.setKeepAlive(true); // definitely make configurable
+            socket.setKeepAlive(true); // see setKeepAlive()
+
+            tls = (engine == null) ? null : new TLSTransport(this, engine,
+                    pendingLock);
 
             in = socket.getInputStream();
-            rbuf = new byte[getSize(socket.getReceiveBufferSize())];
+            rsize = getReceiveSize();
 
             out = socket.getOutputStream();
-            wbuf = new byte[getSize(socket.getSendBufferSize())];
+            wsize = pool.getLeaseSize(getSize(socket.getSendBufferSize()));
 
             success = true;
         } finally {
@@ -97,6 +169,63 @@ public class SocketConnection implements Closeable {
         }
     }
 
+    /**
+     * Creates a non-blocking <code>SocketConnection</code> from a connected
+     * socket channel. The channel is switched to non-blocking mode, and must
+     * then be registered with a {@link SocketReactor} before use.
+     * 
+     * @param channel
+     *            a connected socket channel
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
+    public SocketConnection(SocketChannel channel) throws IOException {
+        this(channel, null);
+    }
+
+    /**
+     * Creates a non-blocking <code>SocketConnection</code> from a connected
+     * socket channel, secured with TLS. The handshake happens as the
+     * connection is used.
+     * 
+     * @param channel
+     *            a connected socket channel
+     * @param engine
+     *            TLS engine, or <code>null</code> for a plain connection
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
+    public SocketConnection(SocketChannel channel, SSLEngine engine)
+            throws IOException {
+        this.socket = channel.socket();
+        this.channel = channel;
+
+        boolean success = false;
+        try {
+            channel.configureBlocking(false);
+
+            socket.setTcpNoDelay(true); // make configurable?
+            socket.setKeepAlive(true); // see setKeepAlive()
+
+            tls = (engine == null) ? null : new TLSTransport(this, engine,
+                    pendingLock);
+
+            in = null;
+            rsize = getReceiveSize();
+
+            out = null;
+            wsize = pool.getLeaseSize(getSize(socket.getSendBufferSize()));
+
+            success = true;
+        } finally {
+            if (!success) {
+                channel.close();
+            }
+        }
+    }
+
     /**
      * Creates a connection over a network socket.
      * 
@@ -113,59 +242,357 @@ public class SocketConnection implements Closeable {
         this(getSocket(address, proxy));
     }
 
+    /**
+     * Creates a connection over a network socket, secured with TLS.
+     * 
+     * @param address
+     *            remote address
+     * @param proxy
+     *            TODO: replace this with a generic configuration object
+     * @param context
+     *            TLS configuration, shared between connections so sessions
+     *            can be resumed
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
+    public SocketConnection(InetSocketAddress address, Proxy proxy,
+            TLSContext context) throws IOException {
+        this(getSocket(address, proxy), context.createClientEngine(address));
+    }
+
+    /**
+     * Picks a receive buffer size large enough for the socket, and for any
+     * TLS record.
+     */
+    private int getReceiveSize() throws IOException {
+        int size = getSize(socket.getReceiveBufferSize());
+        if (tls != null && size < tls.getApplicationBufferSize()) {
+            size = tls.getApplicationBufferSize();
+        }
+
+        return pool.getLeaseSize(size);
+    }
+
+    /**
+     * Closes the connection. Leased buffers may still be in use by a reader or
+     * writer, so they aren't given back here; whoever holds them does that, as
+     * {@link TELNETProtocol#close()} does.
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
     @Override
     public void close() throws IOException {
-        socket.close();
+        if (tls != null) {
+            try {
+                tls.closeOutbound();
+            } catch (IOException ex) {
+                // Closing anyway.
+            }
+        }
+
+        if (channel == null) {
+            socket.close();
+        } else {
+            // Closing the channel also cancels its reactor registration.
+            channel.close();
+
+            if (reactor != null) {
+                reactor.notifyClosed(this);
+            }
+        }
     }
 
     public void shutdownOutput() throws IOException {
+        if (tls != null) {
+            tls.closeOutbound();
+        }
+
+        if (channel == null) {
+            socket.shutdownOutput();
+            return;
+        }
+
+        synchronized (pendingLock) {
+            if (pending != null && pending.position() != 0) {
+                // Shut down once the reactor has drained the pending output.
+                pendingShutdown = true;
+                return;
+            }
+        }
+
         socket.shutdownOutput();
     }
 
+    /**
+     * Gets an estimate of the number of bytes that can be read without
+     * blocking. Non-blocking connections always return 0, since a read will
+     * never block anyway.
+     * 
+     * @return number of bytes available
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
     public int available() throws IOException {
-        return in.available();
+        if (channel == null) {
+            if (tls != null) {
+                return tls.available();
+            }
+
+            return in.available();
+        }
+
+        return 0;
     }
 
     public void flush() throws IOException {
-        out.flush();
+        if (channel == null) {
+            out.flush();
+        }
     }
 
+    /**
+     * Sets the read timeout. This has no effect on non-blocking connections.
+     * 
+     * @param timeout
+     *            timeout in milliseconds, or 0 for no timeout
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
     public void setTimeout(int timeout) throws IOException {
-        socket.setSoTimeout(timeout);
+        if (channel == null) {
+            socket.setSoTimeout(timeout);
+        }
     }
 
     /**
-     * @return receive buffer of at least 256 bytes
+     * Enables or disables TCP keepalive, which is on by default. The TCP
+     * keepalive takes hours to notice a dead connection, so it may be turned
+     * off once the protocol is probing the connection itself.
+     * 
+     * @param on
+     *            whether to send TCP keepalives
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    public void setKeepAlive(boolean on) throws IOException {
+        socket.setKeepAlive(on);
+    }
+
+    /**
+     * Starts or stops capturing the bytes passing through this connection.
+     * With TLS, the decrypted bytes are captured.
+     * 
+     * @param capture
+     *            capture to append to, or <code>null</code> to stop
+     */
+    public void setCapture(SessionCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Tests if this connection is non-blocking.
+     * 
+     * @return if this connection is driven by a {@link SocketReactor}
+     */
+    public boolean isNonBlocking() {
+        return channel != null;
+    }
+
+    /**
+     * Tests if this connection is secured with TLS.
+     * 
+     * @return if TLS is in use
+     */
+    public boolean isSecure() {
+        return tls != null;
+    }
+
+    /**
+     * Gets the TLS session. Until the handshake has finished, this is a
+     * placeholder session.
+     * 
+     * @return TLS session, or <code>null</code> if not secure
+     */
+    public SSLSession getSession() {
+        return (tls == null) ? null : tls.getSession();
+    }
+
+    /**
+     * @return size of the receive buffer, at least 256 bytes
+     */
+    public int getReceiveBufferSize() {
+        return rsize;
+    }
+
+    /**
+     * @return size of the send buffer, at least 256 bytes
+     */
+    public int getSendBufferSize() {
+        return wsize;
+    }
+
+    /**
+     * Gets the receive buffer holding the bytes from the last {@link #read()}.
+     * The buffer is leased by a successful read, and stays valid until the
+     * next read or {@link #releaseReceiveBuffer()}.
+     * 
+     * @return receive buffer, or <code>null</code> if none is leased
      */
     public byte[] getReceiveBuffer() {
         return rbuf;
     }
 
     /**
-     * @return send buffer of at least 256 bytes
+     * Returns the receive buffer to the pool, once its contents have been
+     * consumed. Reading again leases a new one.
+     */
+    public void releaseReceiveBuffer() {
+        if (rbuf != null) {
+            pool.release(rbuf);
+            rbuf = null;
+        }
+    }
+
+    /**
+     * Gets the send buffer, leasing one if necessary. The buffer stays valid
+     * until {@link #releaseSendBuffer()}.
+     * 
+     * @return send buffer
      */
     public byte[] getSendBuffer() {
+        if (wbuf == null) {
+            wbuf = pool.lease(wsize);
+        }
+
         return wbuf;
     }
 
+    /**
+     * Returns the send buffer to the pool, once its contents have been
+     * written. Any data still in it is lost.
+     */
+    public void releaseSendBuffer() {
+        if (wbuf != null) {
+            pool.release(wbuf);
+            wbuf = null;
+        }
+    }
+
     /**
      * Reads in bytes to fill the receive buffer. The existing buffer contents
      * are discarded. Blocks until at least one byte has been read, the end of
      * stream is reached, or an exception is thrown.
      * 
+     * <p>
+     * A non-blocking connection throws {@link WouldBlockException} instead of
+     * blocking, just as if a zero length read timeout had expired.
+     * </p>
+     * 
+     * <p>
+     * The receive buffer is only kept if something was read, and a blocking
+     * connection waits for input before leasing one, so a connection waiting
+     * on input holds no buffer either way.
+     * </p>
+     * 
      * @return number of bytes read, or -1 if end of stream
      * 
      * @throws IOException
      *             if there was an I/O error
      */
     public int read() throws IOException {
-        return in.read(rbuf);
+        int held = 0;
+        if (channel == null) {
+            held = awaitInput();
+            if (held == -1) {
+                return -1;
+            }
+        }
+
+        if (rbuf == null) {
+            rbuf = pool.lease(rsize);
+        }
+
+        int len = 0;
+        try {
+            if (channel == null && tls == null) {
+                if (held == 0) {
+                    len = in.read(rbuf);
+                } else {
+                    // Take whatever else has arrived with the first byte.
+                    rbuf[0] = probe[0];
+                    len = 1;
+
+                    final int more = Math.min(in.available(), rbuf.length - 1);
+                    if (more > 0) {
+                        len += in.read(rbuf, 1, more);
+                    }
+                }
+            } else {
+                if (rview == null || rview.array() != rbuf) {
+                    rview = ByteBuffer.wrap(rbuf);
+                }
+
+                rview.clear();
+                if (tls == null) {
+                    len = channel.read(rview);
+                } else {
+                    len = tls.read(rview);
+                }
+            }
+        } finally {
+            if (len <= 0) {
+                // Nothing to hold on to.
+                releaseReceiveBuffer();
+            }
+        }
+
+        if (len == 0) {
+            throw WouldBlockException.INSTANCE;
+        }
+
+        final SessionCapture current = capture;
+        if (current != null && len > 0) {
+            current.recordInput(rbuf, 0, len);
+        }
+
+        return len;
+    }
+
+    /**
+     * Blocks a stream read until there's input, without a receive buffer.
+     * 
+     * @return 1 if the first byte was read into the probe, 0 if input is
+     *         waiting, or -1 if end of stream
+     */
+    private int awaitInput() throws IOException {
+        if (tls != null) {
+            // Encrypted bytes wait in the transport's own buffer.
+            tls.awaitInput();
+            return 0;
+        }
+
+        if (in.available() != 0) {
+            return 0;
+        }
+
+        return in.read(probe, 0, 1);
     }
 
     /**
      * Writes out the given number of bytes from the send buffer. Will block
      * until all bytes are written, or an exception is thrown.
      * 
+     * <p>
+     * A non-blocking connection never blocks. Instead, anything the channel
+     * won't immediately accept is copied aside, and written out later by the
+     * reactor. Either way, the send buffer may be reused once this returns.
+     * </p>
+     * 
      * @param len
      *            number of bytes to write
      * 
@@ -173,6 +600,239 @@ public class SocketConnection implements Closeable {
      *             if there was an I/O error
      */
     public void write(int len) throws IOException {
-        out.write(wbuf, 0, len);
+        final SessionCapture current = capture;
+        if (current != null) {
+            current.recordOutput(wbuf, 0, len);
+        }
+
+        if (channel == null && tls == null) {
+            out.write(wbuf, 0, len);
+            return;
+        }
+
+        synchronized (pendingLock) {
+            if (wview == null || wview.array() != wbuf) {
+                wview = ByteBuffer.wrap(wbuf);
+            }
+
+            wview.clear();
+            wview.limit(len);
+
+            if (tls == null) {
+                writeChannel(wview);
+            } else {
+                tls.write(wview);
+            }
+        }
+    }
+
+    /**
+     * Writes out bytes directly from the caller's array, bypassing the send
+     * buffer. This is intended for payloads too large for the send buffer, so
+     * the caller must have emptied the send buffer first to preserve ordering.
+     * Blocking and non-blocking behavior is otherwise the same as
+     * {@link #write(int)}.
+     * 
+     * @param buf
+     *            byte array
+     * @param off
+     *            offset into byte array
+     * @param len
+     *            number of bytes to write
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    public void write(byte[] buf, int off, int len) throws IOException {
+        final SessionCapture current = capture;
+        if (current != null) {
+            current.recordOutput(buf, off, len);
+        }
+
+        if (channel == null && tls == null) {
+            out.write(buf, off, len);
+            return;
+        }
+
+        synchronized (pendingLock) {
+            if (tls == null) {
+                writeChannel(ByteBuffer.wrap(buf, off, len));
+            } else {
+                tls.write(ByteBuffer.wrap(buf, off, len));
+            }
+        }
+    }
+
+    /**
+     * Reads encrypted bytes for the TLS layer, from the stream or channel.
+     * 
+     * @param dst
+     *            buffer to fill
+     * 
+     * @return number of bytes read, 0 if a non-blocking read would block, or
+     *         -1 if end of stream
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    int readNet(ByteBuffer dst) throws IOException {
+        if (channel != null) {
+            return channel.read(dst);
+        }
+
+        final int len = in.read(dst.array(), dst.arrayOffset()
+                + dst.position(), dst.remaining());
+        if (len > 0) {
+            dst.position(dst.position() + len);
+        }
+
+        return len;
+    }
+
+    /**
+     * Gets the number of encrypted bytes that can be read without blocking,
+     * for the TLS layer. Reads on a non-blocking connection never block, so
+     * it always reports 1, leaving the read to find out.
+     * 
+     * @return number of bytes available
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    int availableNet() throws IOException {
+        return (channel == null) ? in.available() : 1;
+    }
+
+    /**
+     * Writes encrypted bytes for the TLS layer, to the stream or channel. The
+     * whole buffer is consumed.
+     * 
+     * @param src
+     *            bytes to write
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    void writeNet(ByteBuffer src) throws IOException {
+        assert Thread.holdsLock(pendingLock);
+
+        if (channel != null) {
+            writeChannel(src);
+            return;
+        }
+
+        out.write(src.array(), src.arrayOffset() + src.position(), src
+                .remaining());
+        src.position(src.limit());
+    }
+
+    private void writeChannel(ByteBuffer src) throws IOException {
+        assert Thread.holdsLock(pendingLock);
+
+        if (pending == null || pending.position() == 0) {
+            // Nothing queued ahead of us, so try writing directly.
+            channel.write(src);
+            if (!src.hasRemaining()) {
+                return;
+            }
+        }
+
+        // Save the remainder for the reactor.
+        final int remaining = src.remaining();
+        if (pending == null) {
+            pending = ByteBuffer.allocate(getSize(remaining));
+        } else if (pending.remaining() < remaining) {
+            final int needed = pending.position() + remaining;
+            final ByteBuffer grown = ByteBuffer.allocate(getSize(needed));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+
+        pending.put(src);
+
+        if (reactor != null) {
+            reactor.requestWrite(this);
+        } else {
+            // Reactor will pick this up when we're registered.
+        }
+    }
+
+    /**
+     * Gets the underlying channel of a non-blocking connection.
+     * 
+     * @return socket channel
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Associates a non-blocking connection with its reactor.
+     * 
+     * @param reactor
+     *            event loop driving this connection
+     * @param handler
+     *            event handler for this connection
+     */
+    void setReactor(SocketReactor reactor, SocketEventHandler handler) {
+        this.reactor = reactor;
+        this.handler = handler;
+    }
+
+    SocketEventHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Gets the event handler, and clears it so close notifications are only
+     * delivered once. Only called on the reactor thread.
+     * 
+     * @return event handler, or <code>null</code> if already taken
+     */
+    SocketEventHandler takeHandler() {
+        final SocketEventHandler result = handler;
+        handler = null;
+        return result;
+    }
+
+    boolean hasPending() {
+        synchronized (pendingLock) {
+            return pending != null && pending.position() != 0;
+        }
+    }
+
+    /**
+     * Writes out pending non-blocking output. Called by the reactor when the
+     * channel becomes writable.
+     * 
+     * @return if all pending output has been written
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    boolean drainPending() throws IOException {
+        synchronized (pendingLock) {
+            if (pending != null && pending.position() != 0) {
+                pending.flip();
+                try {
+                    channel.write(pending);
+                } finally {
+                    pending.compact();
+                }
+
+                if (pending.position() != 0) {
+                    // Still more to go.
+                    return false;
+                }
+            }
+
+            if (pendingShutdown) {
+                pendingShutdown = false;
+                socket.shutdownOutput();
+            }
+
+            return true;
+        }
     }
 }
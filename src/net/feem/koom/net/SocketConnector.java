@@ -0,0 +1,533 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.feem.koom.services.Utility;
+
+/**
+ * Connects to a host that may have several addresses, racing connection
+ * attempts in the style of Happy Eyeballs (RFC 8305). Attempts start a short
+ * delay apart, alternating between IPv6 and IPv4, and the first to connect
+ * wins. An address that's blackholed only costs the delay, instead of a full
+ * TCP timeout.
+ * 
+ * <p>
+ * Name resolution happens before any deadline starts, and isn't bounded by
+ * them.
+ * </p>
+ * 
+ * @author cu5
+ */
+public class SocketConnector {
+    // Defaults, in milliseconds.
+    private static final int DEFAULT_ATTEMPT_DELAY = 250;
+    private static final int DEFAULT_ATTEMPT_TIMEOUT = 10000;
+    private static final int DEFAULT_TIMEOUT = 30000;
+
+    private static final SocketConnector shared = new SocketConnector();
+
+    private volatile int attemptDelay = DEFAULT_ATTEMPT_DELAY;
+    private volatile int attemptTimeout = DEFAULT_ATTEMPT_TIMEOUT;
+    private volatile int timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * Gets a connector shared by connections that don't need their own
+     * settings.
+     * 
+     * @return shared connector
+     */
+    public static SocketConnector getShared() {
+        return shared;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    private static final class Attempt {
+        private final InetSocketAddress address;
+        private final long deadline;
+
+        private Attempt(InetSocketAddress address, long deadline) {
+            this.address = address;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Sets how long to wait for an attempt before starting the next one.
+     * 
+     * @param millis
+     *            delay, in milliseconds
+     */
+    public void setAttemptDelay(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid delay");
+        }
+
+        attemptDelay = millis;
+    }
+
+    /**
+     * Sets how long each attempt may take.
+     * 
+     * @param millis
+     *            timeout, in milliseconds
+     */
+    public void setAttemptTimeout(int millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("Invalid timeout");
+        }
+
+        attemptTimeout = millis;
+    }
+
+    /**
+     * Sets how long connecting may take altogether.
+     * 
+     * @param millis
+     *            timeout, in milliseconds
+     */
+    public void setTimeout(int millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("Invalid timeout");
+        }
+
+        timeout = millis;
+    }
+
+    /**
+     * Connects to a host, returning a blocking socket. This is a plain
+     * {@link Socket} rather than a channel's, since a channel's socket shares
+     * a lock between its input and output streams on older JVMs, and a
+     * blocked read would hold up writes. So each attempt is a blocking connect
+     * on a thread of its own, and the losers are closed.
+     * 
+     * @param address
+     *            host name and port
+     * @param preferred
+     *            address to try first, such as the last one that worked, or
+     *            <code>null</code> for none
+     * 
+     * @return connected socket
+     * 
+     * @throws IOException
+     *             if no address could be connected to in time
+     */
+    public Socket connectSocket(InetSocketAddress address,
+            InetAddress preferred) throws IOException {
+        final List<InetAddress> order = order(resolve(address), preferred);
+        final long deadline = System.nanoTime() + timeout * 1000000L;
+
+        if (order.size() == 1) {
+            // Nothing to race.
+            final Socket socket = new Socket();
+
+            boolean success = false;
+            try {
+                socket.connect(new InetSocketAddress(order.get(0), address
+                        .getPort()), Math.min(timeout, attemptTimeout));
+                success = true;
+                return socket;
+            } finally {
+                if (!success) {
+                    socket.close();
+                }
+            }
+        }
+
+        return new SocketRace(address, order, deadline).run();
+    }
+
+    /**
+     * Connects to a host, returning a non-blocking channel.
+     * 
+     * @param address
+     *            host name and port
+     * @param preferred
+     *            address to try first, such as the last one that worked, or
+     *            <code>null</code> for none
+     * 
+     * @return connected channel, in non-blocking mode
+     * 
+     * @throws IOException
+     *             if no address could be connected to in time
+     */
+    public SocketChannel connect(InetSocketAddress address,
+            InetAddress preferred) throws IOException {
+        final List<InetAddress> order = order(resolve(address), preferred);
+        return race(address, order, System.nanoTime() + timeout * 1000000L);
+    }
+
+    /**
+     * Races connections to the given addresses, in order.
+     */
+    private SocketChannel race(InetSocketAddress address,
+            List<InetAddress> order, long deadline) throws IOException {
+        final int port = address.getPort();
+
+        final long start = System.nanoTime();
+
+        IOException lastError = null;
+        int next = 0;
+        long nextStart = start;
+
+        final Selector selector = Selector.open();
+        SocketChannel winner = null;
+        try {
+            while (winner == null) {
+                long now = System.nanoTime();
+                if (now - deadline >= 0) {
+                    throw timedOut(address, lastError);
+                }
+
+                final int active = selector.keys().size();
+
+                // Start the next attempt when it's due, or straight away if
+                // the others have all failed.
+                if (next < order.size()
+                        && (now - nextStart >= 0 || active == 0)) {
+                    final InetSocketAddress target = new InetSocketAddress(
+                            order.get(next++), port);
+                    nextStart = now + attemptDelay * 1000000L;
+
+                    try {
+                        winner = start(selector, target, now
+                                + attemptTimeout * 1000000L);
+                    } catch (IOException ex) {
+                        // Unreachable network, and so on.
+                        lastError = ex;
+                    }
+                    continue;
+                }
+
+                if (active == 0) {
+                    // Nothing left to try.
+                    if (lastError == null) {
+                        lastError = new ConnectException("No addresses for "
+                                + address.getHostString());
+                    }
+                    throw lastError;
+                }
+
+                // Wait for a connection, or the next thing to do.
+                long wake = deadline;
+                if (next < order.size() && nextStart - wake < 0) {
+                    wake = nextStart;
+                }
+                for (SelectionKey key : selector.keys()) {
+                    final Attempt attempt = (Attempt) key.attachment();
+                    if (attempt.deadline - wake < 0) {
+                        wake = attempt.deadline;
+                    }
+                }
+
+                selector.select(Math.max(1, (wake - now + 999999) / 1000000));
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    final SocketChannel channel = (SocketChannel) key
+                            .channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            winner = channel;
+                            key.cancel();
+                            break;
+                        }
+                    } catch (IOException ex) {
+                        // Refused, and so on.
+                        lastError = ex;
+                        abandon(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                // Expire attempts that have taken too long.
+                now = System.nanoTime();
+                for (SelectionKey key : selector.keys()) {
+                    final Attempt attempt = (Attempt) key.attachment();
+                    if (key.isValid() && now - attempt.deadline >= 0) {
+                        lastError = new SocketTimeoutException("Connect to "
+                                + attempt.address + " timed out");
+                        abandon(key);
+                    }
+                }
+
+                // Flush cancelled keys, so they aren't counted as active.
+                selector.selectNow();
+                selector.selectedKeys().clear();
+            }
+
+            return winner;
+        } finally {
+            // Closing the selector also deregisters the winner.
+            for (SelectionKey key : selector.keys()) {
+                if (key.channel() != winner) {
+                    Utility.close(key.channel());
+                }
+            }
+
+            selector.close();
+        }
+    }
+
+    /**
+     * A race of blocking connection attempts, each on a thread of its own.
+     */
+    private final class SocketRace {
+        private final InetSocketAddress address;
+        private final List<InetAddress> order;
+        private final long deadline;
+
+        // Guarded by this race.
+        private final List<Socket> sockets = new ArrayList<Socket>();
+        private Socket winner;
+        private boolean over;
+        private int active;
+        private IOException lastError;
+
+        private SocketRace(InetSocketAddress address, List<InetAddress> order,
+                long deadline) {
+            this.address = address;
+            this.order = order;
+            this.deadline = deadline;
+        }
+
+        private synchronized Socket run() throws IOException {
+            int next = 0;
+            long nextStart = System.nanoTime();
+
+            try {
+                while (winner == null) {
+                    final long now = System.nanoTime();
+                    if (now - deadline >= 0) {
+                        throw timedOut(address, lastError);
+                    }
+
+                    // Start the next attempt when it's due, or straight away
+                    // if the others have all failed.
+                    if (next < order.size()
+                            && (now - nextStart >= 0 || active == 0)) {
+                        start(new InetSocketAddress(order.get(next++), address
+                                .getPort()));
+                        nextStart = now + attemptDelay * 1000000L;
+                        continue;
+                    }
+
+                    if (active == 0) {
+                        // Nothing left to try.
+                        if (lastError == null) {
+                            lastError = new ConnectException(
+                                    "No addresses for "
+                                            + address.getHostString());
+                        }
+                        throw lastError;
+                    }
+
+                    // Wait for a connection, or the next thing to do.
+                    long wake = deadline;
+                    if (next < order.size() && nextStart - wake < 0) {
+                        wake = nextStart;
+                    }
+
+                    try {
+                        wait(Math.max(1, (wake - now + 999999) / 1000000));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+
+                return winner;
+            } finally {
+                // Closing the losers also stops their connects.
+                over = true;
+                for (Socket socket : sockets) {
+                    if (socket != winner) {
+                        Utility.close(socket);
+                    }
+                }
+            }
+        }
+
+        private void start(final InetSocketAddress target) {
+            assert Thread.holdsLock(this);
+
+            final Socket socket = new Socket();
+            sockets.add(socket);
+            active++;
+
+            final int limit = (int) Math.max(1, Math.min(attemptTimeout,
+                    (deadline - System.nanoTime()) / 1000000));
+
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(socket, target, limit);
+                }
+            }, "Socket Connector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void attempt(Socket socket, InetSocketAddress target,
+                int limit) {
+            IOException error = null;
+            try {
+                socket.connect(target, limit);
+            } catch (IOException ex) {
+                // Refused, timed out, or closed by the winner.
+                error = ex;
+            }
+
+            synchronized (this) {
+                active--;
+
+                if (error != null) {
+                    lastError = error;
+                } else if (winner == null && !over) {
+                    winner = socket;
+                } else {
+                    // Too late.
+                    Utility.close(socket);
+                }
+
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts an attempt.
+     * 
+     * @return the channel, if it connected immediately
+     */
+    private static SocketChannel start(Selector selector,
+            InetSocketAddress target, long deadline) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+
+        boolean success = false;
+        try {
+            channel.configureBlocking(false);
+            if (channel.connect(target)) {
+                // Loopback, usually.
+                success = true;
+                return channel;
+            }
+
+            channel.register(selector, SelectionKey.OP_CONNECT, new Attempt(
+                    target, deadline));
+            success = true;
+            return null;
+        } finally {
+            if (!success) {
+                channel.close();
+            }
+        }
+    }
+
+    private static void abandon(SelectionKey key) {
+        key.cancel();
+        Utility.close(key.channel());
+    }
+
+    private static InetAddress[] resolve(InetSocketAddress address)
+            throws IOException {
+        if (!address.isUnresolved() && address.getHostString().equals(
+                address.getAddress().getHostAddress())) {
+            // Literal address, nothing to look up.
+            return new InetAddress[] { address.getAddress() };
+        }
+
+        return InetAddress.getAllByName(address.getHostString());
+    }
+
+    /**
+     * Orders addresses for connecting: the preferred address first, then
+     * alternating between address families, starting with the family of the
+     * first address.
+     */
+    private static List<InetAddress> order(InetAddress[] addresses,
+            InetAddress preferred) {
+        final List<InetAddress> first = new ArrayList<InetAddress>();
+        final List<InetAddress> second = new ArrayList<InetAddress>();
+
+        boolean firstIsV6 = false;
+        for (int ii = 0; ii < addresses.length; ii++) {
+            final InetAddress addr = addresses[ii];
+            final boolean isV6 = addr instanceof Inet6Address;
+            if (ii == 0) {
+                firstIsV6 = isV6;
+            }
+
+            if (addr.equals(preferred)) {
+                continue;
+            }
+
+            if (isV6 == firstIsV6) {
+                first.add(addr);
+            } else {
+                second.add(addr);
+            }
+        }
+
+        final List<InetAddress> result = new ArrayList<InetAddress>(
+                addresses.length);
+        for (InetAddress addr : addresses) {
+            if (addr.equals(preferred)) {
+                result.add(addr);
+                break;
+            }
+        }
+
+        for (int ii = 0; ii < Math.max(first.size(), second.size()); ii++) {
+            if (ii < first.size()) {
+                result.add(first.get(ii));
+            }
+            if (ii < second.size()) {
+                result.add(second.get(ii));
+            }
+        }
+
+        return result;
+    }
+
+    private static SocketTimeoutException timedOut(InetSocketAddress address,
+            IOException lastError) {
+        final SocketTimeoutException ex = new SocketTimeoutException(
+                "Connect to " + address.getHostString() + " timed out");
+        if (lastError != null) {
+            ex.initCause(lastError);
+        }
+        return ex;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.io.IOException;
+
+/**
+ * Receives events for a connection driven by a {@link SocketReactor}. Events
+ * are always delivered on the reactor thread, so handlers must not block.
+ * 
+ * @author cu5
+ */
+public interface SocketEventHandler {
+    /**
+     * Called when the connection has data to read. The handler should read
+     * until a {@link WouldBlockException} is thrown, or the end of stream is
+     * reached. Throwing any other {@link java.io.IOException} closes the
+     * connection.
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    public void processReadable() throws IOException;
+
+    /**
+     * Called after the connection has been closed, for whatever reason.
+     */
+    public void processClosed();
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.feem.koom.services.Utility;
+
+/**
+ * An event loop for non-blocking connections. A single reactor thread can
+ * drive any number of {@link SocketConnection}s, so the number of threads no
+ * longer grows with the number of connections.
+ * 
+ * <p>
+ * All handler callbacks happen on the reactor thread. Other threads may write
+ * to connections, or register new ones, at any time.
+ * </p>
+ * 
+ * <p>
+ * This is only the I/O primitive. The session server and controllers still
+ * use blocking connections, one thread per direction, since the NVT layer
+ * reads by blocking.
+ * </p>
+ * 
+ * @author cu5
+ */
+public class SocketReactor implements Closeable, Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private volatile Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Accept state for a listening server.
+     */
+    private static final class Listener {
+        private final SocketServer server;
+        private final SocketAcceptor acceptor;
+        private final SocketReactor[] workers;
+        private int next;
+
+        private Listener(SocketServer server, SocketAcceptor acceptor,
+                SocketReactor[] workers) {
+            this.server = server;
+            this.acceptor = acceptor;
+            this.workers = workers;
+        }
+    }
+
+    public SocketReactor() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Stops the event loop. All registered connections are closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Tests if the current thread is the reactor thread.
+     * 
+     * @return if called from the reactor thread
+     */
+    public boolean inReactor() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Registers a non-blocking connection with this reactor.
+     * 
+     * @param socket
+     *            non-blocking connection
+     * @param handler
+     *            event handler for the connection
+     */
+    public void register(final SocketConnection socket,
+            final SocketEventHandler handler) {
+        if (!socket.isNonBlocking()) {
+            throw new IllegalArgumentException("Connection is blocking");
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    attach(socket, handler);
+                } catch (IOException ex) {
+                    Utility.close(socket);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts accepting connections from a server through this reactor.
+     * Accepted connections are spread evenly over the worker reactors, or
+     * handled by this reactor if there aren't any.
+     * 
+     * @param server
+     *            server to accept connections from, created with
+     *            {@link SocketServer#forReactor(java.net.SocketAddress,
+     *            TLSContext)}
+     * @param acceptor
+     *            sets up accepted connections
+     * @param workers
+     *            reactors to run accepted connections
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    public void listen(SocketServer server, SocketAcceptor acceptor,
+            SocketReactor... workers) throws IOException {
+        final ServerSocketChannel channel = server.getChannel();
+        final Listener listener = new Listener(server, acceptor, workers);
+
+        channel.configureBlocking(false);
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(selector, SelectionKey.OP_ACCEPT,
+                            listener);
+                } catch (ClosedChannelException ex) {
+                    // Server closed before we got to it.
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the event loop until the reactor is closed.
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+
+        try {
+            while (!closed) {
+                runTasks();
+
+                selector.select();
+
+                final Iterator<SelectionKey> iter = selector.selectedKeys()
+                        .iterator();
+                while (iter.hasNext()) {
+                    final SelectionKey key = iter.next();
+                    iter.remove();
+
+                    dispatch(key);
+                }
+            }
+        } catch (IOException ex) {
+            // Selector failed. Every connection is closed below, the same as
+            // for a connection that fails by itself, so handlers hear of it
+            // through processClosed().
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof SocketConnection) {
+                    Utility.close((SocketConnection) key.attachment());
+                } else {
+                    Utility.close(key.channel());
+                }
+            }
+
+            // Deliver any close notifications.
+            runTasks();
+
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // Don't care.
+            }
+
+            thread = null;
+        }
+    }
+
+    /**
+     * Requests that pending output be written out once the connection is
+     * writable.
+     * 
+     * @param socket
+     *            connection with pending output
+     */
+    void requestWrite(final SocketConnection socket) {
+        if (inReactor()) {
+            setWriteInterest(socket);
+            return;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                setWriteInterest(socket);
+            }
+        });
+    }
+
+    /**
+     * Delivers a close notification for a connection.
+     * 
+     * @param socket
+     *            connection that was closed
+     */
+    void notifyClosed(final SocketConnection socket) {
+        if (inReactor()) {
+            deliverClosed(socket);
+            return;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                deliverClosed(socket);
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+
+        if (!inReactor()) {
+            selector.wakeup();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void attach(SocketConnection socket, SocketEventHandler handler)
+            throws IOException {
+        socket.setReactor(this, handler);
+        socket.getChannel().register(selector, SelectionKey.OP_READ, socket);
+
+        // Output may have been queued before we were registered.
+        setWriteInterest(socket);
+    }
+
+    private void setWriteInterest(SocketConnection socket) {
+        final SelectionKey key = socket.getChannel().keyFor(selector);
+        if (key != null && key.isValid() && socket.hasPending()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void deliverClosed(SocketConnection socket) {
+        final SocketEventHandler handler = socket.takeHandler();
+        if (handler != null) {
+            try {
+                handler.processClosed();
+            } catch (RuntimeException ex) {
+                report(ex);
+            }
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        if (!key.isValid()) {
+            // Cancelled since selection.
+            return;
+        }
+
+        if (key.isAcceptable()) {
+            accept(key);
+            return;
+        }
+
+        final SocketConnection socket = (SocketConnection) key.attachment();
+
+        try {
+            if (key.isWritable()) {
+                if (socket.drainPending()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            }
+
+            if (key.isValid() && key.isReadable()) {
+                socket.getHandler().processReadable();
+            }
+        } catch (IOException ex) {
+            // Can't continue with this connection.
+            Utility.close(socket);
+        } catch (RuntimeException ex) {
+            // A broken handler only takes down its own connection.
+            report(ex);
+            Utility.close(socket);
+        }
+    }
+
+    /**
+     * Reports a handler bug without stopping the event loop.
+     */
+    private static void report(RuntimeException ex) {
+        final Thread current = Thread.currentThread();
+        current.getUncaughtExceptionHandler().uncaughtException(current, ex);
+    }
+
+    private void accept(SelectionKey key) {
+        final ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        final Listener listener = (Listener) key.attachment();
+
+        while (true) {
+            final SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException ex) {
+                // Error while accepting; keep listening.
+                return;
+            }
+
+            if (channel == null) {
+                // No more pending connections.
+                return;
+            }
+
+            final SocketReactor target;
+            if (listener.workers.length == 0) {
+                target = this;
+            } else {
+                target = listener.workers[listener.next];
+                listener.next = (listener.next + 1) % listener.workers.length;
+            }
+
+            target.execute(new Runnable() {
+                @Override
+                public void run() {
+                    target.attachAccepted(channel, listener);
+                }
+            });
+        }
+    }
+
+    private void attachAccepted(SocketChannel channel, Listener listener) {
+        SocketConnection socket = null;
+        try {
+            socket = listener.server.wrap(channel);
+            attach(socket, listener.acceptor.processAccept(socket));
+            return;
+        } catch (IOException ex) {
+            // Can't set up this connection.
+        } catch (RuntimeException ex) {
+            report(ex);
+        }
+
+        if (socket == null) {
+            Utility.close(channel);
+        } else {
+            Utility.close(socket);
+        }
+    }
+}
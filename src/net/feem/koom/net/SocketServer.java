@@ -22,28 +22,177 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
- * A simple server for modest uses.
+ * A simple server for modest uses. Connections can either be accepted one at a
+ * time with {@link #accept()}, or, from a server created with
+ * {@link #forReactor(SocketAddress, TLSContext)}, handed to a
+ * {@link SocketReactor} with
+ * {@link SocketReactor#listen(SocketServer, SocketAcceptor, SocketReactor...)}
+ * .
+ * 
+ * <p>
+ * Blocking accepts use a plain {@link ServerSocket}, since sockets accepted
+ * through a channel share a lock between their input and output streams on
+ * older JVMs, and a blocked read would hold up writes. A server for a reactor
+ * listens on a channel from the start.
+ * </p>
  * 
  * @author cu5
  */
 public class SocketServer implements Closeable {
+    // Plain socket for blocking accepts, or a channel for a reactor.
     private final ServerSocket socket;
+    private final ServerSocketChannel channel;
+
+    // TLS configuration, if connections are secured.
+    private final TLSContext tls;
 
     public SocketServer(SocketAddress address) throws IOException {
+        this(address, null);
+    }
+
+    /**
+     * Creates a server whose connections are secured with TLS.
+     * 
+     * @param address
+     *            address to listen on
+     * @param tls
+     *            TLS configuration with the server's keys, or
+     *            <code>null</code> for plain connections
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
+    public SocketServer(SocketAddress address, TLSContext tls)
+            throws IOException {
+        this.tls = tls;
+        this.channel = null;
+
         socket = new ServerSocket();
 
-        socket.setReuseAddress(true);
-        socket.bind(address);
+        boolean success = false;
+        try {
+            socket.setReuseAddress(true);
+            socket.bind(address);
+            success = true;
+        } finally {
+            if (!success) {
+                socket.close();
+            }
+        }
+    }
+
+    private SocketServer(ServerSocketChannel channel, TLSContext tls) {
+        this.tls = tls;
+        this.socket = null;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates a server to hand to a {@link SocketReactor}, listening on a
+     * channel. Its connections can't be accepted with {@link #accept()}.
+     * 
+     * @param address
+     *            address to listen on
+     * @param tls
+     *            TLS configuration with the server's keys, or
+     *            <code>null</code> for plain connections
+     * 
+     * @return new server
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
+    public static SocketServer forReactor(SocketAddress address,
+            TLSContext tls) throws IOException {
+        final ServerSocketChannel opened = ServerSocketChannel.open();
+
+        boolean success = false;
+        try {
+            opened.socket().setReuseAddress(true);
+            opened.socket().bind(address);
+            success = true;
+        } finally {
+            if (!success) {
+                opened.close();
+            }
+        }
+
+        return new SocketServer(opened, tls);
+    }
+
+    /**
+     * Gets the address the server is listening on.
+     * 
+     * @return local address
+     */
+    public SocketAddress getLocalAddress() {
+        if (channel != null) {
+            return channel.socket().getLocalSocketAddress();
+        }
+
+        return socket.getLocalSocketAddress();
     }
 
     @Override
     public void close() throws IOException {
-        socket.close();
+        if (channel != null) {
+            channel.close();
+        } else {
+            socket.close();
+        }
     }
 
+    /**
+     * Waits for the next connection.
+     * 
+     * @return a blocking connection
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
     public SocketConnection accept() throws IOException {
-        return new SocketConnection(socket.accept());
+        if (channel != null) {
+            throw new IllegalStateException("Listening through a reactor");
+        }
+
+        if (tls == null) {
+            return new SocketConnection(socket.accept());
+        }
+
+        return new SocketConnection(socket.accept(), tls.createServerEngine());
+    }
+
+    /**
+     * Wraps a connection accepted by a reactor.
+     * 
+     * @param accepted
+     *            accepted channel
+     * 
+     * @return a non-blocking connection
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
+    SocketConnection wrap(SocketChannel accepted) throws IOException {
+        if (tls == null) {
+            return new SocketConnection(accepted);
+        }
+
+        return new SocketConnection(accepted, tls.createServerEngine());
+    }
+
+    /**
+     * Gets the channel for a reactor to accept from.
+     */
+    ServerSocketChannel getChannel() {
+        if (channel == null) {
+            throw new IllegalStateException("Not a server for a reactor");
+        }
+
+        return channel;
     }
 }
@@ -24,6 +24,12 @@ import java.io.IOException;
  * Indicates that the stream state changed. Content read after the stream state
  * exception is thrown may need different processing.
  * 
+ * <p>
+ * Event handlers should now use
+ * {@link TELNETProtocol#setInputBoundary(TELNETProtocol.Boundary)} instead;
+ * this remains for compatibility.
+ * </p>
+ * 
  * @author cu5
  */
 @SuppressWarnings("serial")
@@ -24,10 +24,13 @@ import java.io.IOException;
  * Handles TELNET events on behalf of a {@link TELNETProtocol}.
  * 
  * <p>
- * An event handler may throw a {@link StreamStateException} under certain
- * circumstances, as a signal that a state change has occurred that modifies any
- * further processing. After catching such an exception, the caller should make
- * sure it still is configured correctly for the current options.
+ * An input event handler may call
+ * {@link TELNETProtocol#setInputBoundary(TELNETProtocol.Boundary)} as a signal
+ * that a state change has occurred that modifies any further processing. Input
+ * then stops at that point, and the reader should make sure it still is
+ * configured correctly for the current options before clearing the boundary.
+ * Throwing a {@link StreamStateException} has the same effect, but is more
+ * expensive, and only supported for compatibility.
  * </p>
  * 
  * <p>
@@ -43,6 +43,15 @@ public abstract class TELNETOption {
         return enabled;
     }
 
+    /**
+     * Tests if this option has been requested, but not yet confirmed.
+     * 
+     * @return if trying to enable
+     */
+    public boolean isTrying() {
+        return trying;
+    }
+
     /**
      * Performs deferred work. An option frequently can't come into effect until
      * any previously buffered data has been processed; this method can be
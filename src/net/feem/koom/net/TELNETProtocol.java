@@ -22,6 +22,13 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Implementation of the TELNET protocol from Internet STD 8.
@@ -66,6 +73,25 @@ public class TELNETProtocol implements Closeable {
 
     public static final byte CODE_IAC = (byte) 255;
 
+    // End of Record, from RFC 885.
+    public static final byte CODE_EOR = (byte) 239;
+
+    /**
+     * Input boundaries. An input event handler may set a boundary to stop
+     * input processing at the current position; reads then return early, and
+     * keep returning 0 until the boundary is cleared.
+     */
+    public static enum Boundary {
+        // No boundary.
+        NONE,
+
+        // End of an unterminated record, such as a prompt ending in GA.
+        RECORD,
+
+        // Stream configuration changed.
+        RECONFIG;
+    }
+
     /**
      * TELNET command state.
      */
@@ -89,6 +115,13 @@ public class TELNETProtocol implements Closeable {
         NEGOTIATION_IAC;
     }
 
+    // Longest a flush may be deferred by corking, in nanoseconds.
+    private static final long DEFAULT_MAX_CORK_DELAY = 20000000L;
+
+    // Marks deferred flushes as due once they've been held back too long.
+    private static final ScheduledThreadPoolExecutor corkTimer =
+            newCorkTimer();
+
     private final SocketConnection socket;
 
     private final InputFilter in;
@@ -97,6 +130,20 @@ public class TELNETProtocol implements Closeable {
     private final OutputFilter out;
     private final OutputEventHandler outHandler = new OutputEventHandler();
 
+    private static ScheduledThreadPoolExecutor newCorkTimer() {
+        final ScheduledThreadPoolExecutor timer;
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "TELNET Cork Timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
     static private int getUnsigned(byte signed) {
         return 0xFF & signed;
     }
@@ -112,8 +159,8 @@ public class TELNETProtocol implements Closeable {
     public TELNETProtocol(SocketConnection socket) {
         this.socket = socket;
 
-        in = new InputFilter(socket.getReceiveBuffer());
-        out = new OutputFilter(socket.getSendBuffer());
+        in = new InputFilter();
+        out = new OutputFilter(socket.getSendBufferSize());
     }
 
     /**
@@ -125,7 +172,16 @@ public class TELNETProtocol implements Closeable {
         // Caller beware: write buffer data intentionally discarded here. Use
         // shutdownOutput() or flush() first if you care.
         //
-        socket.close();
+        try {
+            socket.close();
+        } finally {
+            // Any blocked writer is woken by now, so this won't wait long.
+            synchronized (out) {
+                out.disconnect();
+            }
+
+            in.disconnect();
+        }
     }
 
     /**
@@ -152,23 +208,229 @@ public class TELNETProtocol implements Closeable {
     }
 
     /**
-     * Clears input state change indicator after a {@link StreamStateException},
-     * allowing input processing to continue.
+     * Clears the input boundary, or the input state change indicator after a
+     * {@link StreamStateException}, allowing input processing to continue.
      */
     public void clear() {
+        in.boundary = Boundary.NONE;
         in.changed = null;
     }
 
+    /**
+     * Stops input processing at the current position. This is meant to be
+     * called by the input event handler, and costs nothing beyond a field
+     * store, unlike throwing a {@link StreamStateException}.
+     * 
+     * @param boundary
+     *            type of boundary
+     */
+    public void setInputBoundary(Boundary boundary) {
+        in.boundary = boundary;
+    }
+
+    /**
+     * Gets the input boundary that stopped the most recent read, if any.
+     * 
+     * @return type of boundary, or {@link Boundary#NONE}
+     */
+    public Boundary getInputBoundary() {
+        return in.boundary;
+    }
+
+    /**
+     * Starts decompressing input, as for MCCP (Mud Client Compression
+     * Protocol) version 2. This must be called from the input event handler,
+     * at the end of the sub-negotiation that starts the compressed stream;
+     * everything after that is run through the decompressor. Decompression
+     * ends by itself when the compressed stream ends.
+     */
+    public void startInputDecompression() {
+        in.startDecompression();
+    }
+
+    /**
+     * Tests if input is currently being decompressed.
+     * 
+     * @return if input is compressed
+     */
+    public boolean isInputCompressed() {
+        return in.inflater != null;
+    }
+
+    /**
+     * Gets statistics for decompressed input.
+     * 
+     * @return input compression statistics
+     */
+    public CompressionStats getInputCompressionStats() {
+        return in.stats;
+    }
+
     public void shutdownOutput() throws IOException {
-        out.emptyBuffer();
+        if (out.deflater != null) {
+            out.endCompression();
+        } else {
+            out.emptyBuffer();
+        }
+
         socket.shutdownOutput();
     }
 
+    /**
+     * Flushes buffered output to the network. Compressed output is flushed
+     * fully, so the remote end can decompress everything written so far.
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
     public void flush() throws IOException {
-        out.emptyBuffer();
+        synchronized (out) {
+            if (out.corks.get()[0] != 0) {
+                // Hold off, unless we've already held off for too long.
+                final long now = System.nanoTime();
+                if (!out.deferred) {
+                    out.deferred = true;
+                    out.deferredSince = now;
+                    out.due = false;
+                    out.timedFlush = corkTimer.schedule(out.flushTask,
+                            out.maxCorkDelay, TimeUnit.NANOSECONDS);
+                    return;
+                }
+
+                if (!out.due && now - out.deferredSince < out.maxCorkDelay) {
+                    return;
+                }
+            }
+
+            flushNow();
+        }
+    }
+
+    /**
+     * Gets the object used for synchronizing writes. All output, including
+     * output events, must be written while holding this lock.
+     * 
+     * @return lock object
+     */
+    public Object getWriteLock() {
+        return out;
+    }
+
+    /**
+     * Corks output for the calling thread. Until a matching {@link #uncork()},
+     * its calls to {@link #flush()} are deferred, so output from several
+     * flushes goes out in a single write. Corks nest. Other threads aren't
+     * held back, and a flush from one of them also sends whatever was
+     * deferred. Otherwise, once the maximum cork delay has passed, the
+     * deferred flush goes out with the corked thread's next write or flush.
+     * The timer that tracks the delay never writes itself, so a connection
+     * that stalls can't hold up others.
+     * 
+     * <p>
+     * Input processing corks output by itself while working through data
+     * that has already arrived, so responses to a burst of negotiations are
+     * written together. Output is always uncorked while waiting for input.
+     * </p>
+     */
+    public void cork() {
+        out.corks.get()[0]++;
+    }
+
+    /**
+     * Uncorks output, performing any deferred flush once the calling thread's
+     * last cork is removed.
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    public void uncork() throws IOException {
+        final int[] corks = out.corks.get();
+        assert corks[0] > 0;
+
+        if (--corks[0] == 0) {
+            flushDeferred();
+        }
+    }
+
+    private void flushDeferred() throws IOException {
+        synchronized (out) {
+            if (out.deferred) {
+                flushNow();
+            }
+        }
+    }
+
+    /**
+     * Sets the longest a flush may be deferred by corking. Once exceeded, the
+     * next flush goes out regardless.
+     * 
+     * @param millis
+     *            maximum delay, in milliseconds
+     */
+    public void setMaxCorkDelay(long millis) {
+        synchronized (out) {
+            out.maxCorkDelay = millis * 1000000L;
+        }
+    }
+
+    private void flushNow() throws IOException {
+        if (out.timedFlush != null) {
+            out.timedFlush.cancel(false);
+            out.timedFlush = null;
+        }
+
+        out.deferred = false;
+        out.due = false;
+        out.flushBuffer();
         socket.flush();
     }
 
+    /**
+     * Starts compressing output, as for MCCP version 2. Anything already
+     * buffered, such as the sub-negotiation announcing compression, is written
+     * out uncompressed first.
+     * 
+     * @param level
+     *            {@link Deflater} compression level
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    public void startOutputCompression(int level) throws IOException {
+        out.startCompression(level);
+    }
+
+    /**
+     * Ends the compressed output stream, if any. Further output is written
+     * uncompressed.
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    public void stopOutputCompression() throws IOException {
+        if (out.deflater != null) {
+            out.endCompression();
+        }
+    }
+
+    /**
+     * Tests if output is currently being compressed.
+     * 
+     * @return if output is compressed
+     */
+    public boolean isOutputCompressed() {
+        return out.deflater != null;
+    }
+
+    /**
+     * Gets statistics for compressed output.
+     * 
+     * @return output compression statistics
+     */
+    public CompressionStats getOutputCompressionStats() {
+        return out.stats;
+    }
+
     public InputStream getInputStream() {
         return in;
     }
@@ -177,21 +439,100 @@ public class TELNETProtocol implements Closeable {
         return out;
     }
 
+    /**
+     * Relays input data to another protocol's output, as raw bytes. Runs of
+     * plain data go straight from our receive buffer into the target's output,
+     * with only IAC escaped again; commands are still delivered to our input
+     * event handler as usual. The target is flushed afterwards.
+     * 
+     * <p>
+     * Like a read, this blocks until some data has been relayed, and stops
+     * early at an input boundary.
+     * </p>
+     * 
+     * @param target
+     *            protocol to relay to
+     * 
+     * @return number of data bytes relayed, or -1 if end of stream
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    public int transferTo(TELNETProtocol target) throws IOException {
+        final int len = transfer(target.out);
+        if (len > 0) {
+            target.flush();
+        }
+
+        return len;
+    }
+
+    /**
+     * Relays input data to an output stream, as raw bytes, then flushes the
+     * stream. The stream does its own locking, if any. Otherwise, this is the
+     * same as {@link #transferTo(TELNETProtocol)}.
+     * 
+     * @param dest
+     *            stream to relay to
+     * 
+     * @return number of data bytes relayed, or -1 if end of stream
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    public int transferTo(OutputStream dest) throws IOException {
+        final int len = transfer(dest);
+        if (len > 0) {
+            dest.flush();
+        }
+
+        return len;
+    }
+
+    private int transfer(OutputStream dest) throws IOException {
+        in.checkState();
+
+        in.enter();
+        cork();
+        try {
+            return in.transferData(dest);
+        } finally {
+            uncork();
+            in.exit();
+        }
+    }
+
     //
     // Translate TELNET input stream to raw data bytes.
     //
     private final class InputFilter extends InputStream {
         private static final int NEED_DATA = 128;
+        private static final int AT_BOUNDARY = 129;
 
-        private final byte[] rbuf;
+        // Current input; either the socket buffer, or decompressed data. The
+        // socket buffer is leased from the connection, and given back before
+        // each read, once it's been consumed.
+        private byte[] rbuf;
         private int roff, rlen;
 
         private CommandState state = CommandState.START;
+        private Boundary boundary = Boundary.NONE;
         private StreamStateException changed;
 
-        private InputFilter(byte[] rbuf) {
-            this.rbuf = rbuf;
-        }
+        // Compressed input, fed to the inflater from the socket buffer.
+        private byte[] sbuf;
+        private final CompressionStats stats = new CompressionStats();
+        private Inflater inflater;
+        private byte[] zbuf;
+        private int zlen;
+        private int zheld;
+        private IOException zerror;
+
+        // Reads in progress, and whether the connection is closed; guarded by
+        // this filter. The receive buffer is given back by whichever of the
+        // last reader and close() finishes last.
+        private int readers;
+        private boolean closed;
 
         @Override
         public int available() {
@@ -204,12 +545,22 @@ public class TELNETProtocol implements Closeable {
         public int read() throws IOException {
             checkState();
 
-            do {
-                final int next = nextData();
-                if (next != NEED_DATA) {
-                    return 0xFF & next;
-                }
-            } while (fill());
+            enter();
+            cork();
+            try {
+                do {
+                    final int next = nextData();
+                    if (next == AT_BOUNDARY) {
+                        // No other way to report this from a single byte read.
+                        throw new StreamStateException();
+                    } else if (next != NEED_DATA) {
+                        return 0xFF & next;
+                    }
+                } while (fill());
+            } finally {
+                uncork();
+                exit();
+            }
 
             return -1;
         }
@@ -218,14 +569,38 @@ public class TELNETProtocol implements Closeable {
         public int read(byte[] buf, int off, int len) throws IOException {
             checkState();
 
+            enter();
+            cork();
+            try {
+                return readData(buf, off, len);
+            } finally {
+                uncork();
+                exit();
+            }
+        }
+
+        private int readData(byte[] buf, int off, int len) throws IOException {
             int ii = 0;
 
             try {
                 while (ii < len) {
+                    // Copy plain data in bulk, up to the next IAC.
+                    final int run = dataRun(len - ii);
+                    if (run > 0) {
+                        System.arraycopy(rbuf, roff, buf, off, run);
+                        roff += run;
+                        off += run;
+                        ii += run;
+                        continue;
+                    }
+
                     final int next = nextData();
-                    if (next == NEED_DATA) {
+                    if (next == AT_BOUNDARY) {
+                        // Stop here until the boundary is cleared.
+                        break;
+                    } else if (next == NEED_DATA) {
                         // Try to fill buffer.
-                        if (socket.available() == 0) {
+                        if (!canInflate() && socket.available() == 0) {
                             // Would block.
                             if (ii != 0) {
                                 break;
@@ -255,10 +630,73 @@ public class TELNETProtocol implements Closeable {
             return ii;
         }
 
+        private int transferData(OutputStream dest) throws IOException {
+            // Errors writing to the target are always thrown, but as with a
+            // read, input errors wait until what we've got is relayed.
+            int ii = 0;
+
+            while (true) {
+                // Pass plain data through in bulk, up to the next IAC.
+                final int run = dataRun(Integer.MAX_VALUE);
+                if (run > 0) {
+                    dest.write(rbuf, roff, run);
+                    roff += run;
+                    ii += run;
+                    continue;
+                }
+
+                final int next;
+                try {
+                    next = nextData();
+                    if (next == NEED_DATA) {
+                        // Try to fill buffer.
+                        if (ii != 0 && !canInflate()
+                                && socket.available() == 0) {
+                            // Would block.
+                            break;
+                        }
+
+                        if (!fill()) {
+                            // End of stream.
+                            return (ii == 0) ? -1 : ii;
+                        }
+                        continue;
+                    }
+                } catch (IOException ex) {
+                    if (ii == 0) {
+                        throw ex;
+                    }
+                    break;
+                }
+
+                if (next == AT_BOUNDARY) {
+                    // Stop here until the boundary is cleared.
+                    break;
+                }
+
+                // Got next byte.
+                dest.write(next);
+                ii++;
+            }
+
+            return ii;
+        }
+
         @Override
         public long skip(long count) throws IOException {
             checkState();
 
+            enter();
+            cork();
+            try {
+                return skipData(count);
+            } finally {
+                uncork();
+                exit();
+            }
+        }
+
+        private long skipData(long count) throws IOException {
             // We still need to process every single byte, but we don't need to
             // save it anywhere. Since the caller has expressed no interest in
             // the skipped content, we also block to satisfy the request unless
@@ -267,8 +705,20 @@ public class TELNETProtocol implements Closeable {
 
             try {
                 while (ii < count) {
+                    // Skip plain data in bulk, up to the next IAC.
+                    final int run = dataRun((int) Math.min(count - ii,
+                            Integer.MAX_VALUE));
+                    if (run > 0) {
+                        roff += run;
+                        ii += run;
+                        continue;
+                    }
+
                     final int next = nextData();
-                    if (next == NEED_DATA) {
+                    if (next == AT_BOUNDARY) {
+                        // Stop here until the boundary is cleared.
+                        break;
+                    } else if (next == NEED_DATA) {
                         // Try to fill buffer.
                         if (!fill()) {
                             // End of stream.
@@ -292,16 +742,243 @@ public class TELNETProtocol implements Closeable {
         private boolean fill() throws IOException {
             assert roff == rlen;
 
-            final int len = socket.read();
+            if (zerror != null) {
+                // Compressed stream is unrecoverable.
+                throw zerror;
+            }
+
+            if (inflater != null) {
+                return inflate();
+            }
+
+            final int len = readSocket();
             if (len == -1) {
                 return false;
             }
 
+            rbuf = sbuf;
             roff = 0;
             rlen = len;
             return true;
         }
 
+        /**
+         * Reads from the connection, first uncorking output so it isn't held
+         * back while we wait. The old socket buffer must have been consumed.
+         */
+        private int readSocket() throws IOException {
+            // Give back the old buffer, so we don't hold one while waiting.
+            socket.releaseReceiveBuffer();
+            sbuf = null;
+            if (inflater == null) {
+                rbuf = null;
+                roff = rlen = 0;
+            }
+
+            // Lift all of this thread's corks, not just our own.
+            final int[] corks = out.corks.get();
+            final int saved = corks[0];
+            corks[0] = 0;
+            flushDeferred();
+
+            final int len;
+            try {
+                len = socket.read();
+            } finally {
+                corks[0] = saved;
+            }
+
+            sbuf = socket.getReceiveBuffer();
+            return len;
+        }
+
+        private void startDecompression() {
+            if (inflater != null) {
+                // Already compressed.
+                return;
+            }
+
+            if (zbuf == null) {
+                zbuf = new byte[socket.getReceiveBufferSize()];
+            }
+
+            // Whatever's left in the socket buffer is compressed.
+            inflater = new Inflater();
+            inflater.setInput(sbuf, roff, rlen - roff);
+            zlen = rlen;
+
+            rbuf = zbuf;
+            roff = rlen = 0;
+        }
+
+        private void endDecompression() {
+            inflater.end();
+            inflater = null;
+            zheld = 0;
+
+            rbuf = sbuf;
+            roff = rlen = 0;
+        }
+
+        /**
+         * Tests if decompression can make progress without reading more. The
+         * inflater may hold output that didn't fit last time even with its
+         * input used up, so the only way to tell is to try; anything it
+         * produces is held for the next {@link #inflate()}.
+         */
+        private boolean canInflate() throws IOException {
+            if (inflater == null) {
+                return false;
+            }
+
+            if (zheld == 0 && !inflater.finished()) {
+                if (!inflater.needsInput()) {
+                    return true;
+                }
+
+                zheld = inflateStep();
+            }
+
+            return zheld != 0
+                    || (inflater.finished() && inflater.getRemaining() != 0);
+        }
+
+        private boolean inflate() throws IOException {
+            while (true) {
+                if (zheld != 0) {
+                    // Inflated ahead by canInflate().
+                    roff = 0;
+                    rlen = zheld;
+                    zheld = 0;
+                    return true;
+                }
+
+                if (inflater.finished()) {
+                    // End of compressed stream; the rest is uncompressed.
+                    final int remaining = inflater.getRemaining();
+                    endDecompression();
+
+                    if (remaining == 0) {
+                        return fill();
+                    }
+
+                    roff = zlen - remaining;
+                    rlen = zlen;
+                    return true;
+                }
+
+                // Drain held output before blocking for more input.
+                final int len = inflateStep();
+                if (len != 0) {
+                    roff = 0;
+                    rlen = len;
+                    return true;
+                }
+
+                if (inflater.needsDictionary()) {
+                    zerror = new IOException("MCCP stream needs dictionary");
+                    endDecompression();
+                    throw zerror;
+                }
+
+                if (!inflater.finished() && inflater.needsInput()) {
+                    final int read = readSocket();
+                    if (read == -1) {
+                        // Truncated compressed stream.
+                        endDecompression();
+                        return false;
+                    }
+
+                    inflater.setInput(sbuf, 0, read);
+                    zlen = read;
+                }
+            }
+        }
+
+        /**
+         * Inflates into the decompression buffer, without reading more.
+         * 
+         * @return number of bytes inflated
+         */
+        private int inflateStep() throws IOException {
+            final int len;
+            final long start = System.nanoTime();
+            final int before = inflater.getRemaining();
+            try {
+                len = inflater.inflate(zbuf);
+            } catch (DataFormatException ex) {
+                zerror = new IOException("MCCP decompression failed", ex);
+                endDecompression();
+                throw zerror;
+            }
+
+            final long elapsed = System.nanoTime() - start;
+            stats.add(before - inflater.getRemaining(), len, elapsed);
+            return len;
+        }
+
+        /**
+         * Measures the run of plain data bytes at the start of the buffer. Such
+         * bytes need no processing by the command state machine, so they can
+         * be consumed in bulk.
+         * 
+         * @param max
+         *            maximum run length
+         * 
+         * @return length of the run, or 0 if the command state machine must
+         *         handle the next byte
+         */
+        private int dataRun(int max) {
+            if (state != CommandState.START || boundary != Boundary.NONE) {
+                return 0;
+            }
+
+            final int end = (rlen - roff < max) ? rlen : roff + max;
+
+            int ii = roff;
+            while (ii < end && rbuf[ii] != CODE_IAC) {
+                ii++;
+            }
+
+            return ii - roff;
+        }
+
+        private synchronized void enter() throws IOException {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+
+            readers++;
+        }
+
+        private synchronized void exit() {
+            if (--readers == 0 && closed) {
+                releaseBuffers();
+            }
+        }
+
+        /**
+         * Gives back the receive buffer once the connection is closed, or
+         * leaves it to the last reader still using it.
+         */
+        private synchronized void disconnect() {
+            closed = true;
+            if (readers == 0) {
+                releaseBuffers();
+            }
+        }
+
+        private void releaseBuffers() {
+            if (inflater != null) {
+                endDecompression();
+            }
+
+            socket.releaseReceiveBuffer();
+            sbuf = null;
+            rbuf = null;
+            roff = rlen = 0;
+        }
+
         private void checkState() throws StreamStateException {
             if (changed != null) {
                 // Re-throw exception until reset.
@@ -319,6 +996,10 @@ public class TELNETProtocol implements Closeable {
         }
 
         private int nextDataUnwrapped() throws IOException {
+            if (boundary != Boundary.NONE) {
+                return AT_BOUNDARY;
+            }
+
             while (roff < rlen) {
                 final byte nextByte = rbuf[roff++];
 
@@ -440,6 +1121,11 @@ public class TELNETProtocol implements Closeable {
                     }
                     break;
                 }
+
+                if (boundary != Boundary.NONE) {
+                    // Set by the event handler.
+                    return AT_BOUNDARY;
+                }
             }
 
             return NEED_DATA;
@@ -450,33 +1136,143 @@ public class TELNETProtocol implements Closeable {
     // Translate raw data bytes to TELNET output stream.
     //
     private final class OutputFilter extends OutputStream {
-        private final byte[] wbuf;
+        // Send buffer, leased from the connection until the next flush.
+        private final int wsize;
+        private byte[] wbuf;
         private int wlen;
 
-        private OutputFilter(byte[] wbuf) {
-            this.wbuf = wbuf;
+        // Cork count of each thread.
+        private final ThreadLocal<int[]> corks = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
+
+        // Deferred flush state, guarded by this filter.
+        private boolean deferred;
+        private long deferredSince;
+        private long maxCorkDelay = DEFAULT_MAX_CORK_DELAY;
+        private ScheduledFuture<?> timedFlush;
+
+        // Set by the cork timer once a deferred flush is overdue, for the
+        // next writer to act on. The timer takes no locks, since the writer
+        // may be blocked on the network while holding this filter.
+        private volatile boolean due;
+
+        private final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                due = true;
+            }
+        };
+
+        // Compressed output, written out to the connection from zbuf.
+        private final CompressionStats stats = new CompressionStats();
+        private Deflater deflater;
+        private byte[] zbuf;
+
+        // Set once the connection is closed, guarded by this filter.
+        private boolean closed;
+
+        private OutputFilter(int wsize) {
+            this.wsize = wsize;
         }
 
+        // Writes from outside, such as relayed data, take the write lock.
         @Override
-        public void write(int nextByte) throws IOException {
+        public synchronized void write(int nextByte) throws IOException {
             nextData((byte) nextByte);
+            flushIfDue();
         }
 
         @Override
-        public void write(byte[] buf, int off, int len) throws IOException {
-            for (int ii = 0; ii < len; ii++) {
-                nextData(buf[off++]);
+        public synchronized void write(byte[] buf, int off, int len)
+                throws IOException {
+            final int end = off + len;
+
+            while (off < end) {
+                // Find the next IAC.
+                int run = off;
+                while (run < end && buf[run] != CODE_IAC) {
+                    run++;
+                }
+
+                if (run != off) {
+                    writeRun(buf, off, run - off);
+                    off = run;
+                }
+
+                if (off != end) {
+                    // Escaping IAC requires two bytes.
+                    reserve(2);
+                    wbuf[wlen++] = CODE_IAC;
+                    wbuf[wlen++] = CODE_IAC;
+                    off++;
+                }
+            }
+
+            flushIfDue();
+        }
+
+        /**
+         * Sends a deferred flush the cork timer has found overdue.
+         */
+        private void flushIfDue() throws IOException {
+            assert Thread.holdsLock(this);
+
+            if (due && deferred) {
+                flushNow();
+            }
+        }
+
+        /**
+         * Writes a run of bytes that need no escaping.
+         */
+        private void writeRun(byte[] buf, int off, int len) throws IOException {
+            if (len >= wsize) {
+                // Too big to be worth buffering, so write straight through.
+                if (wlen != 0) {
+                    emptyBuffer();
+                }
+
+                if (deflater == null) {
+                    socket.write(buf, off, len);
+                } else {
+                    deflate(buf, off, len, Deflater.NO_FLUSH);
+                }
+                return;
+            }
+
+            while (len > 0) {
+                reserve(1);
+
+                final int count = Math.min(len, wsize - wlen);
+                System.arraycopy(buf, off, wbuf, wlen, count);
+                wlen += count;
+                off += count;
+                len -= count;
             }
         }
 
+        /**
+         * Makes room in the send buffer, leasing one if necessary.
+         */
         private void reserve(int len) throws IOException {
-            if (wlen + len > wbuf.length) {
+            if (wbuf == null) {
+                if (closed) {
+                    // Don't lease a buffer nobody will give back.
+                    throw new IOException("Connection closed");
+                }
+
+                wbuf = socket.getSendBuffer();
+            } else if (wlen + len > wsize) {
                 emptyBuffer();
             }
         }
 
         private void nextData(final byte nextByte) throws IOException {
-            assert wlen >= 0 && wlen <= wbuf.length;
+            assert wlen >= 0 && wlen <= wsize;
 
             // Since writes can throw exceptions, we must check that the buffer
             // has enough space first, then write to the buffer. Otherwise, a
@@ -485,16 +1281,108 @@ public class TELNETProtocol implements Closeable {
                 // Escaping IAC requires two bytes.
                 reserve(2);
                 wbuf[wlen++] = CODE_IAC;
-            } else if (wlen == wbuf.length) {
-                emptyBuffer();
+            } else {
+                reserve(1);
             }
 
             wbuf[wlen++] = nextByte;
         }
 
         private void emptyBuffer() throws IOException {
-            socket.write(wlen);
+            if (deflater != null) {
+                deflate(wbuf, 0, wlen, Deflater.NO_FLUSH);
+            } else if (wlen != 0) {
+                socket.write(wlen);
+            }
+
+            wlen = 0;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (deflater != null) {
+                // Keep compressed output interactive.
+                deflate(wbuf, 0, wlen, Deflater.SYNC_FLUSH);
+            } else if (wlen != 0) {
+                socket.write(wlen);
+            }
+
+            wlen = 0;
+
+            // Nothing left in the send buffer, so give it back.
+            socket.releaseSendBuffer();
+            wbuf = null;
+        }
+
+        /**
+         * Discards buffered output and gives back the send buffer, once the
+         * connection is closed.
+         */
+        private void disconnect() {
+            assert Thread.holdsLock(this);
+
+            closed = true;
             wlen = 0;
+            if (wbuf != null) {
+                socket.releaseSendBuffer();
+                wbuf = null;
+            }
+        }
+
+        private void startCompression(int level) throws IOException {
+            if (deflater != null) {
+                // Already compressed.
+                return;
+            }
+
+            emptyBuffer();
+
+            if (zbuf == null) {
+                zbuf = new byte[wsize];
+            }
+
+            deflater = new Deflater(level);
+        }
+
+        private void endCompression() throws IOException {
+            emptyBuffer();
+
+            try {
+                deflater.finish();
+                deflate(wbuf, 0, 0, Deflater.NO_FLUSH);
+            } finally {
+                deflater.end();
+                deflater = null;
+            }
+        }
+
+        /**
+         * Compresses bytes and writes the result out to the connection.
+         */
+        private void deflate(byte[] buf, int off, int len, int flush)
+                throws IOException {
+            if (len != 0) {
+                deflater.setInput(buf, off, len);
+            }
+
+            while (true) {
+                final long start = System.nanoTime();
+                final int count = deflater.deflate(zbuf, 0, zbuf.length,
+                        flush);
+                final long elapsed = System.nanoTime() - start;
+
+                stats.add(count, len, elapsed);
+                len = 0;
+
+                if (count != 0) {
+                    socket.write(zbuf, 0, count);
+                }
+
+                if (count < zbuf.length
+                        && (deflater.needsInput() || deflater.finished())) {
+                    // Everything consumed, and nothing left to flush.
+                    break;
+                }
+            }
         }
     }
 
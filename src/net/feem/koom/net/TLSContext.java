@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS configuration for connections. Sessions are cached by the context, so
+ * sharing one context between connections lets a reconnect resume the
+ * previous session, instead of going through a full handshake.
+ * 
+ * @author cu5
+ */
+public class TLSContext {
+    private static TLSContext defaultContext;
+
+    private final SSLContext context;
+
+    /**
+     * Gets a context using the JVM's default keys and trusted certificates.
+     * 
+     * @return default context
+     * 
+     * @throws IOException
+     *             if TLS isn't available
+     */
+    public static synchronized TLSContext getDefault() throws IOException {
+        if (defaultContext == null) {
+            try {
+                defaultContext = new TLSContext(SSLContext.getDefault());
+            } catch (GeneralSecurityException ex) {
+                throw new IOException("TLS not available", ex);
+            }
+        }
+
+        return defaultContext;
+    }
+
+    /**
+     * Creates a context from key stores.
+     * 
+     * @param keys
+     *            our own keys, or <code>null</code> for none; a server needs
+     *            these
+     * @param password
+     *            password for the keys
+     * @param trusted
+     *            trusted certificates, or <code>null</code> for the JVM's
+     *            default
+     * 
+     * @return context
+     * 
+     * @throws IOException
+     *             if the key stores can't be used
+     */
+    public static TLSContext create(KeyStore keys, char[] password,
+            KeyStore trusted) throws IOException {
+        try {
+            KeyManager[] keyManagers = null;
+            if (keys != null) {
+                final KeyManagerFactory factory = KeyManagerFactory
+                        .getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                factory.init(keys, password);
+                keyManagers = factory.getKeyManagers();
+            }
+
+            TrustManager[] trustManagers = null;
+            if (trusted != null) {
+                final TrustManagerFactory factory = TrustManagerFactory
+                        .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                factory.init(trusted);
+                trustManagers = factory.getTrustManagers();
+            }
+
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers, trustManagers, null);
+            return new TLSContext(context);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Can't set up TLS", ex);
+        }
+    }
+
+    public TLSContext(SSLContext context) {
+        this.context = context;
+    }
+
+    public SSLContext getContext() {
+        return context;
+    }
+
+    /**
+     * Sets how long cached sessions may be resumed for.
+     * 
+     * @param seconds
+     *            session lifetime, or 0 for no limit
+     */
+    public void setSessionTimeout(int seconds) {
+        context.getClientSessionContext().setSessionTimeout(seconds);
+        context.getServerSessionContext().setSessionTimeout(seconds);
+    }
+
+    /**
+     * Creates an engine for connecting to a server. The server's address is
+     * what the session cache is keyed on, and is also used to check the
+     * server's certificate.
+     * 
+     * @param address
+     *            server address
+     * 
+     * @return client engine
+     */
+    public SSLEngine createClientEngine(InetSocketAddress address) {
+        final SSLEngine engine = context.createSSLEngine(address
+                .getHostString(), address.getPort());
+        engine.setUseClientMode(true);
+
+        final SSLParameters params = engine.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(params);
+
+        return engine;
+    }
+
+    /**
+     * Creates an engine for an accepted connection.
+     * 
+     * @return server engine
+     */
+    public SSLEngine createServerEngine() {
+        final SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS record layer for a {@link SocketConnection}. Application data is
+ * decrypted straight into the connection's receive buffer, and encrypted
+ * straight from its send buffer, so the only copies made are the decryption
+ * and encryption themselves.
+ * 
+ * <p>
+ * The handshake is driven by reads and writes as they happen, so this works
+ * the same for blocking and non-blocking connections. Output written before
+ * the handshake has finished is held back until it has.
+ * </p>
+ * 
+ * @author cu5
+ */
+final class TLSTransport {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketConnection socket;
+    private final SSLEngine engine;
+    private final Object writeLock;
+
+    // Encrypted input, left in fill mode. Only used by the reader.
+    private ByteBuffer netIn;
+
+    // Input decrypted ahead by available(), left in drain mode. Only used by
+    // the reader.
+    private ByteBuffer appIn;
+
+    // Encrypted output, guarded by writeLock.
+    private final ByteBuffer netOut;
+
+    // Output held back during the handshake, guarded by writeLock.
+    private ByteBuffer early;
+
+    /**
+     * Starts TLS over a connection.
+     * 
+     * @param socket
+     *            connection to carry the encrypted records
+     * @param engine
+     *            engine, already set to client or server mode
+     * @param writeLock
+     *            lock held by the connection around writes
+     * 
+     * @throws IOException
+     *             if the handshake can't be started
+     */
+    TLSTransport(SocketConnection socket, SSLEngine engine, Object writeLock)
+            throws IOException {
+        this.socket = socket;
+        this.engine = engine;
+        this.writeLock = writeLock;
+
+        final SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+
+        engine.beginHandshake();
+    }
+
+    SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    /**
+     * Gets the smallest buffer that can take any decrypted record.
+     */
+    int getApplicationBufferSize() {
+        return engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * Gets the number of application bytes that can be read without blocking.
+     * Only whole records count, so anything that has arrived is decrypted
+     * ahead, to be returned by the next read.
+     */
+    int available() throws IOException {
+        if (appIn == null) {
+            appIn = ByteBuffer.allocate(getApplicationBufferSize());
+            appIn.flip();
+        }
+
+        if (!appIn.hasRemaining()) {
+            appIn.clear();
+            try {
+                unwrap(appIn, false);
+            } finally {
+                appIn.flip();
+            }
+        }
+
+        return appIn.remaining();
+    }
+
+    /**
+     * Blocks until there's input to decrypt, reading it into the transport's
+     * own buffer. Returns straight away at the end of stream, leaving the next
+     * read to report it, and during a handshake, which may have to write
+     * before there's anything to read.
+     */
+    void awaitInput() throws IOException {
+        if (appIn != null && appIn.hasRemaining()) {
+            return;
+        }
+
+        if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+            return;
+        }
+
+        if (netIn.position() == 0 && !engine.isInboundDone()) {
+            socket.readNet(netIn);
+        }
+    }
+
+    /**
+     * Reads and decrypts application data.
+     * 
+     * @param dst
+     *            receive buffer, with room for a whole record
+     * 
+     * @return number of bytes read, 0 if the connection would block, or -1 if
+     *         end of stream
+     * 
+     * @throws IOException
+     *             if there was an I/O or TLS error
+     */
+    int read(ByteBuffer dst) throws IOException {
+        if (appIn != null && appIn.hasRemaining()) {
+            // Decrypted ahead.
+            final int len = Math.min(appIn.remaining(), dst.remaining());
+            final int limit = appIn.limit();
+            appIn.limit(appIn.position() + len);
+            dst.put(appIn);
+            appIn.limit(limit);
+            return len;
+        }
+
+        return unwrap(dst, true);
+    }
+
+    /**
+     * Decrypts application data, reading more records as needed.
+     * 
+     * @param block
+     *            whether to wait for more records, or return 0
+     */
+    private int unwrap(ByteBuffer dst, boolean block) throws IOException {
+        while (true) {
+            if (engine.isInboundDone()) {
+                return -1;
+            }
+
+            handshake();
+
+            if (netIn.position() != 0) {
+                netIn.flip();
+                final SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, dst);
+                } finally {
+                    netIn.compact();
+                }
+
+                final HandshakeStatus status = result.getHandshakeStatus();
+                if (status == HandshakeStatus.FINISHED) {
+                    flushEarly();
+                }
+
+                switch (result.getStatus()) {
+                case OK:
+                    if (result.bytesProduced() != 0) {
+                        return result.bytesProduced();
+                    }
+
+                    if (result.bytesConsumed() != 0
+                            || status == HandshakeStatus.NEED_TASK
+                            || status == HandshakeStatus.NEED_WRAP) {
+                        // Handshake progress, but no data yet.
+                        continue;
+                    }
+                    break;
+
+                case BUFFER_UNDERFLOW:
+                    // Need the rest of the record.
+                    final int size = engine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < size) {
+                        final ByteBuffer grown = ByteBuffer.allocate(size);
+                        netIn.flip();
+                        grown.put(netIn);
+                        netIn = grown;
+                    }
+                    break;
+
+                case BUFFER_OVERFLOW:
+                    throw new SSLException("Receive buffer too small");
+
+                case CLOSED:
+                    // Peer sent close_notify; answer it.
+                    handshake();
+                    return -1;
+                }
+            }
+
+            if (!block && socket.availableNet() == 0) {
+                return 0;
+            }
+
+            final int len = socket.readNet(netIn);
+            if (len == -1) {
+                try {
+                    engine.closeInbound();
+                } catch (SSLException ex) {
+                    // No close_notify. Plenty of servers don't bother, and
+                    // TELNET has no way to tell a truncated stream anyway.
+                }
+                return -1;
+            } else if (len == 0) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Encrypts and writes application data. Called holding the write lock.
+     * 
+     * @param src
+     *            data to write
+     * 
+     * @throws IOException
+     *             if there was an I/O or TLS error
+     */
+    void write(ByteBuffer src) throws IOException {
+        assert Thread.holdsLock(writeLock);
+
+        if (early != null) {
+            final HandshakeStatus status = engine.getHandshakeStatus();
+            if (status != HandshakeStatus.NOT_HANDSHAKING) {
+                // Stay in order behind what's already held back.
+                hold(src);
+                return;
+            }
+
+            flushEarly();
+        }
+
+        while (src.hasRemaining()) {
+            switch (engine.getHandshakeStatus()) {
+            case NEED_UNWRAP:
+                // Nothing more can be sent until the peer's had its say.
+                hold(src);
+                return;
+
+            case NEED_TASK:
+                runTasks();
+                continue;
+
+            default:
+                break;
+            }
+
+            if (wrap(src).getStatus() == Status.CLOSED) {
+                throw new SSLException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Sends close_notify. Further writes fail.
+     * 
+     * @throws IOException
+     *             if there was an I/O error
+     */
+    void closeOutbound() throws IOException {
+        synchronized (writeLock) {
+            engine.closeOutbound();
+
+            while (!engine.isOutboundDone()) {
+                if (wrap(EMPTY).bytesProduced() == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs any handshake steps that don't need more input.
+     */
+    private void handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                runTasks();
+                break;
+
+            case NEED_WRAP:
+                final SSLEngineResult result;
+                synchronized (writeLock) {
+                    result = wrap(EMPTY);
+                }
+
+                if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                    flushEarly();
+                } else if (result.bytesProduced() == 0) {
+                    return;
+                }
+                break;
+
+            default:
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encrypts one record's worth, and writes it out.
+     */
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        assert Thread.holdsLock(writeLock);
+
+        netOut.clear();
+        final SSLEngineResult result = engine.wrap(src, netOut);
+        netOut.flip();
+
+        if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+            throw new SSLException("Send buffer too small");
+        }
+
+        if (netOut.hasRemaining()) {
+            socket.writeNet(netOut);
+        }
+
+        return result;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void hold(ByteBuffer src) {
+        if (early == null) {
+            early = ByteBuffer.allocate(Math.max(src.remaining(), 1024));
+        } else if (early.remaining() < src.remaining()) {
+            final ByteBuffer grown = ByteBuffer.allocate(early.position()
+                    + src.remaining());
+            early.flip();
+            grown.put(early);
+            early = grown;
+        }
+
+        early.put(src);
+    }
+
+    private void flushEarly() throws IOException {
+        synchronized (writeLock) {
+            if (early == null) {
+                return;
+            }
+
+            final ByteBuffer src = early;
+            early = null;
+
+            src.flip();
+            write(src);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Indicates that a read on a non-blocking connection would have blocked. This
+ * is treated just like a read timeout of zero, so code that already copes with
+ * timeouts copes with non-blocking connections, too.
+ * 
+ * <p>
+ * Since this is thrown every time a non-blocking connection runs dry, a single
+ * shared instance without a stack trace is used.
+ * </p>
+ * 
+ * @author cu5
+ */
+@SuppressWarnings("serial")
+public class WouldBlockException extends SocketTimeoutException {
+    static final WouldBlockException INSTANCE = new WouldBlockException();
+
+    private WouldBlockException() {
+        super("Read would block");
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        // Shared instance, so a stack trace would be meaningless.
+        return this;
+    }
+}
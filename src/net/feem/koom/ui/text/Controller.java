@@ -19,13 +19,30 @@
 package net.feem.koom.ui.text;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.feem.koom.net.AbstractNVT;
+import net.feem.koom.net.ClientNVT;
+import net.feem.koom.net.CompressionStats;
+import net.feem.koom.net.OutputQueue;
+import net.feem.koom.net.RTTStats;
 import net.feem.koom.net.ServerNVT;
 import net.feem.koom.net.SocketConnection;
+import net.feem.koom.net.SocketConnector;
 import net.feem.koom.net.TELNETProtocol;
+import net.feem.koom.net.TLSContext;
 import net.feem.koom.services.Utility;
 import net.feem.koom.world.World;
 
@@ -34,7 +51,7 @@ import net.feem.koom.world.World;
  * 
  * @author cu5
  */
-class Controller implements Runnable {
+class Controller implements Runnable, RelaySession {
     // Allow up to 3 attempts.
     private static final int MAX_ATTEMPTS = 3;
 
@@ -50,6 +67,28 @@ class Controller implements Runnable {
     private final TELNETProtocol telnet;
     private final ServerNVT server;
 
+    // Configured worlds, by name.
+    private final Map<String, World> worlds;
+
+    // World logged in to, once login succeeds.
+    private volatile World world;
+
+    // Our end of the world connection, once connected.
+    private volatile ClientNVT client;
+
+    // Runs the world to user half of the relay.
+    private final Executor executor;
+
+    // Counts down as each relay task ends, once relaying has started.
+    private CountDownLatch relayTasks;
+
+    // Output queued for the user, so a slow user doesn't hold up the world.
+    private final OutputQueue queue;
+
+    // Sends round trip probes to the world, if probeInterval isn't 0.
+    private ScheduledExecutorService scheduler;
+    private long probeInterval;
+
     private static void scrub(StringBuilder sb) {
         for (int ii = 0; ii < sb.length(); ii++) {
             sb.setCharAt(ii, '\0');
@@ -58,35 +97,277 @@ class Controller implements Runnable {
         sb.setLength(0);
     }
 
-    public Controller(SocketConnection socket) {
+    /**
+     * Relays from one end to the other until either end is closed.
+     */
+    private static void pump(AbstractNVT from, AbstractNVT to) {
+        try {
+            while (from.relay(to) != -1) {
+                // Keep going.
+            }
+        } catch (IOException ex) {
+            // Closed by either end.
+        }
+    }
+
+    /**
+     * Relays from the world into the user's output queue, until either end is
+     * closed. Closing the queue lets it finish writing out to the user.
+     */
+    private static void pump(AbstractNVT from, OutputQueue to) {
+        try {
+            while (from.relay(to) != -1) {
+                // Keep going.
+            }
+        } catch (IOException ex) {
+            // Closed by either end, or the user fell too far behind.
+        } finally {
+            to.close();
+        }
+    }
+
+    public Controller(SocketConnection socket, Map<String, World> worlds,
+            Executor executor, OutputQueue.Policy policy, int queueCapacity) {
         this.socket = socket;
+        this.worlds = worlds;
         this.telnet = new TELNETProtocol(socket);
         this.server = new ServerNVT(telnet);
+        this.executor = executor;
+        this.queue = new OutputQueue(server, queueCapacity, policy);
+    }
+
+    @Override
+    public String getWorldName() {
+        final World current = world;
+        return (current == null) ? null : current.getName();
+    }
+
+    @Override
+    public CompressionStats getCompressionStats() {
+        return server.getCompressionStats();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.getDepth();
+    }
+
+    @Override
+    public long getDroppedLines() {
+        return queue.getDroppedLines();
+    }
+
+    @Override
+    public long getDroppedBytes() {
+        return queue.getDroppedBytes();
+    }
+
+    @Override
+    public RTTStats getRTTStats() {
+        final ClientNVT current = client;
+        return (current == null) ? null : current.getRTTStats();
+    }
+
+    /**
+     * Sets the compression level offered to the user with MCCP. Must be called
+     * before {@link #run()}.
+     * 
+     * @param level
+     *            {@link java.util.zip.Deflater} compression level, or
+     *            <code>Deflater.NO_COMPRESSION</code> to not offer compression
+     */
+    void setCompressionLevel(int level) {
+        server.setCompressionLevel(level);
+    }
+
+    /**
+     * Sets up Timing Mark probes to the world. Once the world answers one,
+     * they replace TCP keepalive on the world connection; a world that never
+     * answers keeps TCP keepalive. Must be called before {@link #run()}.
+     * 
+     * @param scheduler
+     *            scheduler to send probes from
+     * @param interval
+     *            time between probes, in milliseconds, or 0 to not probe
+     */
+    void setProbing(ScheduledExecutorService scheduler, long interval) {
+        this.scheduler = scheduler;
+        this.probeInterval = interval;
     }
 
     @Override
     public void run() {
         try {
             // Wait for the initial command.
-            World world = waitForHandshake();
+            final World world = waitForHandshake();
             if (world == null) {
                 System.out.println("Login failed");
                 return;
             }
 
+            this.world = world;
+
+            final SocketAddress address = world.getAddress();
+            if (address == null) {
+                tell("No address for " + world.getName());
+                return;
+            }
+
+            // Offer the user EOR and compression, for the relay to come.
+            server.begin();
+
             System.out.println("Connecting to " + world.getName());
 
             // Proceed to main I/O loop.
+            if (address instanceof InetSocketAddress) {
+                relay(connect(world, (InetSocketAddress) address));
+            } else {
+                relay(new SocketConnection(address, null));
+            }
         } catch (IOException ex) {
             // FIXME: Report error.
             ex.printStackTrace();
         } finally {
             Utility.close(telnet);
+            awaitRelayTasks();
         }
 
         System.out.println("Connection closed");
     }
 
+    /**
+     * Waits for the relay tasks to end, so the session's tasks end together.
+     * Both stop soon once both connections are closed.
+     */
+    private void awaitRelayTasks() {
+        if (relayTasks == null) {
+            return;
+        }
+
+        try {
+            relayTasks.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Connects to a world, trying the address that worked last time first.
+     */
+    private static SocketConnection connect(World world,
+            InetSocketAddress address) throws IOException {
+        final Socket raw = SocketConnector.getShared().connectSocket(address,
+                world.getLastAddress());
+        world.setLastAddress(raw.getInetAddress());
+
+        boolean success = false;
+        try {
+            final SocketConnection conn;
+            if (world.isSecure()) {
+                conn = new SocketConnection(raw, TLSContext.getDefault()
+                        .createClientEngine(address));
+            } else {
+                conn = new SocketConnection(raw);
+            }
+            success = true;
+            return conn;
+        } finally {
+            if (!success) {
+                Utility.close(raw);
+            }
+        }
+    }
+
+    /**
+     * Relays between the user and the world. Data passes through as raw
+     * bytes; only option negotiation goes through the NVTs, each of which
+     * negotiates with its own end. Output to the user goes through the output
+     * queue, which is written out by a task of its own.
+     */
+    private void relay(final SocketConnection upstream) throws IOException {
+        final TELNETProtocol remote = new TELNETProtocol(upstream);
+        ScheduledFuture<?> probes = null;
+        try {
+            final ClientNVT client = new ClientNVT(remote);
+            this.client = client;
+
+            if (probeInterval != 0) {
+                probes = client.startProbing(scheduler, probeInterval,
+                        TimeUnit.MILLISECONDS, new Runnable() {
+                            @Override
+                            public void run() {
+                                // The world answers, so probes can tell if
+                                // it's gone.
+                                try {
+                                    upstream.setKeepAlive(false);
+                                } catch (IOException ex) {
+                                    // Already closed.
+                                }
+                            }
+                        });
+            }
+
+            final CountDownLatch tasks = new CountDownLatch(2);
+            relayTasks = tasks;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            pump(client, queue);
+                        } finally {
+                            tasks.countDown();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // Executor shut down or saturated.
+                relayTasks = null;
+                queue.close();
+                return;
+            }
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            queue.run();
+                        } finally {
+                            // Also stops the other half.
+                            Utility.close(telnet);
+                            tasks.countDown();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // Executor shut down or saturated.
+                tasks.countDown();
+                queue.close();
+                return;
+            }
+
+            pump(server, client);
+        } finally {
+            if (probes != null) {
+                probes.cancel(false);
+            }
+
+            Utility.close(remote);
+        }
+    }
+
+    /**
+     * Writes a line to the user.
+     */
+    private void tell(String message) throws IOException {
+        final char[] line = message.toCharArray();
+        synchronized (server.getWriteLock()) {
+            server.writeLine(line, 0, line.length);
+            server.flush();
+        }
+    }
+
     private World waitForHandshake() throws IOException {
         // Read the initial login command.
         StringBuilder sb = new StringBuilder(128);
@@ -129,10 +410,9 @@ class Controller implements Runnable {
                 // Check attempt.
                 Matcher mat = loginPat.matcher(sb);
                 if (mat.matches()) {
-                    // TODO: Implement world management.
-                    World world = new World(mat.group(1));
-                    world.setSecret(mat.group(2).toCharArray());
-                    if (world.checkAuth(sb, mat.start(2), mat.end(2))) {
+                    final World world = worlds.get(mat.group(1));
+                    if (world != null
+                            && world.checkAuth(sb, mat.start(2), mat.end(2))) {
                         return world;
                     }
                 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.ui.text;
+
+import net.feem.koom.net.CompressionStats;
+import net.feem.koom.net.RTTStats;
+
+/**
+ * A live connection to a {@link SessionServer}, for monitoring. Everything
+ * here may change while the session runs.
+ * 
+ * @author cu5
+ */
+public interface RelaySession {
+    /**
+     * Gets the name of the world the user logged in to.
+     * 
+     * @return world name, or <code>null</code> if not logged in yet
+     */
+    public String getWorldName();
+
+    /**
+     * Gets statistics for compressed output to the user. These stay at zero
+     * unless the user's client accepted MCCP.
+     * 
+     * @return output compression statistics
+     */
+    public CompressionStats getCompressionStats();
+
+    /**
+     * Gets the output waiting to be written to the user, including any being
+     * written.
+     * 
+     * @return output queue depth, in bytes
+     */
+    public int getQueueDepth();
+
+    /**
+     * Gets the number of lines dropped because the user fell behind.
+     * 
+     * @return number of dropped lines
+     */
+    public long getDroppedLines();
+
+    /**
+     * Gets the number of bytes dropped because the user fell behind.
+     * 
+     * @return number of dropped bytes
+     */
+    public long getDroppedBytes();
+
+    /**
+     * Gets round trip times to the world, measured by Timing Mark probes.
+     * 
+     * @return round trip statistics, or <code>null</code> if not connected to
+     *         the world yet
+     */
+    public RTTStats getRTTStats();
+}
@@ -22,21 +22,296 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.Deflater;
 
+import net.feem.koom.net.OutputQueue;
 import net.feem.koom.net.SocketConnection;
 import net.feem.koom.net.SocketServer;
+import net.feem.koom.net.TLSContext;
 import net.feem.koom.services.Utility;
+import net.feem.koom.world.World;
 
 /**
  * Server for text-based interface.
  * 
+ * <p>
+ * Each connection runs a {@link Controller} on an {@link ExecutorService}. By
+ * default, this is a pool of platform threads, but any executor may be
+ * supplied. The server itself targets Java 7, so it has no virtual thread
+ * mode of its own; on a JVM with virtual threads, passing a virtual thread
+ * per task executor keeps idle connections from tying up OS threads. Writes
+ * do block while holding an NVT's write lock, which is a monitor, so on JVMs
+ * where monitors pin virtual threads, a slow connection can tie up a carrier
+ * thread.
+ * </p>
+ * 
+ * <p>
+ * Once logged in, each connection runs three tasks at once: the controller
+ * relaying from the user, one relaying from the world, and one writing out
+ * the user's output queue. These block for as long as the connection lasts,
+ * so every task must get a thread straight away; a task left waiting in a
+ * queue would stall its connection. A connection keeps its slot until all
+ * three have ended, and for a {@link ThreadPoolExecutor}, the number of slots
+ * is capped at a third of the threads it will run at once. Any other
+ * executor must run each task on a thread of its own.
+ * </p>
+ * 
  * @author cu5
  */
 public class SessionServer implements Closeable, Runnable {
+    // Tasks each connection runs at once.
+    private static final int TASKS_PER_CONNECTION = 3;
+
+    // Default limit on simultaneous connections.
+    private static final int DEFAULT_MAX_CONNECTIONS = 256;
+
+    // Default output queued per connection, in bytes.
+    private static final int DEFAULT_QUEUE_CAPACITY = 256 * 1024;
+
+    // Default time between round trip probes to each world, in milliseconds.
+    private static final long DEFAULT_PROBE_INTERVAL = 30000;
+
     private final SocketServer server;
 
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final Semaphore slots;
+
+    // Sends round trip probes for all connections.
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // Worlds users may log in to, by name.
+    private final Map<String, World> worlds =
+            new ConcurrentHashMap<String, World>();
+
+    // Live sessions, for monitoring.
+    private final Set<Controller> sessions = Collections
+            .newSetFromMap(new ConcurrentHashMap<Controller, Boolean>());
+
+    // Session settings, guarded by this server.
+    private OutputQueue.Policy queuePolicy = OutputQueue.Policy.DROP_OLDEST;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private long probeInterval = DEFAULT_PROBE_INTERVAL;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Creates a server running each connection on its own pooled thread.
+     * 
+     * @param address
+     *            address to listen on
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
     public SessionServer(SocketAddress address) throws IOException {
-        server = new SocketServer(address);
+        this(address, null, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Creates a server running connections on the given executor.
+     * 
+     * @param address
+     *            address to listen on
+     * @param executor
+     *            executor for connections, or <code>null</code> for the default
+     *            thread pool
+     * @param maxConnections
+     *            maximum number of simultaneous connections; further
+     *            connections wait to be accepted until a slot frees up, and
+     *            there are at most three tasks per connection
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
+    public SessionServer(SocketAddress address, ExecutorService executor,
+            int maxConnections) throws IOException {
+        this(address, executor, maxConnections, null);
+    }
+
+    /**
+     * Creates a server running connections on the given executor, accepting
+     * only TLS connections.
+     * 
+     * @param address
+     *            address to listen on
+     * @param executor
+     *            executor for connections, or <code>null</code> for the default
+     *            thread pool
+     * @param maxConnections
+     *            maximum number of simultaneous connections, lowered to fit a
+     *            {@link ThreadPoolExecutor}
+     * @param tls
+     *            TLS configuration with the server's keys, or
+     *            <code>null</code> for plain connections
+     * 
+     * @throws IOException
+     *             if there's an I/O error
+     */
+    public SessionServer(SocketAddress address, ExecutorService executor,
+            int maxConnections, TLSContext tls) throws IOException {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Invalid connection limit");
+        }
+
+        if (executor == null) {
+            this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final ThreadGroup group = new ThreadGroup("Text UI");
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(group, task, "Text Controller");
+                    thread.setPriority(Utility.getPriority(1));
+                    return thread;
+                }
+            });
+            this.ownExecutor = true;
+        } else {
+            this.executor = executor;
+            this.ownExecutor = false;
+        }
+
+        this.slots = new Semaphore(getSlots(this.executor, maxConnections));
+
+        this.scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "Text Probe");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        // Probes stop when their connection ends, even after shutdown.
+        scheduler.setRemoveOnCancelPolicy(true);
+        scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(true);
+
+        server = new SocketServer(address, tls);
+    }
+
+    /**
+     * Limits connections to what the executor can run, with a thread for each
+     * of a connection's tasks.
+     */
+    private static int getSlots(ExecutorService executor, int maxConnections) {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            // Assumed to run each task on a thread of its own.
+            return maxConnections;
+        }
+
+        // Beyond the core threads, a pool only grows once its queue is full,
+        // so only a pool that hands tasks straight to threads uses them all.
+        final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        final int threads;
+        if (pool.getQueue().remainingCapacity() == 0) {
+            threads = pool.getMaximumPoolSize();
+        } else {
+            threads = pool.getCorePoolSize();
+        }
+
+        if (threads < TASKS_PER_CONNECTION) {
+            throw new IllegalArgumentException(
+                    "Executor too small for a connection");
+        }
+
+        return Math.min(maxConnections, threads / TASKS_PER_CONNECTION);
+    }
+
+    /**
+     * Adds a world that users may log in to, with
+     * <code>connect NAME SECRET</code>. The world needs a secret, and an
+     * address to relay to.
+     * 
+     * @param world
+     *            world to add, replacing any of the same name
+     */
+    public void addWorld(World world) {
+        worlds.put(world.getName(), world);
+    }
+
+    /**
+     * Sets how output to each connection is queued. Only affects connections
+     * accepted afterwards.
+     * 
+     * @param policy
+     *            what to do when a connection's output queue is full
+     * @param capacity
+     *            maximum bytes queued per connection
+     */
+    public synchronized void setOutputQueue(OutputQueue.Policy policy,
+            int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid queue capacity");
+        }
+
+        queuePolicy = policy;
+        queueCapacity = capacity;
+    }
+
+    /**
+     * Sets how often each connection's world is probed with TELNET Timing
+     * Mark, to measure round trip time and detect dead connections. Only
+     * affects connections accepted afterwards.
+     * 
+     * @param millis
+     *            time between probes, in milliseconds, or 0 to not probe
+     */
+    public synchronized void setProbeInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid probe interval");
+        }
+
+        probeInterval = millis;
+    }
+
+    /**
+     * Sets the compression level offered to users with MCCP. Only affects
+     * connections accepted afterwards.
+     * 
+     * @param level
+     *            {@link Deflater} compression level, or
+     *            {@link Deflater#NO_COMPRESSION} to not offer compression
+     */
+    public synchronized void setCompressionLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION
+                || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level");
+        }
+
+        compressionLevel = level;
+    }
+
+    /**
+     * Gets the sessions currently connected, including those still logging
+     * in.
+     * 
+     * @return snapshot of the live sessions
+     */
+    public Collection<RelaySession> getSessions() {
+        return new ArrayList<RelaySession>(sessions);
+    }
+
+    /**
+     * Gets the address the server is listening on, such as to find out which
+     * port was picked for port 0.
+     * 
+     * @return local address
+     */
+    public SocketAddress getLocalAddress() {
+        return server.getLocalAddress();
     }
 
     @Override
@@ -49,27 +324,62 @@ public class SessionServer implements Closeable, Runnable {
         System.err.println("Starting session server");
 
         while (true) {
+            // Wait for a free slot.
+            try {
+                slots.acquire();
+            } catch (InterruptedException ex) {
+                break;
+            }
+
             // Wait for connection.
             SocketConnection socket;
             try {
                 socket = server.accept();
             } catch (IOException ex) {
                 // Error while waiting for connections.
+                slots.release();
                 break;
             }
 
             System.err.println("Accepted new connection");
 
-            // Spawn controller thread.
-            Controller control = new Controller(socket);
+            // Hand off to controller.
+            final Controller control;
+            synchronized (this) {
+                control = new Controller(socket, worlds, executor,
+                        queuePolicy, queueCapacity);
+                control.setProbing(scheduler, probeInterval);
+                control.setCompressionLevel(compressionLevel);
+            }
 
-            ThreadGroup group = new ThreadGroup("Text UI");
-            Thread thread = new Thread(group, control, "Text Controller");
-            thread.setPriority(Utility.getPriority(1));
+            sessions.add(control);
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            control.run();
+                        } finally {
+                            sessions.remove(control);
+                            slots.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // Executor shut down or saturated.
+                sessions.remove(control);
+                Utility.close(socket);
+                slots.release();
+            }
+        }
 
-            thread.start();
+        if (ownExecutor) {
+            // Let existing connections finish.
+            executor.shutdown();
         }
 
+        scheduler.shutdown();
+
         System.err.println("Stopping session server");
     }
 
@@ -18,6 +18,8 @@
  */
 package net.feem.koom.world;
 
+import java.net.InetAddress;
+import java.net.SocketAddress;
 import java.util.Arrays;
 
 /**
@@ -28,6 +30,9 @@ import java.util.Arrays;
 public class World {
     private final String name;
     private char[] secret;
+    private SocketAddress address;
+    private volatile InetAddress lastAddress;
+    private boolean secure;
 
     public World(String name) {
         this.name = name;
@@ -45,7 +50,52 @@ public class World {
         return name;
     }
 
+    public void setAddress(SocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Gets the address of the world's server.
+     * 
+     * @return server address, or <code>null</code> if unknown
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    public void setLastAddress(InetAddress lastAddress) {
+        this.lastAddress = lastAddress;
+    }
+
+    /**
+     * Gets the server address that was last connected to successfully. This
+     * is tried first next time, before any of the server's other addresses.
+     * 
+     * @return last good address, or <code>null</code> if none
+     */
+    public InetAddress getLastAddress() {
+        return lastAddress;
+    }
+
+    public void setSecure(boolean secure) {
+        this.secure = secure;
+    }
+
+    /**
+     * Tests if the world's server expects TLS.
+     * 
+     * @return if connections should use TLS
+     */
+    public boolean isSecure() {
+        return secure;
+    }
+
     public boolean checkAuth(CharSequence cs, int start, int end) {
+        if (secret == null) {
+            // No way to log in.
+            return false;
+        }
+
         if (end - start != secret.length) {
             // Not even the same length.
             return false;
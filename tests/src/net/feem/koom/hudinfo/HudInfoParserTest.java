@@ -0,0 +1,223 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.hudinfo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.feem.koom.hudinfo.HudInfoParser.ParseResult;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link HudInfoParser}, checking the events passed to the handler
+ * for lines fed in whole and in pieces.
+ * 
+ * @author cu5
+ */
+public class HudInfoParserTest {
+    // Longest field the parser keeps, in characters.
+    private static final int MAX_FIELD = 64 * 1024;
+
+    private HudInfoParser parser;
+    private String key;
+    private final List<String> events = new ArrayList<String>();
+
+    @Before
+    public void createParser() {
+        parser = new HudInfoParser();
+        parser.setHandler(new RecordingHandler());
+        key = parser.getKey(5);
+    }
+
+    /**
+     * A response split anywhere, even between a '\r' and its '\n', parses the
+     * same as one fed in whole.
+     */
+    @Test
+    public void testSplitPieces() {
+        final String line = "#HUD:" + key + ":GS:R# ab,12,-3.25,,x y\r\n";
+        final List<String> expected = Arrays.asList("begin GS R",
+                "text 0 ab", "integer 1 12 12", "number 2 -3.25 -3.25",
+                "text 3 ", "text 4 x y", "end true");
+
+        assertEquals(ParseResult.PARSED, parser.parse(line));
+        assertEquals(expected, events);
+
+        for (int split = 1; split < line.length(); split++) {
+            events.clear();
+            assertEquals(ParseResult.PARSING, parser.parse(line.substring(0,
+                    split)));
+            assertEquals(ParseResult.PARSED, parser.parse(line
+                    .substring(split)));
+            assertEquals("split at " + split, expected, events);
+        }
+
+        // One byte at a time, the way an NVT might divert it.
+        events.clear();
+        final byte[] bytes = line.getBytes();
+        for (int ii = 0; ii < bytes.length; ii++) {
+            parser.processData(bytes, ii, 1);
+        }
+        assertEquals(expected, events);
+    }
+
+    /**
+     * A line ended without its '\n' is ended by {@link HudInfoParser#endLine()}
+     * instead.
+     */
+    @Test
+    public void testEndLine() {
+        assertEquals(ParseResult.PARSING, parser.parse("#HUD:" + key
+                + ":GS:R# a,b"));
+        assertEquals(ParseResult.PARSED, parser.endLine());
+        assertEquals(Arrays.asList("begin GS R", "text 0 a", "text 1 b",
+                "end true"), events);
+    }
+
+    /**
+     * Responses carrying some other key are ignored, whether the key differs,
+     * is shorter, or is longer than ours.
+     */
+    @Test
+    public void testWrongKey() {
+        final String other = (key.charAt(0) == 'a' ? "b" : "a")
+                + key.substring(1);
+
+        for (String wrong : new String[] { other, key.substring(1),
+                key + "x" }) {
+            assertEquals(wrong, ParseResult.UNPARSED, parser.parse("#HUD:"
+                    + wrong + ":GS:R# a,b\n"));
+        }
+        assertEquals(0, events.size());
+
+        // Nor is anything parsed before we've asked for a key.
+        final HudInfoParser keyless = new HudInfoParser();
+        keyless.setHandler(new RecordingHandler());
+        assertEquals(ParseResult.UNPARSED, keyless.parse("#HUD:" + key
+                + ":GS:R# a,b\n"));
+        assertEquals(0, events.size());
+
+        // The parser is ready for the next line.
+        assertEquals(ParseResult.PARSED, parser.parse("#HUD:" + key
+                + ":GS:D# Done\n"));
+        assertEquals(Arrays.asList("begin GS D", "text 0 Done", "end true"),
+                events);
+    }
+
+    /**
+     * An error message is one field, commas and numbers included.
+     */
+    @Test
+    public void testErrorMessage() {
+        assertEquals(ParseResult.PARSED, parser.parse("#HUD:" + key
+                + ":GS:E# Not in a mech, or 12 of them, 3.5\n"));
+        assertEquals(Arrays.asList("begin GS E",
+                "text 0 Not in a mech, or 12 of them, 3.5", "end true"),
+                events);
+
+        events.clear();
+        assertEquals(ParseResult.PARSED, parser.parse("#HUD:" + key
+                + ":GS:E# 42\n"));
+        assertEquals(Arrays.asList("begin GS E", "text 0 42", "end true"),
+                events);
+    }
+
+    /**
+     * A field too long to keep ends the response as invalid, without passing
+     * on that field or any after it.
+     */
+    @Test
+    public void testOverlongField() {
+        final StringBuilder sb = new StringBuilder("#HUD:" + key
+                + ":GS:R# a,");
+        for (int ii = 0; ii <= MAX_FIELD; ii++) {
+            sb.append('x');
+        }
+        sb.append(",b\n");
+
+        assertEquals(ParseResult.PARSED, parser.parse(sb));
+        assertEquals(Arrays.asList("begin GS R", "text 0 a", "end false"),
+                events);
+
+        // The longest field allowed is fine.
+        events.clear();
+        sb.setLength(0);
+        for (int ii = 0; ii < MAX_FIELD; ii++) {
+            sb.append('y');
+        }
+        final String longest = sb.toString();
+        assertEquals(ParseResult.PARSED, parser.parse("#HUD:" + key
+                + ":GS:R# " + longest + ",b\n"));
+        assertEquals(Arrays.asList("begin GS R", "text 0 " + longest,
+                "text 1 b", "end true"), events);
+    }
+
+    /**
+     * Numbers come with their original text, which may matter: "007" is not
+     * "7", and "-0" is not "0".
+     */
+    @Test
+    public void testNumericText() {
+        assertEquals(ParseResult.PARSED, parser.parse("#HUD:" + key
+                + ":GS:R# 007,-0,1.50,-,1.2.3,1234567890123456789\n"));
+        assertEquals(Arrays.asList("begin GS R", "integer 0 7 007",
+                "integer 1 0 -0", "number 2 1.5 1.50", "text 3 -",
+                "text 4 1.2.3", "text 5 1234567890123456789", "end true"),
+                events);
+    }
+
+    /**
+     * Records each event as a string.
+     */
+    private final class RecordingHandler implements HudInfoHandler {
+        @Override
+        public void beginResponse(int command, char type) {
+            final StringBuilder name = new StringBuilder();
+            for (int packed = command; packed != 0; packed >>>= 8) {
+                name.insert(0, (char) (packed & 0xFF));
+            }
+            events.add("begin " + name + " " + type);
+        }
+
+        @Override
+        public void textField(int index, CharSequence value) {
+            events.add("text " + index + " " + value);
+        }
+
+        @Override
+        public void integerField(int index, long value, CharSequence text) {
+            events.add("integer " + index + " " + value + " " + text);
+        }
+
+        @Override
+        public void numberField(int index, double value, CharSequence text) {
+            events.add("number " + index + " " + value + " " + text);
+        }
+
+        @Override
+        public void endResponse(boolean valid) {
+            events.add("end " + valid);
+        }
+    }
+}
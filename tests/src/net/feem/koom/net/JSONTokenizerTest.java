@@ -0,0 +1,234 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link JSONTokenizer}, feeding documents in one byte at a time and
+ * checking the tokens passed to the handler.
+ * 
+ * @author cu5
+ */
+public class JSONTokenizerTest {
+    // Deepest nesting accepted.
+    private static final int MAX_DEPTH = 32;
+
+    private final JSONTokenizer tokenizer = new JSONTokenizer();
+    private final List<String> events = new ArrayList<String>();
+
+    @Test
+    public void testDocument() {
+        assertTrue(tokenize("{\"a\": [1, -2.5, true, false, null],\n"
+                + " \"b\": {\"c\": \"x\", \"d\": []}, \"e\": {}}"));
+        assertEquals(Arrays.asList("{", "key a", "[", "integer 1",
+                "number -2.5", "true", "false", "null", "]", "key b", "{",
+                "key c", "string x", "key d", "[", "]", "}", "key e", "{",
+                "}", "}"), events);
+    }
+
+    @Test
+    public void testScalars() {
+        assertTrue(tokenize(" \"text\" "));
+        assertTrue(tokenize("42"));
+        assertTrue(tokenize("true"));
+        assertTrue(tokenize("null\r\n"));
+        assertEquals(Arrays.asList("string text", "integer 42", "true",
+                "null"), events);
+    }
+
+    /**
+     * Nothing but white space is fine, and produces nothing.
+     */
+    @Test
+    public void testEmpty() {
+        assertTrue(tokenize(""));
+        assertTrue(tokenize(" \t\r\n"));
+        assertEquals(0, events.size());
+    }
+
+    /**
+     * Integers are only passed as such up to 18 significant digits, not
+     * counting leading zeros; longer ones are passed as doubles.
+     */
+    @Test
+    public void testNumbers() {
+        assertTrue(tokenize("[0, -0, -17, 999999999999999999, "
+                + "000999999999999999999, 1000000000000000000, 1.5e-3, "
+                + "-1E+2, 2e2, 0.25]"));
+        assertEquals(Arrays.asList("[", "integer 0", "integer 0",
+                "integer -17", "integer 999999999999999999",
+                "integer 999999999999999999", "number 1.0E18",
+                "number 0.0015", "number -100.0", "number 200.0",
+                "number 0.25", "]"), events);
+    }
+
+    @Test
+    public void testEscapes() {
+        assertTrue(tokenize("\"q\\\" b\\\\ s\\/ \\b\\f\\n\\r\\t"
+                + " \\u0041\\u00e9 \\ud83d\\ude00\""));
+        assertEquals(Arrays.asList("string q\" b\\ s/ \b\f\n\r\t A\u00e9 "
+                + "\ud83d\ude00"), events);
+    }
+
+    /**
+     * Multi-byte UTF-8 sequences are decoded however they're split, and
+     * invalid ones are replaced.
+     */
+    @Test
+    public void testUTF8() {
+        assertTrue(tokenize("\"\u00e9\u20ac\ud83d\ude00\""));
+
+        // A stray continuation byte, and a sequence cut short by a quote.
+        assertTrue(tokenize(new byte[] { '"', 'a', (byte) 0x80, 'b', '"' }));
+        assertTrue(tokenize(new byte[] { '"', 'c', (byte) 0xE2, (byte) 0x82,
+                '"' }));
+
+        assertEquals(Arrays.asList("string \u00e9\u20ac\ud83d\ude00",
+                "string a\ufffdb", "string c\ufffd"), events);
+    }
+
+    /**
+     * Malformed documents fail, however far they got.
+     */
+    @Test
+    public void testMalformed() {
+        final String[] documents = { "{", "[1,]", "[1 2]", "{\"a\" 1}",
+                "{\"a\":}", "{1: 2}", "[}", "[1}", "{\"a\": 1]", "1 2",
+                "tru", "trux", "nul", "-", "1.", "1.e5", "1e", "1e+", "--1",
+                "1.2.3", "\"abc", "\"a\\x\"", "\"a\\u00g0\"", "\"a\u0001\"",
+                "]", "x", "{} {}" };
+
+        for (String document : documents) {
+            assertFalse(document, tokenize(document));
+        }
+    }
+
+    /**
+     * Once a syntax error is found, the rest of the value is ignored, and
+     * the tokenizer is ready for another after a reset.
+     */
+    @Test
+    public void testAfterError() {
+        assertFalse(tokenize("[1, ?, 2, \"never\"]"));
+        assertEquals(Arrays.asList("[", "integer 1"), events);
+
+        events.clear();
+        assertTrue(tokenize("[3]"));
+        assertEquals(Arrays.asList("[", "integer 3", "]"), events);
+    }
+
+    @Test
+    public void testDepthLimit() {
+        final StringBuilder open = new StringBuilder();
+        final StringBuilder close = new StringBuilder();
+        for (int ii = 0; ii < MAX_DEPTH; ii++) {
+            open.append('[');
+            close.append(']');
+        }
+
+        assertTrue(tokenize(open.toString() + close));
+        assertFalse(tokenize(open.toString() + "[]" + close));
+    }
+
+    /**
+     * Feeds a document one byte at a time, after a reset.
+     * 
+     * @return what {@link JSONTokenizer#finish()} returned
+     */
+    private boolean tokenize(String document) {
+        try {
+            return tokenize(document.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private boolean tokenize(byte[] document) {
+        tokenizer.reset(new RecordingHandler());
+        for (byte nextByte : document) {
+            tokenizer.feed(nextByte);
+        }
+        return tokenizer.finish();
+    }
+
+    /**
+     * Records each token as a string.
+     */
+    private final class RecordingHandler implements JSONHandler {
+        @Override
+        public void beginObject() {
+            events.add("{");
+        }
+
+        @Override
+        public void endObject() {
+            events.add("}");
+        }
+
+        @Override
+        public void beginArray() {
+            events.add("[");
+        }
+
+        @Override
+        public void endArray() {
+            events.add("]");
+        }
+
+        @Override
+        public void key(CharSequence name) {
+            events.add("key " + name);
+        }
+
+        @Override
+        public void stringValue(CharSequence value) {
+            events.add("string " + value);
+        }
+
+        @Override
+        public void integerValue(long value) {
+            events.add("integer " + value);
+        }
+
+        @Override
+        public void numberValue(double value) {
+            events.add("number " + value);
+        }
+
+        @Override
+        public void booleanValue(boolean value) {
+            events.add(String.valueOf(value));
+        }
+
+        @Override
+        public void nullValue() {
+            events.add("null");
+        }
+    }
+}
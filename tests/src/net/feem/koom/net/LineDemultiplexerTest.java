@@ -0,0 +1,212 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import net.feem.koom.services.Utility;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link LineDemultiplexer}, through the lines an NVT diverts. The
+ * remote end sends each piece separately, and the NVT reads until there's
+ * nothing more, so a prefix can be split across reads.
+ * 
+ * @author cu5
+ */
+public class LineDemultiplexerTest {
+    // How long a read waits before deciding everything sent has arrived, in
+    // milliseconds.
+    private static final int QUIET = 200;
+
+    private static final String PREFIX = "#HUD:";
+
+    private ServerSocket listener;
+    private Socket remote;
+    private ClientNVT client;
+
+    // Diverted lines, each ended by '|'.
+    private final StringBuilder diverted = new StringBuilder();
+
+    @Before
+    public void connect() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+
+        final SocketConnection socket = new SocketConnection(new Socket(
+                listener.getInetAddress(), listener.getLocalPort()));
+        socket.setTimeout(QUIET);
+        remote = listener.accept();
+
+        client = new ClientNVT(new TELNETProtocol(socket));
+        client.divertLines(PREFIX.getBytes("US-ASCII"), new RawLineHandler() {
+            @Override
+            public void processData(byte[] buf, int off, int len) {
+                diverted.append(new String(buf, off, len));
+            }
+
+            @Override
+            public void processEndOfLine() {
+                diverted.append('|');
+            }
+        });
+    }
+
+    @After
+    public void close() {
+        Utility.close(client.getProtocol());
+        Utility.close(remote);
+        Utility.close(listener);
+    }
+
+    /**
+     * A prefix split across reads is still diverted, and held back meanwhile.
+     * The handler gets the prefix once all of it has arrived.
+     */
+    @Test
+    public void testSplitPrefix() throws IOException {
+        send("text\r\n#");
+        assertEquals("text<line>", receive());
+
+        send("HU");
+        assertEquals("", receive());
+        send("D");
+        assertEquals("", receive());
+        assertEquals("", diverted.toString());
+
+        send(":");
+        assertEquals("", receive());
+        assertEquals("#HUD:", diverted.toString());
+
+        send("one\r\n#HU");
+        assertEquals("", receive());
+        send("D:two\r\nmore\r\n");
+        assertEquals("more<line>", receive());
+        assertEquals("#HUD:one\r|#HUD:two\r|", diverted.toString());
+    }
+
+    /**
+     * A held line that stops matching part way is text after all.
+     */
+    @Test
+    public void testSplitMismatch() throws IOException {
+        send("#HU");
+        assertEquals("", receive());
+
+        send("T\r\n");
+        assertEquals("#HUT<line>", receive());
+        assertEquals("", diverted.toString());
+    }
+
+    /**
+     * A Go Ahead or End of Record ends a held match as a prompt, and ends a
+     * diverted line.
+     */
+    @Test
+    public void testRecordEndsHeldMatch() throws IOException {
+        send("#HU");
+        assertEquals("", receive());
+
+        sendCommand(TELNETProtocol.CODE_GA);
+        assertEquals("#HU<prompt>", receive());
+
+        send("#H");
+        sendCommand(TELNETProtocol.CODE_EOR);
+        assertEquals("#H<prompt>", receive());
+
+        send("#HUD:part");
+        sendCommand(TELNETProtocol.CODE_GA);
+        send("#HUD:next\r\n");
+        assertEquals("<prompt>", receive());
+        assertEquals("#HUD:part|#HUD:next\r|", diverted.toString());
+    }
+
+    /**
+     * The end of stream ends a held match as text.
+     */
+    @Test
+    public void testEndOfStreamEndsHeldMatch() throws IOException {
+        send("#HU");
+        assertEquals("", receive());
+
+        remote.shutdownOutput();
+        assertEquals("#HU<eof>", receive());
+        assertEquals("", diverted.toString());
+    }
+
+    /**
+     * The end of stream ends a diverted line.
+     */
+    @Test
+    public void testEndOfStreamEndsDivertedLine() throws IOException {
+        send("#HUD:last");
+        remote.shutdownOutput();
+        assertEquals("<eof>", receive());
+        assertEquals("#HUD:last|", diverted.toString());
+    }
+
+    private void send(String text) throws IOException {
+        final OutputStream out = remote.getOutputStream();
+        out.write(text.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private void sendCommand(byte code) throws IOException {
+        final OutputStream out = remote.getOutputStream();
+        out.write(new byte[] { TELNETProtocol.CODE_IAC, code });
+        out.flush();
+    }
+
+    /**
+     * Reads everything that has arrived, marking the ends of lines and
+     * prompts, and the end of stream.
+     */
+    private String receive() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final char[] buf = new char[128];
+        try {
+            while (true) {
+                final int len = client.read(buf, 0, buf.length);
+                if (len == -1) {
+                    return sb.append("<eof>").toString();
+                }
+
+                sb.append(buf, 0, len);
+                if (client.readIsLine()) {
+                    sb.append("<line>");
+                } else if (client.readIsRecord()) {
+                    sb.append("<prompt>");
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            // Nothing more for now.
+        }
+
+        return sb.toString();
+    }
+}
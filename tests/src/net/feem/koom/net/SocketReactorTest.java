@@ -0,0 +1,249 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.feem.koom.services.Utility;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link SocketReactor} driving TELNET sessions: a line echo server
+ * whose connections are spread over two worker reactors, talked to by
+ * blocking clients.
+ * 
+ * @author cu5
+ */
+public class SocketReactorTest {
+    // Longest to wait for anything to happen, in milliseconds.
+    private static final int TIMEOUT = 10000;
+
+    // A line that makes the echo handler throw.
+    private static final String BOOM = "boom";
+
+    private SocketReactor acceptor;
+    private SocketReactor[] workers;
+    private SocketServer server;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final List<ClientNVT> clients = new ArrayList<ClientNVT>();
+
+    // Handler failures reported by the reactors, guarded by itself.
+    private final List<Throwable> reported = new ArrayList<Throwable>();
+
+    @Before
+    public void listen() throws IOException {
+        acceptor = start(new SocketReactor());
+        workers = new SocketReactor[] { start(new SocketReactor()),
+                start(new SocketReactor()) };
+
+        server = SocketServer.forReactor(new InetSocketAddress(InetAddress
+                .getByName("127.0.0.1"), 0), null);
+        acceptor.listen(server, new SocketAcceptor() {
+            @Override
+            public SocketEventHandler processAccept(SocketConnection socket) {
+                return new EchoHandler(socket);
+            }
+        }, workers);
+    }
+
+    @After
+    public void close() throws Exception {
+        for (ClientNVT client : clients) {
+            Utility.close(client.getProtocol());
+        }
+
+        Utility.close(server);
+        acceptor.close();
+        for (SocketReactor worker : workers) {
+            worker.close();
+        }
+
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT);
+        }
+    }
+
+    /**
+     * Lines come back from every connection, whichever worker it's on, even
+     * when they arrive in pieces.
+     */
+    @Test
+    public void testEcho() throws IOException {
+        for (int ii = 0; ii < 5; ii++) {
+            connect();
+        }
+
+        for (int round = 0; round < 3; round++) {
+            for (int ii = 0; ii < clients.size(); ii++) {
+                final ClientNVT client = clients.get(ii);
+                final String line = "line " + round + " from " + ii;
+
+                // Half a line, then the rest.
+                send(client, line.substring(0, 4));
+                send(client, line.substring(4) + "\r\n");
+                assertEquals("echo:" + line, readLine(client));
+            }
+        }
+    }
+
+    /**
+     * A handler that throws only loses its own connection, and the failure is
+     * reported. The others, including one on the same worker, carry on.
+     */
+    @Test
+    public void testHandlerFailure() throws IOException {
+        final ClientNVT broken = connect();
+        connect();
+        connect();
+
+        send(broken, BOOM + "\r\n");
+        assertEquals(null, readLine(broken));
+
+        for (ClientNVT healthy : clients.subList(1, clients.size())) {
+            send(healthy, "still here\r\n");
+            assertEquals("echo:still here", readLine(healthy));
+        }
+
+        synchronized (reported) {
+            assertEquals(1, reported.size());
+            assertTrue(reported.get(0) instanceof IllegalStateException);
+        }
+    }
+
+    private SocketReactor start(SocketReactor reactor) {
+        final Thread thread = new Thread(reactor, "Test Reactor");
+        thread.setDaemon(true);
+        thread.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable ex) {
+                synchronized (reported) {
+                    reported.add(ex);
+                }
+            }
+        });
+        thread.start();
+
+        threads.add(thread);
+        return reactor;
+    }
+
+    private ClientNVT connect() throws IOException {
+        final SocketAddress address = server.getLocalAddress();
+        final SocketConnection socket = new SocketConnection(address, null);
+        socket.setTimeout(TIMEOUT);
+
+        final ClientNVT client = new ClientNVT(new TELNETProtocol(socket));
+        clients.add(client);
+        return client;
+    }
+
+    private static void send(ClientNVT client, String text)
+            throws IOException {
+        final TELNETProtocol proto = client.getProtocol();
+        synchronized (client.getWriteLock()) {
+            proto.getOutputStream().write(text.getBytes("US-ASCII"));
+            proto.flush();
+        }
+    }
+
+    /**
+     * Reads a line, or returns <code>null</code> at the end of stream.
+     */
+    private static String readLine(ClientNVT client) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final char[] buf = new char[128];
+        while (true) {
+            final int len = client.read(buf, 0, buf.length);
+            if (len == -1) {
+                return (sb.length() == 0) ? null : sb.toString();
+            }
+
+            sb.append(buf, 0, len);
+            if (client.readIsLine()) {
+                return sb.toString();
+            }
+        }
+    }
+
+    /**
+     * Echoes each line back, prefixed with "echo:", on the reactor thread.
+     */
+    private static final class EchoHandler implements SocketEventHandler {
+        private final SocketConnection socket;
+        private final ServerNVT nvt;
+        private final StringBuilder line = new StringBuilder();
+        private final char[] buf = new char[128];
+
+        private EchoHandler(SocketConnection socket) {
+            this.socket = socket;
+            this.nvt = new ServerNVT(new TELNETProtocol(socket));
+        }
+
+        @Override
+        public void processReadable() throws IOException {
+            try {
+                while (true) {
+                    final int len = nvt.read(buf, 0, buf.length);
+                    if (len == -1) {
+                        socket.close();
+                        return;
+                    }
+
+                    line.append(buf, 0, len);
+                    if (nvt.readIsLine()) {
+                        echo();
+                    }
+                }
+            } catch (WouldBlockException ex) {
+                // Wait for more.
+            }
+        }
+
+        private void echo() throws IOException {
+            if (line.toString().equals(BOOM)) {
+                throw new IllegalStateException("Test handler failure");
+            }
+
+            final char[] reply = ("echo:" + line).toCharArray();
+            line.setLength(0);
+
+            synchronized (nvt.getWriteLock()) {
+                nvt.writeLine(reply, 0, reply.length);
+                nvt.flush();
+            }
+        }
+
+        @Override
+        public void processClosed() {
+            // Nothing to clean up.
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.net.ssl.SSLServerSocket;
+
+import net.feem.koom.services.Utility;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * End-to-end tests of {@link TLSTransport}, through a blocking
+ * {@link SocketConnection}, against an in-process TLS echo server. The server
+ * is reached through a relay that can hold back the end of what the server
+ * sends, to leave a partial record on the wire.
+ * 
+ * @author cu5
+ */
+public class TLSTransportTest {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    // Longest to wait for anything to happen, in milliseconds.
+    private static final long TIMEOUT = 10000;
+
+    private static TLSContext serverContext;
+    private static TLSContext clientContext;
+
+    private SSLServerSocket server;
+    private Relay relay;
+    private SocketConnection connection;
+    private TELNETProtocol proto;
+    private InputStream input;
+
+    /**
+     * Creates a self-signed key for localhost, with the JDK's keytool.
+     */
+    @BeforeClass
+    public static void createKeys() throws Exception {
+        final File file = File.createTempFile("koom-test", ".p12");
+        file.delete();
+        file.deleteOnExit();
+
+        final String keytool = System.getProperty("java.home") + File.separator
+                + "bin" + File.separator + "keytool";
+        final Process process = new ProcessBuilder(keytool, "-genkeypair",
+                "-keystore", file.getPath(), "-storetype", "PKCS12",
+                "-storepass", new String(PASSWORD), "-keypass",
+                new String(PASSWORD), "-alias", "koom-test", "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "1", "-dname",
+                "CN=localhost").redirectErrorStream(true).start();
+        drain(process.getInputStream());
+        assertEquals("keytool exit status", 0, process.waitFor());
+
+        final KeyStore keys = KeyStore.getInstance("PKCS12");
+        final InputStream in = new FileInputStream(file);
+        try {
+            keys.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+
+        serverContext = TLSContext.create(keys, PASSWORD, null);
+        clientContext = TLSContext.create(null, null, keys);
+    }
+
+    @Before
+    public void connect() throws IOException {
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        server = (SSLServerSocket) serverContext.getContext()
+                .getServerSocketFactory().createServerSocket(0, 1, loopback);
+        startEcho(server);
+
+        relay = new Relay(new InetSocketAddress(loopback, server
+                .getLocalPort()));
+
+        final InetSocketAddress address = new InetSocketAddress("localhost",
+                relay.getPort());
+        connection = new SocketConnection(new Socket(loopback, relay
+                .getPort()), clientContext.createClientEngine(address));
+
+        proto = new TELNETProtocol(connection);
+        input = proto.getInputStream();
+    }
+
+    @After
+    public void disconnect() throws IOException {
+        Utility.close(connection);
+        Utility.close(relay);
+        server.close();
+    }
+
+    /**
+     * Data comes back intact, across many records.
+     */
+    @Test
+    public void testEcho() throws Exception {
+        final byte[] data = new byte[256 * 1024];
+        final Random random = new Random(1);
+        for (int ii = 0; ii < data.length; ii++) {
+            // Anything but IAC, which TELNET would escape.
+            data[ii] = (byte) random.nextInt(255);
+        }
+
+        // Write from another thread, so the echo can't fill up both ways.
+        final Thread writer = new Thread("Test Writer") {
+            @Override
+            public void run() {
+                try {
+                    for (int off = 0; off < data.length; off += 1000) {
+                        send(data, off, Math.min(1000, data.length - off));
+                    }
+                } catch (IOException ex) {
+                    // The reader will come up short.
+                }
+            }
+        };
+        writer.start();
+
+        assertArrayEquals(data, readFully(data.length));
+        writer.join(TIMEOUT);
+    }
+
+    /**
+     * Only decrypted application data counts as available, not a record
+     * that's still arriving.
+     */
+    @Test
+    public void testAvailableCountsOnlyApplicationData() throws Exception {
+        // Get the handshake done.
+        send("hello".getBytes("US-ASCII"));
+        assertArrayEquals("hello".getBytes("US-ASCII"), readFully(5));
+
+        relay.holdLastByte();
+        send("ping".getBytes("US-ASCII"));
+
+        // All but the last byte of the echoed record has arrived.
+        relay.awaitHeld();
+        Thread.sleep(100);
+        assertEquals(0, connection.available());
+
+        relay.release();
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (connection.available() == 0) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        assertEquals(4, connection.available());
+        assertArrayEquals("ping".getBytes("US-ASCII"), readFully(4));
+        assertEquals(0, connection.available());
+    }
+
+    private void send(byte[] data) throws IOException {
+        send(data, 0, data.length);
+    }
+
+    private void send(byte[] data, int off, int len) throws IOException {
+        synchronized (proto.getWriteLock()) {
+            proto.getOutputStream().write(data, off, len);
+            proto.flush();
+        }
+    }
+
+    private byte[] readFully(int len) throws IOException {
+        final byte[] buf = new byte[len];
+        int off = 0;
+        while (off < len) {
+            final int got = input.read(buf, off, len - off);
+            if (got == -1) {
+                return Arrays.copyOf(buf, off);
+            }
+            off += got;
+        }
+        return buf;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        final byte[] buf = new byte[1024];
+        while (in.read(buf) != -1) {
+            // Discard.
+        }
+    }
+
+    private static void startEcho(final ServerSocket server) {
+        final Thread thread = new Thread("Test Echo Server") {
+            @Override
+            public void run() {
+                try {
+                    final Socket socket = server.accept();
+                    try {
+                        copy(socket.getInputStream(), socket
+                                .getOutputStream());
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException ex) {
+                    // Test over.
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void copy(InputStream in, OutputStream out)
+            throws IOException {
+        final byte[] buf = new byte[8192];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+            out.flush();
+        }
+    }
+
+    /**
+     * Relays one connection to the server, and can hold back the last byte of
+     * what the server sends.
+     */
+    private static final class Relay implements Closeable {
+        private final ServerSocket listener;
+        private final InetSocketAddress target;
+        private Socket client;
+        private Socket upstream;
+
+        // Guarded by this.
+        private boolean hold;
+        private boolean held;
+
+        private Relay(InetSocketAddress target) throws IOException {
+            this.target = target;
+            this.listener = new ServerSocket(0, 1, target.getAddress());
+
+            final Thread thread = new Thread("Test Relay") {
+                @Override
+                public void run() {
+                    try {
+                        accept();
+                    } catch (IOException ex) {
+                        // Test over.
+                    } catch (InterruptedException ex) {
+                        // Test over.
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private int getPort() {
+            return listener.getLocalPort();
+        }
+
+        private void accept() throws IOException, InterruptedException {
+            final Socket down = listener.accept();
+            final Socket up = new Socket(target.getAddress(), target.getPort());
+            synchronized (this) {
+                client = down;
+                upstream = up;
+            }
+
+            final Thread forward = new Thread("Test Relay Forward") {
+                @Override
+                public void run() {
+                    try {
+                        copy(down.getInputStream(), up.getOutputStream());
+                    } catch (IOException ex) {
+                        // Test over.
+                    }
+                }
+            };
+            forward.setDaemon(true);
+            forward.start();
+
+            final InputStream in = up.getInputStream();
+            final OutputStream out = down.getOutputStream();
+            final byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                synchronized (this) {
+                    if (hold && len > 0) {
+                        out.write(buf, 0, len - 1);
+                        out.flush();
+
+                        held = true;
+                        notifyAll();
+                        while (hold) {
+                            wait();
+                        }
+
+                        out.write(buf, len - 1, 1);
+                    } else {
+                        out.write(buf, 0, len);
+                    }
+                    out.flush();
+                }
+            }
+        }
+
+        private synchronized void holdLastByte() {
+            hold = true;
+            held = false;
+        }
+
+        private synchronized void awaitHeld() throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (!held) {
+                final long remaining = deadline - System.currentTimeMillis();
+                assertTrue("timed out", remaining > 0);
+                wait(remaining);
+            }
+        }
+
+        private synchronized void release() {
+            hold = false;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            hold = false;
+            notifyAll();
+
+            listener.close();
+            if (client != null) {
+                client.close();
+                upstream.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2009 Tim Krajcar <allegro@conmolto.org>.
+ *
+ * This file is part of Koom, a BattleTech MUX graphical HUD client.
+ *
+ * Koom is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Koom is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Koom.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.feem.koom.ui.text;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import net.feem.koom.net.TELNETProtocol;
+import net.feem.koom.services.Utility;
+import net.feem.koom.world.World;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link SessionServer} relaying a user to a world: how prompts
+ * from the world are marked to the user, once the user has logged in.
+ * 
+ * @author cu5
+ */
+public class SessionServerTest {
+    // Longest to wait for anything to happen, in milliseconds.
+    private static final int TIMEOUT = 10000;
+
+    private static final String PROMPT = "prompt> ";
+
+    // TELNET option number for End of Record.
+    private static final byte OPTION_EOR = 25;
+
+    private ServerSocket world;
+    private Thread worldThread;
+    private SessionServer server;
+    private Thread serverThread;
+    private Socket user;
+
+    @Before
+    public void listen() throws IOException {
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        world = new ServerSocket(0, 1, loopback);
+        worldThread = new Thread(new PromptingWorld(world), "Test World");
+        worldThread.setDaemon(true);
+        worldThread.start();
+
+        server = new SessionServer(new InetSocketAddress(loopback, 0));
+        server.setProbeInterval(0);
+        server.setCompressionLevel(0);
+
+        final World entry = new World("test");
+        entry.setSecret("secret".toCharArray());
+        entry.setAddress(world.getLocalSocketAddress());
+        server.addWorld(entry);
+
+        serverThread = new Thread(server, "Test Session Server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        user = new Socket();
+        user.connect(server.getLocalAddress(), TIMEOUT);
+        user.setSoTimeout(TIMEOUT);
+    }
+
+    @After
+    public void close() throws Exception {
+        Utility.close(user);
+        Utility.close(server);
+        Utility.close(world);
+
+        worldThread.join(TIMEOUT);
+    }
+
+    /**
+     * A user who accepts End of Record gets prompts marked with it, even
+     * though the world marks them with Go Ahead.
+     */
+    @Test
+    public void testPromptMarkedWithEOR() throws IOException {
+        assertEquals(TELNETProtocol.CODE_EOR, promptMark(
+                TELNETProtocol.CODE_DO));
+    }
+
+    /**
+     * A user who refuses End of Record still gets Go Ahead.
+     */
+    @Test
+    public void testPromptMarkedWithGA() throws IOException {
+        assertEquals(TELNETProtocol.CODE_GA, promptMark(
+                TELNETProtocol.CODE_DONT));
+    }
+
+    /**
+     * Logs in, answers the offer of End of Record, and asks the world for a
+     * prompt. The answer goes ahead of the request, so it's settled by the
+     * time the prompt comes back.
+     * 
+     * @return command marking the end of the prompt
+     */
+    private byte promptMark(byte answer) throws IOException {
+        final OutputStream out = user.getOutputStream();
+        final InputStream in = user.getInputStream();
+
+        out.write("connect test secret\r\n".getBytes("US-ASCII"));
+        out.flush();
+
+        // End of Record is only offered after the login.
+        skipPast(in, new byte[] { TELNETProtocol.CODE_IAC,
+                TELNETProtocol.CODE_WILL, OPTION_EOR });
+
+        out.write(new byte[] { TELNETProtocol.CODE_IAC, answer, OPTION_EOR });
+        out.write("look\r\n".getBytes("US-ASCII"));
+        out.flush();
+
+        skipPast(in, PROMPT.getBytes("US-ASCII"));
+        assertEquals(TELNETProtocol.CODE_IAC, (byte) read(in));
+        return (byte) read(in);
+    }
+
+    /**
+     * Reads up to and including the given bytes.
+     */
+    private static void skipPast(InputStream in, byte[] expected)
+            throws IOException {
+        int matched = 0;
+        while (matched < expected.length) {
+            final byte next = (byte) read(in);
+            if (next == expected[matched]) {
+                matched++;
+            } else {
+                matched = (next == expected[0]) ? 1 : 0;
+            }
+        }
+    }
+
+    private static int read(InputStream in) throws IOException {
+        final int next = in.read();
+        if (next == -1) {
+            throw new IOException("Unexpected end of stream");
+        }
+
+        return next;
+    }
+
+    /**
+     * Answers each line containing "look" with a prompt ending in Go Ahead,
+     * the way a world that hasn't negotiated End of Record marks it.
+     */
+    private static final class PromptingWorld implements Runnable {
+        private final ServerSocket listener;
+
+        private PromptingWorld(ServerSocket listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Socket socket = listener.accept();
+                try {
+                    final InputStream in = socket.getInputStream();
+                    final OutputStream out = socket.getOutputStream();
+                    final ByteArrayOutputStream line =
+                            new ByteArrayOutputStream();
+
+                    int next;
+                    while ((next = in.read()) != -1) {
+                        if (next != '\n') {
+                            line.write(next);
+                            continue;
+                        }
+
+                        if (line.toString("ISO-8859-1").contains("look")) {
+                            out.write(PROMPT.getBytes("US-ASCII"));
+                            out.write(new byte[] { TELNETProtocol.CODE_IAC,
+                                    TELNETProtocol.CODE_GA });
+                            out.flush();
+                        }
+                        line.reset();
+                    }
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException ex) {
+                // Test over.
+            }
+        }
+    }
+}